@@ -0,0 +1,65 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares how the throughput of the striped {@link PasswordResetTokenGenerator} and of
+ * {@link StringUtils#randomString(int)}, which shares a single random number generator, scales
+ * with the number of threads generating tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordResetTokenGeneratorBenchmark {
+
+    private static final int TOKEN_LENGTH = 32;
+
+    @Param({"generator", "randomString"})
+    private String source;
+    private PasswordResetTokenGenerator tokenGenerator;
+
+    @Setup
+    public void setUp() {
+        tokenGenerator = new PasswordResetTokenGenerator(TOKEN_LENGTH);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String oneThread() {
+        return generate();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String fourThreads() {
+        return generate();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String sixteenThreads() {
+        return generate();
+    }
+
+    private String generate() {
+        return "generator".equals(source)
+            ? tokenGenerator.generate()
+            : StringUtils.randomString(TOKEN_LENGTH);
+    }
+}
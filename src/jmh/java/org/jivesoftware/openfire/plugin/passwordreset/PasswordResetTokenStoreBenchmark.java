@@ -0,0 +1,143 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.jivesoftware.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of the database and in-memory token stores under concurrent
+ * generation, lookup and deletion of tokens. The database store runs against an in-memory
+ * HSQLDB database created from the plugin's own install script, with a connection per thread;
+ * both stores start with the same number of tokens, which lookups pick from at random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+@SuppressFBWarnings(
+    value = {"SQL_NONCONSTANT_STRING_PASSED_TO_EXECUTE", "EI_EXPOSE_REP2"},
+    justification = "Statements come from the plugin's own schema script")
+public class PasswordResetTokenStoreBenchmark {
+
+    private static final int TOKENS = 100_000;
+    private static final int USERS = TOKENS / 3;
+    private static final String DATABASE_URL = "jdbc:hsqldb:mem:store-benchmark";
+
+    @Param({"database", "memory"})
+    private String store;
+    private Connection connection;
+    private ThreadLocal<Connection> threadConnection;
+    private PasswordResetTokenStore tokenStore;
+    private String[] knownTokens;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        PasswordResetTokenTableBenchmark.configureOpenfireHome();
+        // Kept open so that the in-memory database outlives the per-thread connections
+        connection = DriverManager.getConnection(DATABASE_URL, "SA", "");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                "CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL)");
+            for (final String sql
+                : PasswordResetTokenTableBenchmark.readScript("password-reset_hsqldb.sql")) {
+                statement.execute(sql);
+            }
+        }
+        threadConnection = ThreadLocal.withInitial(() -> {
+            try {
+                return PasswordResetTokenTableBenchmark.unclosable(
+                    DriverManager.getConnection(DATABASE_URL, "SA", ""));
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        if ("memory".equals(store)) {
+            tokenStore = new PasswordResetMemoryTokenStore(threadConnection::get, () -> false);
+        } else {
+            tokenStore = new PasswordResetJdbcTokenStore(threadConnection::get);
+        }
+        knownTokens = new String[TOKENS];
+        for (int i = 0; i < TOKENS; i++) {
+            knownTokens[i] = StringUtils.randomString(32);
+        }
+        if ("memory".equals(store)) {
+            for (int i = 0; i < TOKENS; i++) {
+                tokenStore.store(knownTokens[i], "user-" + i % USERS, "192.0.2.1", expires());
+            }
+        } else {
+            // Directly, rather than waiting out the batch window for every token
+            populate();
+        }
+    }
+
+    private void populate() throws SQLException {
+        try (PreparedStatement statement =
+            connection.prepareStatement(PasswordResetJdbcTokenStore.INSERT_SQL)) {
+            for (int i = 0; i < TOKENS; i++) {
+                statement.setBytes(1, PasswordResetTokenEncoding.hash(knownTokens[i]));
+                statement.setString(2, "user-" + i % USERS);
+                statement.setBytes(3, PasswordResetTokenEncoding.packAddress("192.0.2.1"));
+                statement.setLong(4, expires().toEpochMilli());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @Benchmark
+    public void generate() throws SQLException {
+        tokenStore.store(StringUtils.randomString(32), randomUser(), "192.0.2.1", expires());
+    }
+
+    @Benchmark
+    public Optional<String> lookup() throws SQLException {
+        return tokenStore.findUserId(knownTokens[ThreadLocalRandom.current().nextInt(TOKENS)]);
+    }
+
+    @Benchmark
+    public void delete() throws SQLException {
+        tokenStore.deleteUser(randomUser());
+    }
+
+    private static String randomUser() {
+        return "user-" + ThreadLocalRandom.current().nextInt(USERS);
+    }
+
+    private static Instant expires() {
+        return Instant.now().plus(Duration.ofHours(1));
+    }
+}
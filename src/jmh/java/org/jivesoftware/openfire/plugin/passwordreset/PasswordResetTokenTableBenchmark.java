@@ -0,0 +1,185 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how the latency of the token table queries changes as the table grows, with and
+ * without the secondary indexes on the table, i.e. those added in schema versions 2 and 4. Runs
+ * against an in-memory HSQLDB database created from the plugin's own install script; a tenth of
+ * the rows are expired.
+ *
+ * <p>The purge benchmark measures the steady state, i.e. the cost of finding expired rows once
+ * the first invocation has removed them. Lookups use unknown tokens and users so that the token
+ * cache and the user provider are not involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@SuppressFBWarnings(
+    value = {"SQL_NONCONSTANT_STRING_PASSED_TO_EXECUTE", "EI_EXPOSE_REP2"},
+    justification = "Statements come from the plugin's own schema script")
+public class PasswordResetTokenTableBenchmark {
+
+    private static final int BATCH_SIZE = 10_000;
+    private static final String INSERT_SQL =
+        "INSERT INTO ofPasswordResetToken (tokenHash, userId, sourceAddress, expires)"
+            + " VALUES (?,?,?,?)";
+    // Unique or not, as the unique index on (userId, userSlot) also serves lookups by user
+    private static final Pattern TOKEN_INDEX =
+        Pattern.compile("CREATE (UNIQUE )?INDEX \\w+ ON ofPasswordResetToken\\b.*");
+
+    @Param({"10000", "100000", "1000000", "2000000"})
+    private int rows;
+    @Param({"true", "false"})
+    private boolean indexed;
+    private Connection connection;
+    private PasswordResetTokenManager resetTokenManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        configureOpenfireHome();
+        connection = DriverManager.getConnection(
+            "jdbc:hsqldb:mem:benchmark-" + rows + "-" + indexed, "SA", "");
+        createSchema();
+        populate();
+        final Connection unclosable = unclosable(connection);
+        resetTokenManager = new PasswordResetTokenManager(
+            () -> unclosable, null, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+    }
+
+    @Benchmark
+    public int purgeExpiredTokens() throws SQLException {
+        return resetTokenManager.purgeExpiredTokens();
+    }
+
+    @Benchmark
+    public Object lookupUnknownToken() throws SQLException {
+        return resetTokenManager.getUser(StringUtils.randomString(32));
+    }
+
+    @Benchmark
+    public void deleteTokensForUnknownUser() throws SQLException {
+        final String username = "unknown-" + ThreadLocalRandom.current().nextInt();
+        resetTokenManager.deleteTokens(new User(username, null, null, new Date(), new Date()));
+    }
+
+    static void configureOpenfireHome() throws IOException {
+        // A minimal, un-setup, home directory stops Openfire trying to read properties from a DB
+        final Path home = Files.createTempDirectory("openfire-home");
+        Files.createDirectories(home.resolve("conf"));
+        Files.write(home.resolve("conf").resolve("openfire.xml"),
+            "<jive/>".getBytes(StandardCharsets.UTF_8));
+        JiveGlobals.setHomeDirectory(home.toString());
+    }
+
+    private void createSchema() throws IOException, SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                "CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL)");
+            for (final String sql : readScript("password-reset_hsqldb.sql")) {
+                if (indexed || !TOKEN_INDEX.matcher(sql).matches()) {
+                    statement.execute(sql);
+                }
+            }
+        }
+    }
+
+    static String[] readScript(final String name) throws IOException {
+        try (InputStream inputStream = PasswordResetTokenTableBenchmark.class.getClassLoader()
+            .getResourceAsStream(name)) {
+            if (inputStream == null) {
+                throw new IOException("Unable to find " + name + " on the classpath");
+            }
+            final String script = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8)
+                .replaceAll("(?m)^--.*$", "");
+            return Arrays.stream(script.split(";"))
+                .map(String::trim)
+                .filter(sql -> !sql.isEmpty())
+                .toArray(String[]::new);
+        }
+    }
+
+    private void populate() throws SQLException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long now = System.currentTimeMillis();
+        final long expiry = Duration.ofHours(5).toMillis();
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            for (int i = 0; i < rows; i++) {
+                statement.setBytes(1,
+                    PasswordResetTokenEncoding.hash(StringUtils.randomString(32)));
+                statement.setString(2, "user-" + random.nextInt(Math.max(1, rows / 3)));
+                statement.setBytes(3, new byte[] {(byte) 192, 0, 2, (byte) random.nextInt(256)});
+                // One in ten tokens has already expired
+                final long expires = i % 10 == 0
+                    ? now - random.nextLong(expiry)
+                    : now + random.nextLong(expiry);
+                statement.setLong(4, expires);
+                statement.addBatch();
+                if (i % BATCH_SIZE == BATCH_SIZE - 1) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    static Connection unclosable(final Connection connection) {
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class},
+            (proxy, method, args) -> {
+                if ("close".equals(method.getName())) {
+                    return null;
+                }
+                try {
+                    return method.invoke(connection, args);
+                } catch (final InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            });
+    }
+}
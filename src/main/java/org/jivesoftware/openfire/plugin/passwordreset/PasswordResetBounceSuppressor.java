@@ -0,0 +1,452 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedReader;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.util.TaskEngine;
+
+/**
+ * Periodically reads the delivery status notifications (RFC 3464) that the mail server drops into
+ * {@link PasswordResetPlugin#BOUNCE_DIRECTORY}, and remembers the recipients that hard-bounced,
+ * so that they are not sent reset emails for {@link PasswordResetPlugin#BOUNCE_SUPPRESSION_PERIOD}.
+ *
+ * <p>Only files modified since shortly before the newest one read are listed, as a maildir
+ * delivery keeps the modification time it had when it was written, before it was moved in to
+ * place. The files read within that window are remembered by name, so each is read once. The
+ * recipients are not persisted; instead, when the plugin starts, the notifications from the
+ * last suppression period are read again. Each recipient is held as a 64-bit hash of its
+ * address, and the time it last bounced, in an open-addressed table of primitive arrays.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetBounceSuppressor {
+
+    // Maildir delivers complete files in to "new", from which mail clients move them to "cur"
+    private static final List<String> MAILDIR_FOLDERS = List.of("new", "cur");
+    // The delivery status comes before any copy of the original message, so stop well short
+    // of reading large attachments
+    private static final int MAX_CHARACTERS_READ = 1024 * 1024;
+    // How far behind the newest file read to look for files delivered since, but written before
+    private static final long LOOK_BACK_MILLIS = Duration.ofMinutes(10).toMillis();
+    private final TaskEngine taskEngine;
+    private final Consumer<Duration> intervalListener = interval -> reschedule();
+    private final Consumer<String> directoryListener = directory -> resetPosition();
+    private final Object ingestLock = new Object();
+    private final AddressSet addresses = new AddressSet();
+    private final LongAdder suppressedCount = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+    private TimerTask timerTask;
+    // The modification time of the newest file read, and the names of the files read within the
+    // look-back window behind it, with their modification times
+    private long position;
+    private final Map<String, Long> recentFiles = new HashMap<>();
+
+    public PasswordResetBounceSuppressor(final TaskEngine taskEngine) {
+        this.taskEngine = taskEngine;
+        resetPosition();
+    }
+
+    /**
+     * Starts reading notifications at the interval set by
+     * {@link PasswordResetPlugin#BOUNCE_POLL_INTERVAL}, and follows any subsequent changes to
+     * that interval or to the directory.
+     */
+    public void start() {
+        PasswordResetPlugin.BOUNCE_POLL_INTERVAL.addListener(intervalListener);
+        PasswordResetPlugin.BOUNCE_DIRECTORY.addListener(directoryListener);
+        reschedule();
+    }
+
+    /**
+     * Stops reading notifications.
+     */
+    public void stop() {
+        PasswordResetPlugin.BOUNCE_POLL_INTERVAL.removeListener(intervalListener);
+        PasswordResetPlugin.BOUNCE_DIRECTORY.removeListener(directoryListener);
+        cancel();
+    }
+
+    private synchronized void reschedule() {
+        cancel();
+        final Duration interval = PasswordResetPlugin.BOUNCE_POLL_INTERVAL.getValue();
+        // A TimerTask cannot be rescheduled, so each schedule needs a new one
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                ingest();
+            }
+        };
+        taskEngine.schedule(timerTask, Duration.ZERO, interval);
+        log.debug("Bounces will be read every {}", interval);
+    }
+
+    private synchronized void cancel() {
+        if (timerTask != null) {
+            taskEngine.cancelScheduledTask(timerTask);
+            timerTask = null;
+        }
+    }
+
+    private void resetPosition() {
+        synchronized (ingestLock) {
+            position = System.currentTimeMillis()
+                - PasswordResetPlugin.BOUNCE_SUPPRESSION_PERIOD.getValue().toMillis();
+            recentFiles.clear();
+        }
+    }
+
+    /**
+     * Checks whether emails to an address should be suppressed as it recently hard-bounced,
+     * counting those that are.
+     *
+     * @param email the email address
+     * @return {@code true} if no email should be sent to the address, otherwise {@code false}
+     */
+    public boolean isSuppressed(final String email) {
+        final long bounced = addresses.get(hash(email));
+        if (bounced != AddressSet.ABSENT && bounced >= getCutoff()) {
+            suppressedCount.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of addresses that recently hard-bounced.
+     *
+     * @return the number of addresses
+     */
+    public int getAddressCount() {
+        return addresses.size();
+    }
+
+    /**
+     * Returns the number of emails suppressed as the address recently hard-bounced.
+     *
+     * @return the number of emails
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    /**
+     * Returns the number of notification files read.
+     *
+     * @return the number of files
+     */
+    public long getFileCount() {
+        return fileCount.sum();
+    }
+
+    /**
+     * Reads any notifications added since the last time, and forgets addresses that last bounced
+     * before the suppression period.
+     */
+    void ingest() {
+        final String directory = PasswordResetPlugin.BOUNCE_DIRECTORY.getValue();
+        if (directory == null || directory.isEmpty()) {
+            return;
+        }
+        synchronized (ingestLock) {
+            final long cutoff = getCutoff();
+            addresses.removeBefore(cutoff);
+            final List<BounceFile> files = listNewFiles(
+                PasswordResetPlugin.resolveHomePath(directory),
+                Math.max(position - LOOK_BACK_MILLIS, cutoff));
+            for (final BounceFile file : files) {
+                if (recentFiles.containsKey(file.name)) {
+                    // Listed twice, having been moved from new to cur during the listing
+                    continue;
+                }
+                try {
+                    for (final String recipient : readHardBounces(file.path)) {
+                        addresses.add(hash(recipient), file.modified);
+                    }
+                } catch (final IOException e) {
+                    log.warn("Unable to read the delivery status notification {}", file.path, e);
+                }
+                fileCount.increment();
+                recentFiles.put(file.name, file.modified);
+                position = Math.max(position, file.modified);
+            }
+            // Files this old are not listed again, so need not be remembered
+            final long earliest = position - LOOK_BACK_MILLIS;
+            recentFiles.values().removeIf(modified -> modified < earliest);
+            if (!files.isEmpty()) {
+                log.debug("Read {} delivery status notifications; {} addresses have bounced",
+                    files.size(), addresses.size());
+            }
+        }
+    }
+
+    private List<BounceFile> listNewFiles(final Path directory, final long earliest) {
+        final List<Path> folders = new ArrayList<>();
+        for (final String folder : MAILDIR_FOLDERS) {
+            if (Files.isDirectory(directory.resolve(folder))) {
+                folders.add(directory.resolve(folder));
+            }
+        }
+        if (folders.isEmpty()) {
+            folders.add(directory);
+        }
+        final List<BounceFile> files = new ArrayList<>();
+        for (final Path folder : folders) {
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(folder)) {
+                for (final Path path : paths) {
+                    if (!Files.isRegularFile(path)) {
+                        continue;
+                    }
+                    final long modified = Files.getLastModifiedTime(path).toMillis();
+                    final String name = getName(path);
+                    if (modified >= earliest && !recentFiles.containsKey(name)) {
+                        files.add(new BounceFile(path, name, modified));
+                    }
+                }
+            } catch (final IOException e) {
+                log.warn("Unable to list the delivery status notifications in {}", folder, e);
+            }
+        }
+        files.sort(Comparator.comparingLong(file -> file.modified));
+        return files;
+    }
+
+    private static String getName(final Path path) {
+        // A maildir file keeps its unique name, but not its flags, when moved from new to cur
+        final String name = path.getFileName().toString();
+        final int flags = name.indexOf(':');
+        return flags < 0 ? name : name.substring(0, flags);
+    }
+
+    /**
+     * Reads the recipients that hard-bounced - those with an action of failed, and a permanent
+     * (5.x.x) status - from a delivery status notification.
+     *
+     * @param path the notification
+     * @return the recipients
+     * @throws IOException if the notification could not be read
+     */
+    static List<String> readHardBounces(final Path path) throws IOException {
+        final List<String> recipients = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new LimitedReader(
+            Files.newBufferedReader(path, StandardCharsets.ISO_8859_1), MAX_CHARACTERS_READ))) {
+            String recipient = null;
+            String action = null;
+            String status = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // Each recipient's fields are separated from the next by a blank line
+                    addIfHardBounce(recipients, recipient, action, status);
+                    recipient = null;
+                    action = null;
+                    status = null;
+                    continue;
+                }
+                final int colon = line.indexOf(':');
+                if (colon <= 0 || Character.isWhitespace(line.charAt(0))) {
+                    continue;
+                }
+                final String field = line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+                final String value = line.substring(colon + 1).trim();
+                switch (field) {
+                    case "final-recipient":
+                        // e.g. "rfc822; user@example.com"
+                        recipient = value.substring(value.indexOf(';') + 1).trim();
+                        break;
+                    case "action":
+                        action = value;
+                        break;
+                    case "status":
+                        status = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            addIfHardBounce(recipients, recipient, action, status);
+        }
+        return recipients;
+    }
+
+    private static void addIfHardBounce(
+        final List<String> recipients,
+        final String recipient,
+        final String action,
+        final String status) {
+        if (recipient != null && !recipient.isEmpty()
+            && "failed".equalsIgnoreCase(action)
+            && status != null && status.startsWith("5.")) {
+            recipients.add(recipient);
+        }
+    }
+
+    private static long getCutoff() {
+        return System.currentTimeMillis()
+            - PasswordResetPlugin.BOUNCE_SUPPRESSION_PERIOD.getValue().toMillis();
+    }
+
+    private static long hash(final String email) {
+        String address = email.trim();
+        if (address.startsWith("<") && address.endsWith(">")) {
+            address = address.substring(1, address.length() - 1);
+        }
+        final long hash = ByteBuffer
+            .wrap(PasswordResetTokenEncoding.hash(address.toLowerCase(Locale.ENGLISH)))
+            .getLong();
+        // Zero marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static final class BounceFile {
+        private final Path path;
+        private final String name;
+        private final long modified;
+
+        private BounceFile(final Path path, final String name, final long modified) {
+            this.path = path;
+            this.name = name;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * A reader that ends after a number of characters, so that not even a single line longer
+     * than that is read in to memory.
+     */
+    private static final class LimitedReader extends FilterReader {
+        private int remaining;
+
+        private LimitedReader(final Reader reader, final int limit) {
+            super(reader);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length)
+            throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int read = super.read(buffer, offset, Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(final long count) throws IOException {
+            final long skipped = super.skip(Math.min(count, remaining));
+            remaining -= (int) skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * A set of address hashes, each with the time it last bounced, held in two arrays probed
+     * linearly, and kept at most half full.
+     */
+    private static final class AddressSet {
+        private static final long ABSENT = Long.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 64;
+        private long[] hashes = new long[INITIAL_CAPACITY];
+        private long[] bounced = new long[INITIAL_CAPACITY];
+        private int size;
+
+        private synchronized int size() {
+            return size;
+        }
+
+        private synchronized long get(final long hash) {
+            final int mask = hashes.length - 1;
+            for (int i = (int) hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash) {
+                    return bounced[i];
+                }
+            }
+            return ABSENT;
+        }
+
+        private synchronized void add(final long hash, final long time) {
+            if ((size + 1) * 2 > hashes.length) {
+                rebuild(hashes.length * 2, ABSENT);
+            }
+            final int mask = hashes.length - 1;
+            int i = (int) hash & mask;
+            while (hashes[i] != 0 && hashes[i] != hash) {
+                i = (i + 1) & mask;
+            }
+            if (hashes[i] == 0) {
+                hashes[i] = hash;
+                bounced[i] = time;
+                size++;
+            } else {
+                bounced[i] = Math.max(bounced[i], time);
+            }
+        }
+
+        private synchronized void removeBefore(final long cutoff) {
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] != 0 && bounced[i] < cutoff) {
+                    // Removing from a linearly probed table means moving entries, so rebuild
+                    int capacity = INITIAL_CAPACITY;
+                    while (capacity < size * 2) {
+                        capacity *= 2;
+                    }
+                    rebuild(capacity, cutoff);
+                    return;
+                }
+            }
+        }
+
+        private void rebuild(final int capacity, final long cutoff) {
+            final long[] oldHashes = hashes;
+            final long[] oldBounced = bounced;
+            hashes = new long[capacity];
+            bounced = new long[capacity];
+            size = 0;
+            final int mask = capacity - 1;
+            for (int j = 0; j < oldHashes.length; j++) {
+                if (oldHashes[j] != 0 && oldBounced[j] >= cutoff) {
+                    int i = (int) oldHashes[j] & mask;
+                    while (hashes[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[j];
+                    bounced[i] = oldBounced[j];
+                    size++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether reset emails to an address should be suppressed because of its domain. The
+ * domains in {@link PasswordResetPlugin#SUPPRESSED_DOMAINS}, and in the file named by
+ * {@link PasswordResetPlugin#SUPPRESSED_DOMAINS_FILE}, are compiled into a trie keyed by the
+ * labels of each domain from right to left, so that checking an address takes one lookup per
+ * label of its domain, however many domains are suppressed. A domain suppresses itself and all
+ * of its subdomains, but not other domains that merely end with the same characters.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetDomainSuppressor {
+
+    private static final char LABEL_SEPARATOR = '.';
+    private static final String COMMENT = "#";
+    private final Consumer<List<String>> domainsListener = domains -> compile();
+    private final Consumer<String> fileListener = file -> compile();
+    private final LongAdder suppressedCount = new LongAdder();
+    private volatile Node root = new Node();
+    private volatile int domainCount;
+
+    public PasswordResetDomainSuppressor() {
+        compile();
+    }
+
+    /**
+     * Follows changes to the suppressed domains, recompiling them when they change. Changes to
+     * the content of the file are picked up when the plugin is restarted, or when either property
+     * is changed.
+     */
+    public void start() {
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.addListener(domainsListener);
+        PasswordResetPlugin.SUPPRESSED_DOMAINS_FILE.addListener(fileListener);
+        compile();
+    }
+
+    /**
+     * Stops following changes to the suppressed domains.
+     */
+    public void stop() {
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.removeListener(domainsListener);
+        PasswordResetPlugin.SUPPRESSED_DOMAINS_FILE.removeListener(fileListener);
+    }
+
+    /**
+     * Checks whether emails to an address should be suppressed, counting those that are.
+     *
+     * @param email the email address
+     * @return {@code true} if no email should be sent to the address, otherwise {@code false}
+     */
+    public boolean isSuppressed(final String email) {
+        final String domain = normalise(email.substring(email.lastIndexOf('@') + 1));
+        Node node = root;
+        int end = domain.length();
+        while (end > 0) {
+            final int start = domain.lastIndexOf(LABEL_SEPARATOR, end - 1);
+            node = node.children.get(domain.substring(start + 1, end));
+            if (node == null) {
+                return false;
+            }
+            if (node.suppressed) {
+                suppressedCount.increment();
+                return true;
+            }
+            end = start;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of distinct domains currently suppressed.
+     *
+     * @return the number of domains
+     */
+    public int getDomainCount() {
+        return domainCount;
+    }
+
+    /**
+     * Returns the number of addresses that have been suppressed.
+     *
+     * @return the number of addresses
+     */
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    private synchronized void compile() {
+        final List<String> domains = new ArrayList<>();
+        domains.addAll(PasswordResetPlugin.SUPPRESSED_DOMAINS.getValue());
+        domains.addAll(readDomainsFile());
+        final Node compiled = new Node();
+        final int count = add(compiled, domains);
+        root = compiled;
+        domainCount = count;
+        log.debug("{} domains will not be sent reset emails", count);
+    }
+
+    private static List<String> readDomainsFile() {
+        final String file = PasswordResetPlugin.SUPPRESSED_DOMAINS_FILE.getValue();
+        if (file == null || file.isEmpty()) {
+            return List.of();
+        }
+        final Path path = PasswordResetPlugin.resolveHomePath(file);
+        try {
+            return Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            log.warn("Unable to read the suppressed domains in {}", path, e);
+            return List.of();
+        }
+    }
+
+    private static int add(final Node root, final Collection<String> domains) {
+        int count = 0;
+        for (final String entry : domains) {
+            final String domain = normalise(entry.trim());
+            if (domain.isEmpty() || domain.startsWith(COMMENT)) {
+                continue;
+            }
+            Node node = root;
+            int end = domain.length();
+            while (end > 0) {
+                final int start = domain.lastIndexOf(LABEL_SEPARATOR, end - 1);
+                node = node.children.computeIfAbsent(
+                    domain.substring(start + 1, end), label -> new Node());
+                end = start;
+            }
+            if (!node.suppressed) {
+                node.suppressed = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String normalise(final String domain) {
+        // A wildcard, leading dot or trailing dot, as in "*.example.com" or "example.com.",
+        // means the same as the domain alone
+        int start = 0;
+        int end = domain.length();
+        if (domain.startsWith("*.")) {
+            start = 2;
+        } else if (domain.startsWith(".")) {
+            start = 1;
+        }
+        if (end > start && domain.charAt(end - 1) == LABEL_SEPARATOR) {
+            end--;
+        }
+        return domain.substring(start, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private boolean suppressed;
+    }
+}
@@ -0,0 +1,254 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.TaskEngine;
+
+/**
+ * Finds users by email address, ignoring case, without searching every user. The index is built
+ * in the background when the plugin starts, and kept current by listening for users being
+ * created, modified and deleted; until it has been built, {@link #isWarm()} is false and callers
+ * should fall back to searching.
+ *
+ * <p>Only changes made through this node are heard, so the index is also rebuilt every
+ * {@link PasswordResetPlugin#EMAIL_INDEX_REBUILD_INTERVAL}, to pick up changes made on other
+ * cluster nodes or directly in the user provider. Callers should still confirm that the user
+ * found has the address.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetEmailIndex implements UserEventListener {
+
+    private static final int BATCH_SIZE = 500;
+    // Deleting users while the index is built can cause others to be skipped; see build()
+    private static final int MAX_BUILD_PASSES = 3;
+    private final UserManager userManager;
+    private final TaskEngine taskEngine;
+    private final Consumer<Duration> intervalListener = interval -> reschedule();
+    private final Object buildLock = new Object();
+    private final Map<String, Set<String>> usernamesByEmail = new ConcurrentHashMap<>();
+    private final Map<String, String> emailByUsername = new ConcurrentHashMap<>();
+    // Users changed while the index is being built, which the build must then leave alone
+    private final Set<String> changedWhileBuilding = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger deletedWhileBuilding = new AtomicInteger();
+    private volatile boolean building;
+    private volatile boolean warm;
+    private volatile boolean stopped;
+    private TimerTask timerTask;
+
+    public PasswordResetEmailIndex(final UserManager userManager, final TaskEngine taskEngine) {
+        this.userManager = userManager;
+        this.taskEngine = taskEngine;
+    }
+
+    /**
+     * Starts listening for changes to users, starts building the index in the background, and
+     * schedules it to be rebuilt.
+     */
+    public void start() {
+        stopped = false;
+        building = true;
+        // Before building, so that no change is missed
+        UserEventDispatcher.addListener(this);
+        taskEngine.submit(this::build);
+        PasswordResetPlugin.EMAIL_INDEX_REBUILD_INTERVAL.addListener(intervalListener);
+        reschedule();
+    }
+
+    /**
+     * Stops listening for changes to users, and discards the index.
+     */
+    public void stop() {
+        stopped = true;
+        warm = false;
+        PasswordResetPlugin.EMAIL_INDEX_REBUILD_INTERVAL.removeListener(intervalListener);
+        cancel();
+        UserEventDispatcher.removeListener(this);
+        usernamesByEmail.clear();
+        emailByUsername.clear();
+    }
+
+    private synchronized void reschedule() {
+        cancel();
+        final Duration interval = PasswordResetPlugin.EMAIL_INDEX_REBUILD_INTERVAL.getValue();
+        // A TimerTask cannot be rescheduled, so each schedule needs a new one
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                build();
+            }
+        };
+        taskEngine.schedule(timerTask, interval, interval);
+        log.debug("The email index will be rebuilt every {}", interval);
+    }
+
+    private synchronized void cancel() {
+        if (timerTask != null) {
+            taskEngine.cancelScheduledTask(timerTask);
+            timerTask = null;
+        }
+    }
+
+    /**
+     * Users are read a page at a time. Deleting a user moves every later user back a place, so
+     * one may be missed if that happens during the build; in that case the build is repeated.
+     * When rebuilding, users that were not read are removed from the index, unless they changed
+     * on this node while it was rebuilt; the index is used as it stands in the meantime.
+     */
+    void build() {
+        synchronized (buildLock) {
+            building = true;
+            final boolean rebuilding = warm;
+            final Instant start = Instant.now();
+            final Set<String> usernamesRead = new HashSet<>();
+            try {
+                int pass = 0;
+                int deleted;
+                do {
+                    deleted = deletedWhileBuilding.get();
+                    int index = 0;
+                    Collection<User> users;
+                    while (!stopped
+                        && !(users = userManager.getUsers(index, BATCH_SIZE)).isEmpty()) {
+                        for (final User user : users) {
+                            usernamesRead.add(user.getUsername());
+                            update(user.getUsername(), user.getEmail(), false);
+                        }
+                        index += BATCH_SIZE;
+                    }
+                } while (!stopped && ++pass < MAX_BUILD_PASSES
+                    && deletedWhileBuilding.get() != deleted);
+                if (!stopped) {
+                    // Deleted on another node, or in the user provider itself
+                    for (final String username : emailByUsername.keySet()) {
+                        if (!usernamesRead.contains(username)) {
+                            update(username, null, false);
+                        }
+                    }
+                }
+            } catch (final RuntimeException e) {
+                log.error("Unable to build the email index; users will be searched instead", e);
+                return;
+            } finally {
+                building = false;
+                changedWhileBuilding.clear();
+            }
+            if (!stopped) {
+                warm = true;
+                final long millis = Duration.between(start, Instant.now()).toMillis();
+                if (rebuilding) {
+                    log.debug("Reindexed the email addresses of {} users in {} ms",
+                        emailByUsername.size(), millis);
+                } else {
+                    log.info("Indexed the email addresses of {} users in {} ms",
+                        emailByUsername.size(), millis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the index has been built, and so whether {@link #findUsername(String)} can
+     * be relied on.
+     *
+     * @return true if the index has been built
+     */
+    public boolean isWarm() {
+        return warm;
+    }
+
+    /**
+     * Finds the user with an email address. If more than one user has the address, the first by
+     * username is returned.
+     *
+     * @param email the email address, in any case
+     * @return the username, or empty if no user has the address
+     */
+    public Optional<String> findUsername(final String email) {
+        final String normalised = normalise(email);
+        if (normalised == null) {
+            return Optional.empty();
+        }
+        final Set<String> usernames = usernamesByEmail.get(normalised);
+        if (usernames == null) {
+            return Optional.empty();
+        }
+        return usernames.stream().min(Comparator.naturalOrder());
+    }
+
+    /**
+     * Returns the number of users with an indexed email address.
+     *
+     * @return the number of users
+     */
+    public int size() {
+        return emailByUsername.size();
+    }
+
+    @Override
+    public void userCreated(final User user, final Map<String, Object> params) {
+        update(user.getUsername(), user.getEmail(), true);
+    }
+
+    @Override
+    public void userDeleting(final User user, final Map<String, Object> params) {
+        if (building) {
+            deletedWhileBuilding.incrementAndGet();
+        }
+        update(user.getUsername(), null, true);
+    }
+
+    @Override
+    public void userModified(final User user, final Map<String, Object> params) {
+        update(user.getUsername(), user.getEmail(), true);
+    }
+
+    private void update(final String username, final String email, final boolean changed) {
+        // Changes for each user are made under that user's lock
+        emailByUsername.compute(username, (key, previousEmail) -> {
+            if (!changed && changedWhileBuilding.contains(key)) {
+                return previousEmail;
+            }
+            if (changed && building) {
+                changedWhileBuilding.add(key);
+            }
+            final String normalised = normalise(email);
+            if (previousEmail != null && !previousEmail.equals(normalised)) {
+                usernamesByEmail.computeIfPresent(previousEmail, (address, usernames) -> {
+                    usernames.remove(key);
+                    return usernames.isEmpty() ? null : usernames;
+                });
+            }
+            if (normalised != null) {
+                usernamesByEmail.compute(normalised, (address, usernames) -> {
+                    final Set<String> updated =
+                        usernames == null ? ConcurrentHashMap.newKeySet() : usernames;
+                    updated.add(key);
+                    return updated;
+                });
+            }
+            return normalised;
+        });
+    }
+
+    private static String normalise(final String email) {
+        return email == null || email.isEmpty() ? null : email.toLowerCase(Locale.ROOT);
+    }
+}
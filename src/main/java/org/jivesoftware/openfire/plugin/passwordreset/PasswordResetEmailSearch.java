@@ -0,0 +1,212 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.SqlExceptionSupplier;
+import org.jivesoftware.openfire.user.DefaultUserProvider;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.openfire.user.UserProvider;
+
+/**
+ * Finds a user by email address by asking the user provider, for use until the
+ * {@link PasswordResetEmailIndex} has been built.
+ *
+ * <p>If the provider is Openfire's {@link DefaultUserProvider}, the ofUser table is queried
+ * directly, using the index on lower-cased email addresses if the administrator has added it as
+ * described in the README. If the provider can search by email address, it does so. Otherwise
+ * every user is fetched and compared, in chunks, by a few workers at once, stopping once a match
+ * is found. The size of the chunks follows how long the provider takes to return each, and carries
+ * over from one scan to the next.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetEmailSearch {
+
+    static final String EMAIL_FIELD = "Email";
+    private static final String FIND_USERNAME_SQL =
+        "SELECT username FROM ofUser WHERE LOWER(email) = ? ORDER BY username";
+    private static final int PARALLELISM = 4;
+    private static final int MIN_CHUNK_SIZE = 50;
+    private static final int MAX_CHUNK_SIZE = 1000;
+    private static final long TARGET_CHUNK_MILLIS = 100;
+    private final SqlExceptionSupplier<Connection> connectionSupplier;
+    private final UserProvider userProvider;
+    private final UserManager userManager;
+    private final Executor executor;
+    private final AtomicInteger chunkSize = new AtomicInteger(MIN_CHUNK_SIZE);
+
+    /**
+     * Creates a new search.
+     *
+     * @param connectionSupplier supplies connections to the database of the default provider
+     * @param userProvider       the user provider, which is asked whether it can search
+     * @param userManager        the user manager, through which users are fetched
+     * @param executor           runs the workers that scan users
+     */
+    public PasswordResetEmailSearch(
+        final SqlExceptionSupplier<Connection> connectionSupplier,
+        final UserProvider userProvider,
+        final UserManager userManager,
+        final Executor executor) {
+        this.connectionSupplier = connectionSupplier;
+        this.userProvider = userProvider;
+        this.userManager = userManager;
+        this.executor = executor;
+    }
+
+    /**
+     * Finds the user with an email address, ignoring case. If more than one user has the
+     * address, the first found is returned.
+     *
+     * @param email the email address
+     * @return the user, if any
+     */
+    public Optional<User> findByEmail(final String email) {
+        if (userProvider instanceof DefaultUserProvider) {
+            try {
+                return query(email);
+            } catch (final SQLException e) {
+                log.warn("Unable to query users by email address; searching instead", e);
+            }
+        }
+        // An asterisk is a wildcard to the provider
+        if (!email.contains("*") && isEmailSearchSupported()) {
+            try {
+                return search(email);
+            } catch (final UnsupportedOperationException e) {
+                log.debug("The user provider cannot search by email address after all", e);
+            }
+        }
+        return scan(email);
+    }
+
+    private Optional<User> query(final String email) throws SQLException {
+        final String username;
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(FIND_USERNAME_SQL)) {
+            statement.setString(1, email.toLowerCase(Locale.ROOT));
+            statement.setMaxRows(1);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Optional.empty();
+                }
+                username = resultSet.getString("username");
+            }
+        }
+        try {
+            return Optional.of(userManager.getUser(username));
+        } catch (final UserNotFoundException ignored) {
+            return Optional.empty();
+        }
+    }
+
+    private boolean isEmailSearchSupported() {
+        try {
+            return userProvider.isSearchSupported()
+                && userProvider.getSearchFields().contains(EMAIL_FIELD);
+        } catch (final UnsupportedOperationException ignored) {
+            return false;
+        }
+    }
+
+    private Optional<User> search(final String email) {
+        return userProvider.findUsers(Collections.singleton(EMAIL_FIELD), email).stream()
+            // The provider may match more loosely than this does
+            .filter(user -> email.equalsIgnoreCase(user.getEmail()))
+            .findFirst();
+    }
+
+    private Optional<User> scan(final String email) {
+        final Scan scan = new Scan(email);
+        final CompletableFuture<?>[] workers = new CompletableFuture<?>[PARALLELISM];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = CompletableFuture.runAsync(scan::run, executor);
+        }
+        try {
+            CompletableFuture.allOf(workers).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        // Of any matches found at the same time, the first in the provider's order
+        return scan.matches.isEmpty()
+            ? Optional.empty()
+            : Optional.of(scan.matches.firstEntry().getValue());
+    }
+
+    private void adapt(final int size, final long elapsedNanos) {
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (elapsedMillis < TARGET_CHUNK_MILLIS / 2) {
+            chunkSize.compareAndSet(size, Math.min(MAX_CHUNK_SIZE, size * 2));
+        } else if (elapsedMillis > TARGET_CHUNK_MILLIS) {
+            chunkSize.compareAndSet(size, Math.max(MIN_CHUNK_SIZE, size / 2));
+        }
+    }
+
+    /**
+     * Returns the size of the chunks in which users are currently fetched.
+     *
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+        return chunkSize.get();
+    }
+
+    private final class Scan {
+        private final String email;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final NavigableMap<Integer, User> matches = new ConcurrentSkipListMap<>();
+
+        private Scan(final String email) {
+            this.email = email;
+        }
+
+        /**
+         * Chunks are claimed in order, so when one is found to be past the last user, or to
+         * contain a match, every earlier chunk has already been claimed and will be finished.
+         */
+        private void run() {
+            while (!finished.get()) {
+                final int size = chunkSize.get();
+                final int start = nextIndex.getAndAdd(size);
+                final long started = System.nanoTime();
+                final Collection<User> users = userManager.getUsers(start, size);
+                adapt(size, System.nanoTime() - started);
+                if (users.isEmpty()) {
+                    finished.set(true);
+                    return;
+                }
+                int index = start;
+                for (final User user : users) {
+                    if (email.equalsIgnoreCase(user.getEmail())) {
+                        matches.put(index, user);
+                        finished.set(true);
+                        return;
+                    }
+                    index++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * A bounded, least-recently-used cache of the identifiers users enter when requesting a reset to
+ * the username they resolved to, or to the fact that they resolved to no user at all, so that
+ * repeated requests for the same identifier do not reach the user provider.
+ *
+ * <p>Entries are removed when users are created, modified or deleted on this node, and otherwise
+ * expire after a short time; in a cluster, changes made on another node are only seen once the
+ * entries expire.
+ */
+public class PasswordResetIdentifierCache implements UserEventListener {
+
+    // The longest node and domain parts of a JID; more than enough for an email address
+    private static final int MAX_PART_LENGTH = 1023;
+    private final IntSupplier maxSize;
+    private final Supplier<Duration> ttl;
+    private final Supplier<Duration> absentTtl;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Access ordered, so the first entry is always the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Incremented whenever entries are removed because a user changed
+    private long generation;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize   supplies the maximum number of entries to hold; zero disables the cache
+     * @param ttl       supplies how long to cache an identifier that resolved to a user
+     * @param absentTtl supplies how long to cache an identifier that resolved to no user
+     */
+    public PasswordResetIdentifierCache(
+        final IntSupplier maxSize,
+        final Supplier<Duration> ttl,
+        final Supplier<Duration> absentTtl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.absentTtl = absentTtl;
+    }
+
+    /**
+     * Starts listening for changes to users.
+     */
+    public void start() {
+        UserEventDispatcher.addListener(this);
+    }
+
+    /**
+     * Stops listening for changes to users, and discards every entry.
+     */
+    public void stop() {
+        UserEventDispatcher.removeListener(this);
+        clear();
+    }
+
+    /**
+     * Returns whether an identifier could possibly be a username, a JID or an email address. This
+     * is a cheap check, made before any parsing, that rejects identifiers containing whitespace,
+     * control characters or characters allowed in none of them, more than one {@code @}, or
+     * parts that are empty or too long.
+     *
+     * @param identifier the identifier the user entered
+     * @return false if the identifier cannot be resolved to any user
+     */
+    public static boolean isPlausible(final String identifier) {
+        final int at = identifier.indexOf('@');
+        if (at < 0) {
+            if (identifier.isEmpty() || identifier.length() > MAX_PART_LENGTH) {
+                return false;
+            }
+        } else if (at == 0 || at == identifier.length() - 1 || at > MAX_PART_LENGTH
+            || identifier.length() - at - 1 > MAX_PART_LENGTH
+            || identifier.indexOf('@', at + 1) >= 0
+            || identifier.indexOf('/', at + 1) >= 0) {
+            return false;
+        }
+        for (int i = 0; i < identifier.length(); i++) {
+            final char c = identifier.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)
+                || c == '"' || c == ':' || c == '<' || c == '>') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolves an identifier to a user, using the cache if possible. On a miss, the resolver is
+     * called without holding any lock, and the username it finds, if any, is cached.
+     *
+     * @param identifier the identifier the user entered
+     * @param resolver   resolves the identifier to a user, if it matches any
+     * @param loader     loads a user by the cached username
+     * @return the user, or empty if the identifier matches no user
+     */
+    public Optional<User> resolve(
+        final String identifier,
+        final Function<String, Optional<User>> resolver,
+        final Function<String, Optional<User>> loader) {
+        final String key = identifier.toLowerCase(Locale.ROOT);
+        final Entry entry = get(key);
+        if (entry != null) {
+            return entry.username == null ? Optional.empty() : loader.apply(entry.username);
+        }
+        final long resolvedGeneration = getGeneration();
+        final Optional<User> user = resolver.apply(identifier);
+        put(key, user.map(User::getUsername).orElse(null), resolvedGeneration);
+        return user;
+    }
+
+    private synchronized Entry get(final String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.expires.isAfter(Instant.now())) {
+            entries.remove(key);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    private synchronized void put(
+        final String key,
+        final String username,
+        final long resolvedGeneration) {
+        final int max = maxSize.getAsInt();
+        // A user that changed while resolving may have made the result stale
+        if (max > 0 && resolvedGeneration == generation) {
+            final Duration timeToLive = username == null ? absentTtl.get() : ttl.get();
+            entries.put(key, new Entry(username, Instant.now().plus(timeToLive)));
+        }
+        final Iterator<String> iterator = entries.keySet().iterator();
+        while (entries.size() > max && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Removes every entry that resolved to the user, and every entry that resolved to no user and
+     * so might now resolve to them.
+     *
+     * @param username the user that has changed
+     */
+    public synchronized void removeUser(final String username) {
+        generation++;
+        entries.values().removeIf(entry -> entry.username == null
+            || entry.username.equals(username));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void userCreated(final User user, final Map<String, Object> params) {
+        removeUser(user.getUsername());
+    }
+
+    @Override
+    public void userDeleting(final User user, final Map<String, Object> params) {
+        removeUser(user.getUsername());
+    }
+
+    @Override
+    public void userModified(final User user, final Map<String, Object> params) {
+        removeUser(user.getUsername());
+    }
+
+    private static final class Entry {
+        // Null if the identifier resolved to no user
+        private final String username;
+        private final Instant expires;
+
+        private Entry(final String username, final Instant expires) {
+            this.username = username;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenEncoding.Cursor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequest;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestCount;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestPage;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestSummary;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.SqlExceptionSupplier;
+
+/**
+ * Keeps tokens in the ofPasswordResetToken table, fronted by a {@link PasswordResetTokenCache}
+ * and written by a {@link PasswordResetTokenWriter}.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetJdbcTokenStore implements PasswordResetTokenStore {
+
+    static final String INSERT_SQL =
+        "INSERT INTO ofPasswordResetToken (tokenHash, userId, sourceAddress, expires)"
+            + " VALUES (?,?,?,?)";
+    private static final String PURGE_EXPIRED_SQL =
+        "DELETE FROM ofPasswordResetToken WHERE expires < ?";
+    private static final String FIND_USER_SQL =
+        "SELECT userId, expires FROM ofPasswordResetToken WHERE tokenHash = ? AND expires > ?";
+    private static final String DELETE_TOKENS_FOR_USER =
+        "DELETE FROM ofPasswordResetToken WHERE userId = ?";
+    // A single statement that deletes all the user's tokens, if the token is valid
+    private static final String CONSUME_RETURNING_SQL =
+        "DELETE FROM ofPasswordResetToken WHERE userId = (SELECT userId FROM ofPasswordResetToken"
+            + " WHERE tokenHash = ? AND expires > ?) RETURNING userId, tokenHash";
+    private static final String DELETE_TOKEN_SQL =
+        "DELETE FROM ofPasswordResetToken WHERE tokenHash = ?";
+    // Replace the user's token, if any, which is the one in slot 0
+    private static final String UPSERT_ON_CONFLICT_SQL =
+        "INSERT INTO ofPasswordResetToken (tokenHash, userId, sourceAddress, expires, userSlot)"
+            + " VALUES (?,?,?,?,0) ON CONFLICT (userId, userSlot) DO UPDATE"
+            + " SET tokenHash = EXCLUDED.tokenHash, sourceAddress = EXCLUDED.sourceAddress,"
+            + " expires = EXCLUDED.expires";
+    private static final String UPSERT_ON_DUPLICATE_KEY_SQL =
+        "INSERT INTO ofPasswordResetToken (tokenHash, userId, sourceAddress, expires, userSlot)"
+            + " VALUES (?,?,?,?,0) ON DUPLICATE KEY UPDATE"
+            + " tokenHash = VALUES(tokenHash), sourceAddress = VALUES(sourceAddress),"
+            + " expires = VALUES(expires)";
+    private static final String UPSERT_MERGE_SQL =
+        "MERGE INTO ofPasswordResetToken USING (VALUES (CAST(? AS VARBINARY(32)),"
+            + " CAST(? AS VARCHAR(64)), CAST(? AS VARBINARY(16)), CAST(? AS BIGINT)))"
+            + " AS requested (tokenHash, userId, sourceAddress, expires)"
+            + " ON ofPasswordResetToken.userId = requested.userId"
+            + " AND ofPasswordResetToken.userSlot = 0"
+            + " WHEN MATCHED THEN UPDATE SET tokenHash = requested.tokenHash,"
+            + " sourceAddress = requested.sourceAddress, expires = requested.expires"
+            + " WHEN NOT MATCHED THEN INSERT (tokenHash, userId, sourceAddress, expires, userSlot)"
+            + " VALUES (requested.tokenHash, requested.userId, requested.sourceAddress,"
+            + " requested.expires, 0)";
+    private static final String RESET_REQUESTS_SQL =
+        "SELECT tokenHash, userId, sourceAddress, expires FROM ofPasswordResetToken"
+            + " WHERE expires > ?";
+    private static final String USER_ID_PREFIX_SQL = " AND userId LIKE ? ESCAPE '!'";
+    private static final String SOURCE_ADDRESS_SQL = " AND sourceAddress = ?";
+    private static final String EXPIRES_FROM_SQL = " AND expires >= ?";
+    private static final String EXPIRES_TO_SQL = " AND expires < ?";
+    // Expanded rather than a row value comparison, as not every database supports those
+    private static final String AFTER_CURSOR_SQL = " AND (userId > ? OR (userId = ?"
+        + " AND (expires > ? OR (expires = ? AND tokenHash > ?))))";
+    private static final String RESET_REQUESTS_ORDER_SQL = " ORDER BY userId, expires, tokenHash";
+    private static final String OUTSTANDING_COUNT_SQL =
+        "SELECT COUNT(*) FROM ofPasswordResetToken WHERE expires > ?";
+    private static final String SOURCE_ADDRESS_COUNTS_SQL =
+        "SELECT sourceAddress, COUNT(*) FROM ofPasswordResetToken WHERE expires > ?"
+            + " GROUP BY sourceAddress ORDER BY COUNT(*) DESC";
+    private static final String USER_COUNTS_SQL =
+        "SELECT userId, COUNT(*) FROM ofPasswordResetToken WHERE expires > ?"
+            + " GROUP BY userId HAVING COUNT(*) > 1 ORDER BY COUNT(*) DESC";
+    // Before database version 3, tokens were stored in plain text in what is now this table
+    private static final String LEGACY_TABLE = "ofPasswordResetTokenLegacy";
+    private static final String LEGACY_TOKENS_SQL =
+        "SELECT userId, token, sourceAddress, expires FROM " + LEGACY_TABLE + " WHERE expires > ?";
+    private static final String DROP_LEGACY_TABLE_SQL = "DROP TABLE " + LEGACY_TABLE;
+    private final SqlExceptionSupplier<Connection> connectionSupplier;
+    private final PasswordResetTokenCache tokenCache;
+    private final PasswordResetTokenWriter tokenWriter;
+    private volatile Dialect dialect;
+
+    public PasswordResetJdbcTokenStore(final SqlExceptionSupplier<Connection> connectionSupplier) {
+        this.connectionSupplier = connectionSupplier;
+        this.tokenCache = new PasswordResetTokenCache(PasswordResetJdbcTokenStore::getCacheSize);
+        this.tokenWriter = new PasswordResetTokenWriter(
+            connectionSupplier,
+            this::getInsertSql,
+            PasswordResetPlugin.INSERT_BATCH_SIZE::getValue,
+            PasswordResetPlugin.INSERT_BATCH_WINDOW::getValue);
+    }
+
+    private static int getCacheSize() {
+        // Otherwise a token consumed on another node would still be found in this node's cache
+        return ClusterManager.isClusteringEnabled()
+            ? 0
+            : PasswordResetPlugin.TOKEN_CACHE_SIZE.getValue();
+    }
+
+    /**
+     * Persists a hash of the token, batched with those of any concurrent requests by the
+     * {@link PasswordResetTokenWriter}. With {@link PasswordResetPlugin#ONE_TOKEN_PER_USER}, the
+     * token replaces any earlier one for the user, using the database's own form of upsert.
+     */
+    @Override
+    public void store(
+        final String token,
+        final String userId,
+        final String sourceAddress,
+        final Instant expires) throws SQLException {
+        store(token, userId, sourceAddress, expires, null);
+    }
+
+    /**
+     * Persists a hash of the token as {@link #store(String, String, String, Instant)}, and adds
+     * the email that sends it to the {@link PasswordResetOutbox} in the same transaction.
+     *
+     * @param token         the token
+     * @param userId        the user the token belongs to
+     * @param sourceAddress the address from which the token was requested
+     * @param expires       when the token expires
+     * @param sealedToken   the token as sealed by {@link PasswordResetOutbox#seal(String)}, or
+     *                      null to add no email
+     * @throws SQLException if something untoward happens
+     */
+    public void store(
+        final String token,
+        final String userId,
+        final String sourceAddress,
+        final Instant expires,
+        final String sealedToken) throws SQLException {
+        tokenWriter.write(token, userId, sourceAddress, expires, sealedToken);
+        if (PasswordResetPlugin.ONE_TOKEN_PER_USER.getValue()) {
+            // The user's previous token has just been replaced
+            tokenCache.removeUser(userId);
+        }
+        tokenCache.put(token, userId, expires);
+    }
+
+    private String getInsertSql(final Connection connection) throws SQLException {
+        return PasswordResetPlugin.ONE_TOKEN_PER_USER.getValue()
+            ? getDialect(connection).upsertSql
+            : INSERT_SQL;
+    }
+
+    /**
+     * Tokens that are still in the cache and tokens still waiting to be written are resolved
+     * without touching the database.
+     */
+    @Override
+    public Optional<String> findUserId(final String token) throws SQLException {
+        final Optional<String> cachedUserId = tokenCache.get(token);
+        if (cachedUserId.isPresent()) {
+            return cachedUserId;
+        }
+        final Optional<String> pendingUserId = tokenWriter.getPending(token);
+        if (pendingUserId.isPresent()) {
+            return pendingUserId;
+        }
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(FIND_USER_SQL)) {
+            statement.setBytes(1, PasswordResetTokenEncoding.hash(token));
+            statement.setLong(2, System.currentTimeMillis());
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    final String userId = resultSet.getString("userId");
+                    tokenCache.put(token, userId,
+                        Instant.ofEpochMilli(resultSet.getLong("expires")));
+                    return Optional.of(userId);
+                } else {
+                    return Optional.empty();
+                }
+            }
+        }
+    }
+
+    /**
+     * On PostgreSQL the token is consumed with a single DELETE ... RETURNING statement. Elsewhere
+     * the token is looked up and then deleted in a transaction; deleting it locks the row, so of
+     * any concurrent requests only the first to delete it finds it there. All the user's tokens
+     * are deleted even with {@link PasswordResetPlugin#ONE_TOKEN_PER_USER}, as tokens issued
+     * before that was set are not replaced by later ones.
+     */
+    @Override
+    public Optional<String> consume(final String token) throws SQLException {
+        // Otherwise a token that has only just been issued would not be found
+        final Optional<String> pendingUserId = tokenWriter.getPending(token);
+        if (pendingUserId.isPresent()) {
+            tokenWriter.awaitPending(pendingUserId.get());
+        }
+        final byte[] tokenHash = PasswordResetTokenEncoding.hash(token);
+        final Optional<String> userId;
+        try (final Connection connection = connectionSupplier.get()) {
+            if (getDialect(connection) == Dialect.POSTGRESQL) {
+                userId = consumeReturning(connection, tokenHash);
+            } else {
+                userId = consumeInTransaction(connection, tokenHash);
+            }
+        }
+        userId.ifPresent(tokenCache::removeUser);
+        return userId;
+    }
+
+    private Dialect getDialect(final Connection connection) throws SQLException {
+        if (dialect == null) {
+            dialect = Dialect.of(connection.getMetaData().getDatabaseProductName());
+        }
+        return dialect;
+    }
+
+    private static Optional<String> consumeReturning(
+        final Connection connection,
+        final byte[] tokenHash) throws SQLException {
+        try (final PreparedStatement statement =
+            connection.prepareStatement(CONSUME_RETURNING_SQL)) {
+            statement.setBytes(1, tokenHash);
+            statement.setLong(2, System.currentTimeMillis());
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    // Only if this statement, rather than a concurrent one, deleted the token
+                    if (Arrays.equals(tokenHash, resultSet.getBytes("tokenHash"))) {
+                        return Optional.of(resultSet.getString("userId"));
+                    }
+                }
+                return Optional.empty();
+            }
+        }
+    }
+
+    private static Optional<String> consumeInTransaction(
+        final Connection connection,
+        final byte[] tokenHash) throws SQLException {
+        connection.setAutoCommit(false);
+        try (final PreparedStatement find = connection.prepareStatement(FIND_USER_SQL);
+            final PreparedStatement deleteToken = connection.prepareStatement(DELETE_TOKEN_SQL);
+            final PreparedStatement deleteUser =
+                connection.prepareStatement(DELETE_TOKENS_FOR_USER)) {
+            find.setBytes(1, tokenHash);
+            find.setLong(2, System.currentTimeMillis());
+            final String userId;
+            try (final ResultSet resultSet = find.executeQuery()) {
+                if (!resultSet.next()) {
+                    connection.rollback();
+                    return Optional.empty();
+                }
+                userId = resultSet.getString("userId");
+            }
+            deleteToken.setBytes(1, tokenHash);
+            if (deleteToken.executeUpdate() == 0) {
+                // A concurrent request consumed it first
+                connection.rollback();
+                return Optional.empty();
+            }
+            deleteUser.setString(1, userId);
+            deleteUser.executeUpdate();
+            connection.commit();
+            return Optional.of(userId);
+        } catch (final SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public void deleteUser(final String userId) throws SQLException {
+        // Otherwise a token could be written after it was supposed to have been deleted
+        tokenWriter.awaitPending(userId);
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement
+                = connection.prepareStatement(DELETE_TOKENS_FOR_USER)) {
+            statement.setString(1, userId);
+            statement.execute();
+        }
+        tokenCache.removeUser(userId);
+    }
+
+    /**
+     * Expired tokens are ignored by all other queries, so this is only needed to stop the table
+     * growing.
+     */
+    @Override
+    public int purgeExpired() throws SQLException {
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(PURGE_EXPIRED_SQL)) {
+            statement.setLong(1, System.currentTimeMillis());
+            final int updateCount = statement.executeUpdate();
+            log.debug("Purged {} records", updateCount);
+            return updateCount;
+        }
+    }
+
+    /**
+     * Pages are found by position in the listing order rather than by counting rows, so each page
+     * costs the same to find however deep it is, and is served by the (userId, expires) index.
+     */
+    @Override
+    @SuppressFBWarnings(
+        value = {"SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING"},
+        justification = "The statement is built only from constants")
+    public ResetRequestPage getResetRequests(
+        final ResetRequestFilter filter,
+        final String cursor,
+        final int pageSize) throws SQLException {
+        final StringBuilder sql = new StringBuilder(RESET_REQUESTS_SQL);
+        final List<Object> parameters = new ArrayList<>();
+        parameters.add(System.currentTimeMillis());
+        if (filter.getUserIdPrefix() != null && !filter.getUserIdPrefix().isEmpty()) {
+            sql.append(USER_ID_PREFIX_SQL);
+            parameters.add(filter.getUserIdPrefix().replaceAll("[!%_]", "!$0") + '%');
+        }
+        if (filter.getSourceAddress() != null && !filter.getSourceAddress().isEmpty()) {
+            sql.append(SOURCE_ADDRESS_SQL);
+            parameters.add(PasswordResetTokenEncoding.packAddress(filter.getSourceAddress()));
+        }
+        if (filter.getExpiresFrom() != null) {
+            sql.append(EXPIRES_FROM_SQL);
+            parameters.add(filter.getExpiresFrom().toEpochMilli());
+        }
+        if (filter.getExpiresTo() != null) {
+            sql.append(EXPIRES_TO_SQL);
+            parameters.add(filter.getExpiresTo().toEpochMilli());
+        }
+        final Optional<Cursor> after = Cursor.decode(cursor);
+        if (after.isPresent()) {
+            sql.append(AFTER_CURSOR_SQL);
+            parameters.add(after.get().getUserId());
+            parameters.add(after.get().getUserId());
+            parameters.add(after.get().getExpires());
+            parameters.add(after.get().getExpires());
+            parameters.add(after.get().getTokenHash());
+        }
+        sql.append(RESET_REQUESTS_ORDER_SQL);
+
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i));
+            }
+            // One more than a page, to find out if there is a next page
+            statement.setMaxRows(pageSize + 1);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                final List<ResetRequest> resetRequests = new ArrayList<>();
+                Cursor last = null;
+                boolean morePages = false;
+                while (resultSet.next()) {
+                    if (resetRequests.size() >= pageSize) {
+                        morePages = true;
+                        break;
+                    }
+                    final String userId = resultSet.getString("userId");
+                    final long expires = resultSet.getLong("expires");
+                    resetRequests.add(new ResetRequest(
+                        userId,
+                        PasswordResetTokenEncoding.unpackAddress(
+                            resultSet.getBytes("sourceAddress")),
+                        new Date(expires)));
+                    last = new Cursor(userId, expires, resultSet.getBytes("tokenHash"));
+                }
+                return new ResetRequestPage(resetRequests,
+                    morePages && last != null ? last.encode() : "");
+            }
+        }
+    }
+
+    @Override
+    public ResetRequestSummary summarise(final int rows) throws SQLException {
+        final Instant now = Instant.now();
+        try (final Connection connection = connectionSupplier.get()) {
+            final long outstandingTokens;
+            try (final PreparedStatement statement =
+                     connection.prepareStatement(OUTSTANDING_COUNT_SQL)) {
+                statement.setLong(1, now.toEpochMilli());
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    outstandingTokens = resultSet.next() ? resultSet.getLong(1) : 0;
+                }
+            }
+            final List<ResetRequestCount> sourceAddressCounts = new ArrayList<>();
+            try (final PreparedStatement statement =
+                     connection.prepareStatement(SOURCE_ADDRESS_COUNTS_SQL)) {
+                statement.setLong(1, now.toEpochMilli());
+                statement.setMaxRows(rows);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        sourceAddressCounts.add(new ResetRequestCount(
+                            PasswordResetTokenEncoding.unpackAddress(resultSet.getBytes(1)),
+                            resultSet.getLong(2)));
+                    }
+                }
+            }
+            final List<ResetRequestCount> userCounts = new ArrayList<>();
+            try (final PreparedStatement statement =
+                     connection.prepareStatement(USER_COUNTS_SQL)) {
+                statement.setLong(1, now.toEpochMilli());
+                statement.setMaxRows(rows);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        userCounts.add(
+                            new ResetRequestCount(resultSet.getString(1), resultSet.getLong(2)));
+                    }
+                }
+            }
+            return new ResetRequestSummary(
+                outstandingTokens, sourceAddressCounts, userCounts, Date.from(now));
+        }
+    }
+
+    /**
+     * Moves any unexpired tokens left over from before database version 3, when tokens were
+     * stored in plain text, in to the current table and then drops the old table. Does nothing
+     * if there is no old table.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    public void migrateLegacyTokens() throws SQLException {
+        try (final Connection connection = connectionSupplier.get()) {
+            if (!tableExists(connection, LEGACY_TABLE)) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            try (final PreparedStatement select = connection.prepareStatement(LEGACY_TOKENS_SQL);
+                final PreparedStatement insert = connection.prepareStatement(INSERT_SQL);
+                final Statement drop = connection.createStatement()) {
+                select.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                int migrated = 0;
+                try (final ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        insert.setBytes(1,
+                            PasswordResetTokenEncoding.hash(resultSet.getString("token")));
+                        insert.setString(2, resultSet.getString("userId"));
+                        insert.setBytes(3, PasswordResetTokenEncoding.packAddress(
+                            resultSet.getString("sourceAddress")));
+                        insert.setLong(4, resultSet.getTimestamp("expires").getTime());
+                        insert.addBatch();
+                        migrated++;
+                    }
+                }
+                if (migrated > 0) {
+                    insert.executeBatch();
+                }
+                drop.execute(DROP_LEGACY_TABLE_SQL);
+                connection.commit();
+                log.info("Migrated {} password reset tokens to the current table", migrated);
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static boolean tableExists(final Connection connection, final String tableName)
+        throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        // Databases differ in how they store the case of unquoted names
+        for (final String name : new String[] {tableName,
+            tableName.toUpperCase(Locale.ENGLISH), tableName.toLowerCase(Locale.ENGLISH)}) {
+            try (final ResultSet resultSet = metaData.getTables(null, null, name, null)) {
+                if (resultSet.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public long getCacheHits() {
+        return tokenCache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return tokenCache.getMisses();
+    }
+
+    public long getInsertBatchCount() {
+        return tokenWriter.getBatchCount();
+    }
+
+    public double getAverageInsertBatchSize() {
+        return tokenWriter.getAverageBatchSize();
+    }
+
+    public int getLargestInsertBatchSize() {
+        return tokenWriter.getLargestBatchSize();
+    }
+
+    public Duration getAverageInsertCommitLatency() {
+        return tokenWriter.getAverageCommitLatency();
+    }
+
+    private enum Dialect {
+        POSTGRESQL(UPSERT_ON_CONFLICT_SQL),
+        MYSQL(UPSERT_ON_DUPLICATE_KEY_SQL),
+        OTHER(UPSERT_MERGE_SQL);
+
+        private final String upsertSql;
+
+        Dialect(final String upsertSql) {
+            this.upsertSql = upsertSql;
+        }
+
+        private static Dialect of(final String databaseProductName) {
+            if ("PostgreSQL".equalsIgnoreCase(databaseProductName)) {
+                return POSTGRESQL;
+            } else if ("MySQL".equalsIgnoreCase(databaseProductName)
+                || "MariaDB".equalsIgnoreCase(databaseProductName)) {
+                return MYSQL;
+            } else {
+                return OTHER;
+            }
+        }
+    }
+}
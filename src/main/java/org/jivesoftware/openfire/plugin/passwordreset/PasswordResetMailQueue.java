@@ -0,0 +1,337 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * Sends reset emails on a small pool of threads of its own, so that rendering them and handing
+ * them to the mail server does not hold up the request that asked for them.
+ *
+ * <p>Each thread takes the emails waiting, or that arrive within the batch window, up to the
+ * maximum batch size, and sends them together over a single connection to the mail server.
+ *
+ * <p>The queue is bounded; once it is full, or before the queue has been started, emails are
+ * sent by the requesting thread instead, so none are dropped. When the queue is stopped, emails
+ * already queued are sent before it returns, for up to the drain timeout; threads still sending
+ * after that are interrupted.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetMailQueue {
+
+    // How often idle threads check whether the queue is stopping
+    private static final long POLL_MILLIS = 100;
+    // How long stopping waits for threads still sending after the drain timeout to be interrupted
+    private static final long INTERRUPT_MILLIS = 1000;
+    private final PasswordResetMailer passwordResetMailer;
+    private final IntSupplier capacity;
+    private final IntSupplier threadCount;
+    private final Supplier<Duration> drainTimeout;
+    private final IntSupplier maxBatchSize;
+    private final Supplier<Duration> batchWindow;
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder sentByRequesterCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder deliveredCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder sendNanos = new LongAdder();
+    private final LongAdder deliveryNanos = new LongAdder();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile BlockingQueue<Mail> queue;
+    private volatile boolean stopping;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param passwordResetMailer renders and sends the emails
+     * @param capacity            supplies, when started, the most emails that may wait to be sent
+     * @param threadCount         supplies, when started, the number of threads sending emails
+     * @param drainTimeout        supplies how long stopping waits for queued emails to be sent
+     * @param maxBatchSize        supplies the most emails to send over one connection
+     * @param batchWindow         supplies how long to wait for more emails to join a batch
+     */
+    public PasswordResetMailQueue(
+        final PasswordResetMailer passwordResetMailer,
+        final IntSupplier capacity,
+        final IntSupplier threadCount,
+        final Supplier<Duration> drainTimeout,
+        final IntSupplier maxBatchSize,
+        final Supplier<Duration> batchWindow) {
+        this.passwordResetMailer = passwordResetMailer;
+        this.capacity = capacity;
+        this.threadCount = threadCount;
+        this.drainTimeout = drainTimeout;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Starts the threads that send queued emails.
+     */
+    public synchronized void start() {
+        final BlockingQueue<Mail> started = new LinkedBlockingQueue<>(capacity.getAsInt());
+        stopping = false;
+        queue = started;
+        final int count = threadCount.getAsInt();
+        for (int i = 1; i <= count; i++) {
+            final Thread thread = new Thread(() -> work(started), "password-reset-mail-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Stops accepting emails, and waits for those already queued to be sent. If they have not
+     * been sent within the drain timeout, the threads sending them are interrupted, and those
+     * that remain queued are reported.
+     */
+    public synchronized void stop() {
+        final BlockingQueue<Mail> stopped = queue;
+        if (stopped == null) {
+            return;
+        }
+        stopping = true;
+        final long deadline = System.nanoTime() + drainTimeout.get().toNanos();
+        try {
+            for (final Thread thread : threads) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+                }
+            }
+        } catch (final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        // Threads must not go on sending once the plugin has been unloaded
+        interrupt(threads);
+        threads.clear();
+        queue = null;
+        if (!stopped.isEmpty()) {
+            log.error("{} queued password reset emails were not sent", stopped.size());
+        }
+    }
+
+    private static void interrupt(final List<Thread> threads) {
+        final List<Thread> alive = new ArrayList<>();
+        for (final Thread thread : threads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+                alive.add(thread);
+            }
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INTERRUPT_MILLIS);
+        try {
+            for (final Thread thread : alive) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+                }
+            }
+        } catch (final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        for (final Thread thread : alive) {
+            if (thread.isAlive()) {
+                log.warn("{} is still sending password reset emails", thread.getName());
+            }
+        }
+    }
+
+    /**
+     * Queues a password reset email to be sent.
+     *
+     * @param user  the user to whom the reset should be sent.
+     * @param token the token used to identify the request
+     */
+    public void submit(final User user, final String token) {
+        final Mail mail = new Mail(user, token);
+        final BlockingQueue<Mail> current = queue;
+        if (current != null && !stopping && current.offer(mail)) {
+            // If the queue began stopping meanwhile, its threads may already have finished
+            if (!stopping || !current.remove(mail)) {
+                return;
+            }
+        }
+        sentByRequesterCount.increment();
+        send(Collections.singletonList(mail));
+    }
+
+    private void work(final BlockingQueue<Mail> from) {
+        try {
+            while (true) {
+                final Mail first = from.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (stopping) {
+                        return;
+                    }
+                    continue;
+                }
+                final List<Mail> batch = new ArrayList<>();
+                batch.add(first);
+                try {
+                    fill(from, batch);
+                } finally {
+                    send(batch);
+                }
+            }
+        } catch (final InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void fill(final BlockingQueue<Mail> from, final List<Mail> batch)
+        throws InterruptedException {
+        final int max = maxBatchSize.getAsInt();
+        final long deadline = System.nanoTime() + batchWindow.get().toNanos();
+        while (batch.size() < max) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || stopping) {
+                final Mail next = from.poll();
+                if (next == null) {
+                    return;
+                }
+                batch.add(next);
+            } else {
+                // A slice at a time, so that stopping need not wait for the whole window
+                final Mail next = from.poll(
+                    Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS)),
+                    TimeUnit.NANOSECONDS);
+                if (next != null) {
+                    batch.add(next);
+                }
+            }
+        }
+    }
+
+    private void send(final List<Mail> batch) {
+        final long started = System.nanoTime();
+        final List<MimeMessage> messages = new ArrayList<>(batch.size());
+        for (final Mail mail : batch) {
+            waitNanos.add(started - mail.queued);
+            try {
+                passwordResetMailer.createMessage(mail.user, mail.token)
+                    .ifPresentOrElse(messages::add, sentCount::increment);
+            } catch (final MessagingException | RuntimeException e) {
+                failedCount.increment();
+                log.error("Unable to create a password reset email to {}",
+                    mail.user.getUsername(), e);
+            }
+        }
+        if (!messages.isEmpty()) {
+            final long delivering = System.nanoTime();
+            try {
+                passwordResetMailer.sendMessages(messages);
+                sentCount.add(messages.size());
+                deliveredCount.add(messages.size());
+            } catch (final MessagingException | RuntimeException e) {
+                failedCount.add(messages.size());
+                log.error("Unable to send {} password reset emails", messages.size(), e);
+            } finally {
+                batchCount.increment();
+                deliveryNanos.add(System.nanoTime() - delivering);
+            }
+        }
+        sendNanos.add(System.nanoTime() - started);
+    }
+
+    /**
+     * Returns the number of emails waiting to be sent.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        final BlockingQueue<Mail> current = queue;
+        return current == null ? 0 : current.size();
+    }
+
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * Returns the number of emails sent by the requesting thread, because the queue was full or
+     * not running.
+     *
+     * @return the number of emails not queued
+     */
+    public long getSentByRequesterCount() {
+        return sentByRequesterCount.sum();
+    }
+
+    /**
+     * Returns how long, on average, emails waited in the queue before being sent.
+     *
+     * @return the average wait, or null if no email has been sent
+     */
+    public Duration getAverageWait() {
+        return average(waitNanos);
+    }
+
+    /**
+     * Returns how long, on average, it took to render an email and send it to the mail server.
+     *
+     * @return the average send time, or null if no email has been sent
+     */
+    public Duration getAverageSend() {
+        return average(sendNanos);
+    }
+
+    private Duration average(final LongAdder nanos) {
+        final long count = sentCount.sum() + failedCount.sum();
+        return count == 0 ? null : Duration.ofNanos(nanos.sum() / count);
+    }
+
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * Returns the average number of emails sent to the mail server at once.
+     *
+     * @return the average batch size, or zero if none has been sent
+     */
+    public double getAverageBatchSize() {
+        final long batches = batchCount.sum();
+        return batches == 0 ? 0 : (double) deliveredCount.sum() / batches;
+    }
+
+    /**
+     * Returns the number of emails the mail server accepted for each second spent sending to it.
+     *
+     * @return the delivery throughput, or zero if none has been sent
+     */
+    public double getDeliveryThroughput() {
+        final long nanos = deliveryNanos.sum();
+        return nanos == 0 ? 0 : deliveredCount.sum() * 1e9 / nanos;
+    }
+
+    private static final class Mail {
+        private final User user;
+        private final String token;
+        private final long queued = System.nanoTime();
+
+        private Mail(final User user, final String token) {
+            this.user = user;
+            this.token = token;
+        }
+    }
+}
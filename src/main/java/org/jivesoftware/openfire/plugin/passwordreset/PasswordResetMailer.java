@@ -1,35 +1,128 @@
 package org.jivesoftware.openfire.plugin.passwordreset;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.util.Locale;
-import java.util.Set;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import lombok.extern.slf4j.Slf4j;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.util.EmailService;
+import org.jivesoftware.util.SystemProperty;
 
+@Slf4j
 @SuppressFBWarnings({"EI_EXPOSE_REP2"})
 public class PasswordResetMailer {
 
-    // Avoid sending emails to domains that are "special"
-    // https://en.wikipedia.org/wiki/Example.com
-    // https://en.wikipedia.org/wiki/.local
-    // https://en.wikipedia.org/wiki/Top-level_domain#Reserved_domains
-    private static final Set<String> IGNORED_DOMAINS = Set.of(
-            "example.com",
-            "example.net",
-            "example.org",
-            "example.edu",
-            "local",
-            "example",
-            "invalid",
-            "localhost",
-            "test"
-        );
-
+    private static final String ENCODING = StandardCharsets.UTF_8.name();
+    private static final String LOGO_CONTENT_ID = "<logo>";
+    private static final String DEFAULT_LOGO_TYPE = "application/octet-stream";
+    private static final List<SystemProperty<String>> TEMPLATE_PROPERTIES = List.of(
+        PasswordResetPlugin.SUBJECT,
+        PasswordResetPlugin.BODY,
+        PasswordResetPlugin.HTML_BODY,
+        PasswordResetPlugin.LOGO,
+        PasswordResetPlugin.SERVER,
+        PasswordResetPlugin.SENDER_NAME,
+        PasswordResetPlugin.SENDER_ADDRESS
+    );
     private final EmailService emailService;
+    private final PasswordResetDomainSuppressor domainSuppressor;
+    private final PasswordResetBounceSuppressor bounceSuppressor;
+    private final Consumer<String> templateListener = value -> compileTemplates();
+    private volatile Templates templates;
 
-    public PasswordResetMailer(final EmailService emailService) {
+    public PasswordResetMailer(
+        final EmailService emailService,
+        final PasswordResetDomainSuppressor domainSuppressor,
+        final PasswordResetBounceSuppressor bounceSuppressor) {
         this.emailService = emailService;
+        this.domainSuppressor = domainSuppressor;
+        this.bounceSuppressor = bounceSuppressor;
+        compileTemplates();
+    }
+
+    /**
+     * Follows changes to the email subject, bodies and logo, and to the server and sender
+     * addresses, recompiling the templates when any of them change.
+     */
+    public void start() {
+        TEMPLATE_PROPERTIES.forEach(property -> property.addListener(templateListener));
+        compileTemplates();
+    }
+
+    /**
+     * Stops following changes to the templates.
+     */
+    public void stop() {
+        TEMPLATE_PROPERTIES.forEach(property -> property.removeListener(templateListener));
+    }
+
+    private void compileTemplates() {
+        final String htmlBody = PasswordResetPlugin.HTML_BODY.getValue();
+        final boolean html = htmlBody != null && !htmlBody.isEmpty();
+        templates = new Templates(
+            PasswordResetTemplate.compile(PasswordResetPlugin.SUBJECT.getValue()),
+            PasswordResetTemplate.compile(PasswordResetPlugin.BODY.getValue()),
+            html ? PasswordResetTemplate.compileHtml(htmlBody) : null,
+            html ? loadLogo() : null,
+            createUrlPrefix(),
+            createSender());
+    }
+
+    private static String createUrlPrefix() {
+        final String urlPrefix = PasswordResetPlugin.SERVER.getValue() + "/change-password?token=";
+        try {
+            return URI.create(urlPrefix).toASCIIString();
+        } catch (final IllegalArgumentException e) {
+            log.warn("The password reset server {} is not a valid URI",
+                PasswordResetPlugin.SERVER.getValue(), e);
+            return urlPrefix;
+        }
+    }
+
+    private static InternetAddress createSender() {
+        try {
+            return new InternetAddress(PasswordResetPlugin.SENDER_ADDRESS.getValue(),
+                PasswordResetPlugin.SENDER_NAME.getValue(), ENCODING);
+        } catch (final UnsupportedEncodingException e) {
+            log.warn("Unable to encode the password reset sender address", e);
+            return null;
+        }
+    }
+
+    private static DataSource loadLogo() {
+        final String logo = PasswordResetPlugin.LOGO.getValue();
+        if (logo == null || logo.isEmpty()) {
+            return null;
+        }
+        final Path path = PasswordResetPlugin.resolveHomePath(logo);
+        try {
+            final String contentType = URLConnection.guessContentTypeFromName(logo);
+            return new ByteArrayDataSource(Files.readAllBytes(path),
+                contentType == null ? DEFAULT_LOGO_TYPE : contentType);
+        } catch (final IOException e) {
+            log.warn("Unable to read the password reset email logo {}", path, e);
+            return null;
+        }
     }
 
     /**
@@ -39,37 +132,128 @@ public class PasswordResetMailer {
      * @param token the token used to identify the request
      */
     public void sendEmail(final User user, final String token) {
-        final String email = user.getEmail();
-        // Ignore empty email address
-        if (email == null || email.isEmpty()) {
-            return;
+        try {
+            createMessage(user, token).ifPresent(emailService::sendMessage);
+        } catch (final MessagingException e) {
+            log.error("Unable to create the password reset email for {}", user.getUsername(), e);
+        }
+    }
+
+    /**
+     * Creates, but does not send, a password reset email, so that a number of them can be sent
+     * together with {@link #sendMessages(Collection)}. Only the recipient and the placeholders are
+     * filled in per email; everything else is prepared when the templates change.
+     *
+     * @param user  the user to whom the reset should be sent.
+     * @param token the token used to identify the request
+     * @return the email, or empty if none should be sent to the user
+     * @throws MessagingException if the email could not be created
+     */
+    public Optional<MimeMessage> createMessage(final User user, final String token)
+        throws MessagingException {
+        if (isIgnored(user.getEmail())) {
+            return Optional.empty();
+        }
+
+        final Templates current = templates;
+        if (current.sender == null) {
+            throw new MessagingException("Unable to encode the sender address");
         }
+        final String url = current.urlPrefix + token;
+        final String subject = current.subject.render(user, url);
+        final String body = current.body.render(user, url);
 
-        // Ignore email addresses from (English) special domains
-        final String lowerCaseEmail = email.toLowerCase(Locale.ENGLISH);
-        for (final String ignoredDomain : IGNORED_DOMAINS) {
-            if (lowerCaseEmail.endsWith(ignoredDomain)) {
-                return;
-            }
+        // As EmailService.sendMessage would create it
+        final MimeMessage message = emailService.createMimeMessage();
+        try {
+            message.setFrom(current.sender);
+            message.setRecipient(Message.RecipientType.TO,
+                new InternetAddress(user.getEmail(), user.getName(), ENCODING));
+        } catch (final UnsupportedEncodingException e) {
+            throw new MessagingException("Unable to encode an address", e);
         }
+        message.setHeader("Content-Transfer-Encoding", "8bit");
+        message.setSubject(subject.replace("\n", ""), ENCODING);
+        if (current.htmlBody == null) {
+            message.setText(body, ENCODING);
+        } else {
+            message.setContent(createAlternatives(current, body,
+                current.htmlBody.render(user, url)));
+        }
+        message.setSentDate(new Date());
+        return Optional.of(message);
+    }
+
+    private static MimeMultipart createAlternatives(
+        final Templates current, final String body, final String htmlBody)
+        throws MessagingException {
+        final MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(body, ENCODING);
+        final MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setText(htmlBody, ENCODING, "html");
 
-        final URI uri = URI.create(PasswordResetPlugin.SERVER.getValue()
-            + "/change-password?token=" + token);
-        final String subject = substitute(PasswordResetPlugin.SUBJECT.getValue(), user, uri);
-        final String body = substitute(PasswordResetPlugin.BODY.getValue(), user, uri);
+        final MimeMultipart alternatives = new MimeMultipart("alternative");
+        alternatives.addBodyPart(textPart);
+        if (current.logo == null) {
+            alternatives.addBodyPart(htmlPart);
+        } else {
+            // The logo is read once, but each email needs parts of its own
+            final MimeBodyPart logoPart = new MimeBodyPart();
+            logoPart.setDataHandler(new DataHandler(current.logo));
+            logoPart.setContentID(LOGO_CONTENT_ID);
+            logoPart.setDisposition(Part.INLINE);
+            final MimeMultipart related = new MimeMultipart("related");
+            related.addBodyPart(htmlPart);
+            related.addBodyPart(logoPart);
+            final MimeBodyPart relatedPart = new MimeBodyPart();
+            relatedPart.setContent(related);
+            alternatives.addBodyPart(relatedPart);
+        }
+        return alternatives;
+    }
 
-        emailService.sendMessage(user.getName(), email,
-            PasswordResetPlugin.SENDER_NAME.getValue(),
-            PasswordResetPlugin.SENDER_ADDRESS.getValue(),
-            subject, body, null);
+    /**
+     * Sends a number of emails over a single connection to the mail server, returning once they
+     * have been sent.
+     *
+     * @param messages the emails
+     * @throws MessagingException if the emails could not be sent
+     */
+    public void sendMessages(final Collection<MimeMessage> messages) throws MessagingException {
+        emailService.sendMessagesImmediately(messages);
     }
 
-    private String substitute(
-        final String stringToSubstitute, final User user, final URI uri) {
-        return stringToSubstitute.replace("${url}", uri.toASCIIString())
-            .replace("${userId}", user.getUsername())
-            .replace("${userName}", user.getName())
-            .replace("${userEmail}", user.getEmail());
+    private boolean isIgnored(final String email) {
+        // Ignore empty email address
+        if (email == null || email.isEmpty()) {
+            return true;
+        }
+
+        // Ignore email addresses from suppressed domains, or that recently bounced
+        return domainSuppressor.isSuppressed(email) || bounceSuppressor.isSuppressed(email);
     }
 
+    private static final class Templates {
+        private final PasswordResetTemplate subject;
+        private final PasswordResetTemplate body;
+        private final PasswordResetTemplate htmlBody;
+        private final DataSource logo;
+        private final String urlPrefix;
+        private final InternetAddress sender;
+
+        private Templates(
+            final PasswordResetTemplate subject,
+            final PasswordResetTemplate body,
+            final PasswordResetTemplate htmlBody,
+            final DataSource logo,
+            final String urlPrefix,
+            final InternetAddress sender) {
+            this.subject = subject;
+            this.body = body;
+            this.htmlBody = htmlBody;
+            this.logo = logo;
+            this.urlPrefix = urlPrefix;
+            this.sender = sender;
+        }
+    }
 }
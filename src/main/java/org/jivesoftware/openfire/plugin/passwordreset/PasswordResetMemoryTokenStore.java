@@ -0,0 +1,365 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenEncoding.Cursor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequest;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestCount;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestPage;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestSummary;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.SqlExceptionSupplier;
+
+/**
+ * Keeps tokens in memory, trading durability for speed; suitable only for a single node. Tokens
+ * are indexed by hash and by user, and are expired by a {@link PasswordResetTimingWheel} rather
+ * than by searching for them.
+ *
+ * <p>If snapshots are enabled, the tokens in the database are loaded (and removed from the
+ * database) when the store starts, and the tokens in memory are written to the database when it
+ * stops. Tokens are lost if the server stops without stopping the store.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetMemoryTokenStore implements PasswordResetTokenStore {
+
+    private static final Duration TICK = Duration.ofSeconds(1);
+    private static final String SNAPSHOT_SELECT_SQL =
+        "SELECT tokenHash, userId, sourceAddress, expires FROM ofPasswordResetToken"
+            + " WHERE expires > ?";
+    private static final String SNAPSHOT_CLEAR_SQL = "DELETE FROM ofPasswordResetToken";
+    private static final Comparator<Entry> LISTING_ORDER = Comparator
+        .comparing((Entry entry) -> entry.userId)
+        .thenComparingLong(entry -> entry.expires)
+        .thenComparing((first, second) ->
+            Arrays.compareUnsigned(first.tokenHash, second.tokenHash));
+    private final SqlExceptionSupplier<Connection> connectionSupplier;
+    private final BooleanSupplier snapshotEnabled;
+    private final Map<ByteBuffer, Entry> tokens = new ConcurrentHashMap<>();
+    private final Map<String, Set<ByteBuffer>> userIndex = new ConcurrentHashMap<>();
+    private final PasswordResetTimingWheel<Entry> expiryWheel =
+        new PasswordResetTimingWheel<>(TICK, System.currentTimeMillis());
+
+    /**
+     * Creates a new store.
+     *
+     * @param connectionSupplier supplies connections to the database used for snapshots
+     * @param snapshotEnabled    supplies whether snapshots are enabled
+     */
+    public PasswordResetMemoryTokenStore(
+        final SqlExceptionSupplier<Connection> connectionSupplier,
+        final BooleanSupplier snapshotEnabled) {
+        this.connectionSupplier = connectionSupplier;
+        this.snapshotEnabled = snapshotEnabled;
+    }
+
+    @Override
+    public void store(
+        final String token,
+        final String userId,
+        final String sourceAddress,
+        final Instant expires) {
+        add(new Entry(PasswordResetTokenEncoding.hash(token), userId,
+            PasswordResetTokenEncoding.packAddress(sourceAddress), expires.toEpochMilli()));
+        advance();
+    }
+
+    private void add(final Entry entry) {
+        // The user index lock for the user guards the user's tokens too
+        userIndex.compute(entry.userId, (userId, keys) -> {
+            final Set<ByteBuffer> userKeys = keys == null ? new HashSet<>() : keys;
+            userKeys.add(entry.key);
+            tokens.put(entry.key, entry);
+            return userKeys;
+        });
+        final boolean scheduled;
+        synchronized (expiryWheel) {
+            scheduled = expiryWheel.schedule(entry, entry.expires);
+        }
+        if (!scheduled) {
+            remove(entry);
+        }
+    }
+
+    private void remove(final Entry entry) {
+        userIndex.computeIfPresent(entry.userId, (userId, keys) -> {
+            // Only if it has not since been deleted, or replaced
+            if (tokens.remove(entry.key, entry)) {
+                keys.remove(entry.key);
+            }
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    @Override
+    public Optional<String> findUserId(final String token) {
+        final Entry entry = tokens.get(ByteBuffer.wrap(PasswordResetTokenEncoding.hash(token)));
+        if (entry == null || entry.expires <= System.currentTimeMillis()) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.userId);
+    }
+
+    @Override
+    public Optional<String> consume(final String token) {
+        final ByteBuffer key = ByteBuffer.wrap(PasswordResetTokenEncoding.hash(token));
+        final Entry entry = tokens.get(key);
+        if (entry == null || entry.expires <= System.currentTimeMillis()) {
+            return Optional.empty();
+        }
+        final AtomicBoolean consumed = new AtomicBoolean();
+        userIndex.computeIfPresent(entry.userId, (userId, keys) -> {
+            // Of any concurrent calls, only the first still finds the token here
+            if (tokens.get(key) != entry) {
+                return keys;
+            }
+            keys.forEach(tokens::remove);
+            consumed.set(true);
+            return null;
+        });
+        return consumed.get() ? Optional.of(entry.userId) : Optional.empty();
+    }
+
+    @Override
+    public void deleteUser(final String userId) {
+        userIndex.computeIfPresent(userId, (id, keys) -> {
+            keys.forEach(tokens::remove);
+            return null;
+        });
+    }
+
+    /**
+     * Expired tokens are removed by the timing wheel as it advances, which it does whenever a
+     * token is stored as well as when this is called.
+     */
+    @Override
+    public int purgeExpired() {
+        return advance();
+    }
+
+    private int advance() {
+        final List<Entry> expired = new ArrayList<>();
+        synchronized (expiryWheel) {
+            expiryWheel.advance(System.currentTimeMillis(), expired::add);
+        }
+        expired.forEach(this::remove);
+        return expired.size();
+    }
+
+    @Override
+    public ResetRequestPage getResetRequests(
+        final ResetRequestFilter filter,
+        final String cursor,
+        final int pageSize) {
+        final long now = System.currentTimeMillis();
+        final String userIdPrefix = filter.getUserIdPrefix() == null
+            ? "" : filter.getUserIdPrefix();
+        final byte[] sourceAddress =
+            filter.getSourceAddress() == null || filter.getSourceAddress().isEmpty()
+                ? null : PasswordResetTokenEncoding.packAddress(filter.getSourceAddress());
+        final long expiresFrom = filter.getExpiresFrom() == null
+            ? Long.MIN_VALUE : filter.getExpiresFrom().toEpochMilli();
+        final long expiresTo = filter.getExpiresTo() == null
+            ? Long.MAX_VALUE : filter.getExpiresTo().toEpochMilli();
+        final Entry after = Cursor.decode(cursor)
+            .map(decoded -> new Entry(
+                decoded.getTokenHash(), decoded.getUserId(), null, decoded.getExpires()))
+            .orElse(null);
+
+        // Keeps only the first page, and one more to find out if there is a next page
+        final PriorityQueue<Entry> page = new PriorityQueue<>(LISTING_ORDER.reversed());
+        for (final Entry entry : tokens.values()) {
+            if (entry.expires > now
+                && entry.userId.startsWith(userIdPrefix)
+                && (sourceAddress == null || Arrays.equals(sourceAddress, entry.sourceAddress))
+                && entry.expires >= expiresFrom
+                && entry.expires < expiresTo
+                && (after == null || LISTING_ORDER.compare(entry, after) > 0)) {
+                page.add(entry);
+                if (page.size() > pageSize + 1) {
+                    page.poll();
+                }
+            }
+        }
+        final List<Entry> entries = new ArrayList<>(page);
+        entries.sort(LISTING_ORDER);
+        final boolean morePages = entries.size() > pageSize;
+        final List<Entry> pageEntries = entries.subList(0, Math.min(pageSize, entries.size()));
+        final List<ResetRequest> resetRequests = pageEntries.stream()
+            .map(entry -> new ResetRequest(entry.userId,
+                PasswordResetTokenEncoding.unpackAddress(entry.sourceAddress),
+                new Date(entry.expires)))
+            .collect(Collectors.toList());
+        final String nextCursor;
+        if (morePages && !pageEntries.isEmpty()) {
+            final Entry last = pageEntries.get(pageEntries.size() - 1);
+            nextCursor = new Cursor(last.userId, last.expires, last.tokenHash).encode();
+        } else {
+            nextCursor = "";
+        }
+        return new ResetRequestPage(resetRequests, nextCursor);
+    }
+
+    @Override
+    public ResetRequestSummary summarise(final int rows) {
+        final long now = System.currentTimeMillis();
+        final Map<String, Long> sourceAddressCounts = new HashMap<>();
+        final Map<String, Long> userCounts = new HashMap<>();
+        long outstandingTokens = 0;
+        for (final Entry entry : tokens.values()) {
+            if (entry.expires > now) {
+                outstandingTokens++;
+                sourceAddressCounts.merge(
+                    PasswordResetTokenEncoding.unpackAddress(entry.sourceAddress), 1L, Long::sum);
+                userCounts.merge(entry.userId, 1L, Long::sum);
+            }
+        }
+        return new ResetRequestSummary(
+            outstandingTokens,
+            topCounts(sourceAddressCounts, 1, rows),
+            topCounts(userCounts, 2, rows),
+            new Date(now));
+    }
+
+    private static List<ResetRequestCount> topCounts(
+        final Map<String, Long> counts,
+        final long minimum,
+        final int rows) {
+        return counts.entrySet().stream()
+            .filter(count -> count.getValue() >= minimum)
+            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+            .limit(rows)
+            .map(count -> new ResetRequestCount(count.getKey(), count.getValue()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Restores the tokens from the last snapshot, if snapshots are enabled. The snapshot is
+     * removed from the database, so that tokens used or deleted while the store is running can
+     * not be restored again later.
+     */
+    @Override
+    public void start() throws SQLException {
+        if (!snapshotEnabled.getAsBoolean()) {
+            return;
+        }
+        try (final Connection connection = connectionSupplier.get()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement select = connection.prepareStatement(SNAPSHOT_SELECT_SQL);
+                final Statement clear = connection.createStatement()) {
+                select.setLong(1, System.currentTimeMillis());
+                try (final ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        add(new Entry(
+                            resultSet.getBytes("tokenHash"),
+                            resultSet.getString("userId"),
+                            resultSet.getBytes("sourceAddress"),
+                            resultSet.getLong("expires")));
+                    }
+                }
+                clear.execute(SNAPSHOT_CLEAR_SQL);
+                connection.commit();
+                log.info("Restored {} password reset tokens from the database", tokens.size());
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Writes the unexpired tokens to the database, if snapshots are enabled, replacing anything
+     * already there.
+     */
+    @Override
+    public void stop() throws SQLException {
+        if (!snapshotEnabled.getAsBoolean()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try (final Connection connection = connectionSupplier.get()) {
+            connection.setAutoCommit(false);
+            try (final Statement clear = connection.createStatement();
+                final PreparedStatement insert =
+                    connection.prepareStatement(PasswordResetJdbcTokenStore.INSERT_SQL)) {
+                clear.execute(SNAPSHOT_CLEAR_SQL);
+                int saved = 0;
+                for (final Entry entry : tokens.values()) {
+                    if (entry.expires > now) {
+                        insert.setBytes(1, entry.tokenHash);
+                        insert.setString(2, entry.userId);
+                        insert.setBytes(3, entry.sourceAddress);
+                        insert.setLong(4, entry.expires);
+                        insert.addBatch();
+                        saved++;
+                    }
+                }
+                if (saved > 0) {
+                    insert.executeBatch();
+                }
+                connection.commit();
+                log.info("Saved {} password reset tokens to the database", saved);
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tokens held, including any that have expired but not yet been
+     * removed.
+     *
+     * @return the number of tokens
+     */
+    public int size() {
+        return tokens.size();
+    }
+
+    private static final class Entry {
+        private final ByteBuffer key;
+        private final byte[] tokenHash;
+        private final String userId;
+        private final byte[] sourceAddress;
+        private final long expires;
+
+        private Entry(
+            final byte[] tokenHash,
+            final String userId,
+            final byte[] sourceAddress,
+            final long expires) {
+            this.key = ByteBuffer.wrap(tokenHash);
+            this.tokenHash = tokenHash;
+            this.userId = userId;
+            this.sourceAddress = sourceAddress;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.SqlExceptionSupplier;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.TaskEngine;
+
+/**
+ * Sends reset emails from the ofPasswordResetOutbox table, to which each is written in the same
+ * transaction as its token by the {@link PasswordResetTokenWriter}, so that no token is issued
+ * without its email being sent eventually, even if the mail server is unavailable at the time.
+ *
+ * <p>Emails that are due are claimed in batches, periodically and whenever one is written, and
+ * sent together through the {@link PasswordResetMailer}. Claiming an email schedules its next
+ * attempt, after a delay that doubles with each attempt, so an email that could not be sent is
+ * retried then, and is deleted only once sent. Claims are conditional updates, so that where
+ * cluster nodes share the table each attempt is made by only one of them.
+ *
+ * <p>Emails whose token has expired, been used or been replaced are discarded unsent, as are
+ * those that have failed too many times.
+ *
+ * <p>Tokens are encrypted while in the table, with a key derived from the token signing key that
+ * is generated for each install, rather than with the property encryptor, whose default key is
+ * the same everywhere. A dump of the table alone therefore reveals no usable token. The signing
+ * key is itself held in ofProperty, encrypted by the property encryptor, so a dump of the whole
+ * database still reveals the tokens of emails not yet sent, unless Openfire has been given a
+ * property encryption key of its own.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetOutbox {
+
+    static final String INSERT_SQL =
+        "INSERT INTO ofPasswordResetOutbox"
+            + " (tokenHash, userId, token, expires, created, nextAttempt, attempts)"
+            + " VALUES (?,?,?,?,?,?,0)";
+    static final String DISCARD_SQL =
+        "DELETE FROM ofPasswordResetOutbox WHERE expires <= ? OR NOT EXISTS (SELECT 1"
+            + " FROM ofPasswordResetToken"
+            + " WHERE ofPasswordResetToken.tokenHash = ofPasswordResetOutbox.tokenHash)";
+    static final String DUE_SQL =
+        "SELECT tokenHash, userId, token, created, attempts FROM ofPasswordResetOutbox"
+            + " WHERE nextAttempt <= ? ORDER BY nextAttempt";
+    static final String CLAIM_SQL =
+        "UPDATE ofPasswordResetOutbox SET attempts = ?, nextAttempt = ?"
+            + " WHERE tokenHash = ? AND attempts = ?";
+    static final String DELETE_SQL =
+        "DELETE FROM ofPasswordResetOutbox WHERE tokenHash = ?";
+    static final String BACKLOG_SQL =
+        "SELECT COUNT(*), MIN(created) FROM ofPasswordResetOutbox";
+    // The retry delay doubles at most this many times, well before it could overflow
+    private static final int MAX_DOUBLINGS = 30;
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final String DERIVATION_ALGORITHM = "HmacSHA256";
+    // Distinguishes the sealing key from the signing key it is derived from
+    private static final byte[] KEY_PURPOSE =
+        "password-reset-outbox".getBytes(StandardCharsets.US_ASCII);
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private final SqlExceptionSupplier<Connection> connectionSupplier;
+    private final PasswordResetMailer passwordResetMailer;
+    private final UserManager userManager;
+    private final Supplier<byte[]> keySupplier;
+    private final SecureRandom random = new SecureRandom();
+    private volatile SealingKey sealingKey;
+    private final TaskEngine taskEngine;
+    private final Consumer<Duration> intervalListener = interval -> reschedule();
+    private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+    private final Object deliveryLock = new Object();
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder abandonedCount = new LongAdder();
+    private final LongAdder sentLagMillis = new LongAdder();
+    private TimerTask timerTask;
+    private volatile boolean running;
+    private volatile long backlog;
+    private volatile long oldestCreated;
+
+    /**
+     * Creates a new outbox.
+     *
+     * @param connectionSupplier  supplies connections to the database
+     * @param passwordResetMailer renders and sends the emails
+     * @param userManager         finds the users to whom emails are sent
+     * @param keySupplier         supplies the key from which the key that encrypts tokens while
+     *                            they are in the table is derived
+     * @param taskEngine          runs the deliveries
+     */
+    public PasswordResetOutbox(
+        final SqlExceptionSupplier<Connection> connectionSupplier,
+        final PasswordResetMailer passwordResetMailer,
+        final UserManager userManager,
+        final Supplier<byte[]> keySupplier,
+        final TaskEngine taskEngine) {
+        this.connectionSupplier = connectionSupplier;
+        this.passwordResetMailer = passwordResetMailer;
+        this.userManager = userManager;
+        this.keySupplier = keySupplier;
+        this.taskEngine = taskEngine;
+    }
+
+    /**
+     * Whether emails for tokens stored in the database should be sent through the outbox; see
+     * {@link PasswordResetPlugin#OUTBOX_ENABLED}.
+     *
+     * @return true if the outbox should be used
+     */
+    public boolean isEnabled() {
+        return PasswordResetPlugin.OUTBOX_ENABLED.getValue();
+    }
+
+    /**
+     * Encrypts a token to be written to the outbox.
+     *
+     * @param token the token
+     * @return the encrypted token
+     */
+    public String seal(final String token) {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        try {
+            final Cipher cipher = createCipher(Cipher.ENCRYPT_MODE,
+                new GCMParameterSpec(TAG_BITS, nonce));
+            final byte[] sealed = cipher.doFinal(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(ByteBuffer
+                .allocate(nonce.length + sealed.length)
+                .put(nonce)
+                .put(sealed)
+                .array());
+        } catch (final GeneralSecurityException e) {
+            // Every Java platform is required to support AES/GCM/NoPadding and HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypts a token read from the outbox.
+     *
+     * @param sealedToken the encrypted token
+     * @return the token, or null if it was not sealed with the current key
+     */
+    String unseal(final String sealedToken) {
+        final byte[] sealed;
+        try {
+            sealed = Base64.getDecoder().decode(sealedToken);
+        } catch (final IllegalArgumentException ignored) {
+            return null;
+        }
+        if (sealed.length <= NONCE_LENGTH) {
+            return null;
+        }
+        try {
+            final Cipher cipher = createCipher(Cipher.DECRYPT_MODE,
+                new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_LENGTH));
+            return new String(cipher.doFinal(sealed, NONCE_LENGTH, sealed.length - NONCE_LENGTH),
+                StandardCharsets.UTF_8);
+        } catch (final GeneralSecurityException ignored) {
+            return null;
+        }
+    }
+
+    private Cipher createCipher(final int mode, final GCMParameterSpec parameters)
+        throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(mode, getSealingKey(), parameters);
+        return cipher;
+    }
+
+    /**
+     * Returns the key that seals tokens, deriving it again only when the signing key changes.
+     */
+    private SecretKeySpec getSealingKey() throws GeneralSecurityException {
+        final byte[] signingKey = keySupplier.get();
+        final SealingKey current = sealingKey;
+        // The supplier returns the same array until the key changes
+        if (current != null && current.signingKey == signingKey) {
+            return current.key;
+        }
+        final Mac mac = Mac.getInstance(DERIVATION_ALGORITHM);
+        mac.init(new SecretKeySpec(signingKey, DERIVATION_ALGORITHM));
+        final SecretKeySpec key = new SecretKeySpec(mac.doFinal(KEY_PURPOSE), KEY_ALGORITHM);
+        sealingKey = new SealingKey(signingKey, key);
+        return key;
+    }
+
+    /**
+     * Starts sending emails at the interval set by
+     * {@link PasswordResetPlugin#OUTBOX_POLL_INTERVAL}, and follows any subsequent changes to that
+     * interval.
+     */
+    public void start() {
+        running = true;
+        PasswordResetPlugin.OUTBOX_POLL_INTERVAL.addListener(intervalListener);
+        reschedule();
+    }
+
+    /**
+     * Stops sending emails; any left in the outbox are sent once it is started again, on this or
+     * another node.
+     */
+    public void stop() {
+        running = false;
+        PasswordResetPlugin.OUTBOX_POLL_INTERVAL.removeListener(intervalListener);
+        cancel();
+    }
+
+    /**
+     * Sends any emails that are due straight away, rather than at the next interval; called once
+     * an email has been written.
+     */
+    public void wake() {
+        if (running && wakeScheduled.compareAndSet(false, true)) {
+            taskEngine.submit(() -> {
+                wakeScheduled.set(false);
+                deliver();
+            });
+        }
+    }
+
+    private synchronized void reschedule() {
+        cancel();
+        final Duration interval = PasswordResetPlugin.OUTBOX_POLL_INTERVAL.getValue();
+        // A TimerTask cannot be rescheduled, so each schedule needs a new one
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        taskEngine.schedule(timerTask, interval, interval);
+        log.debug("The outbox will be checked every {}", interval);
+    }
+
+    private synchronized void cancel() {
+        if (timerTask != null) {
+            taskEngine.cancelScheduledTask(timerTask);
+            timerTask = null;
+        }
+    }
+
+    /**
+     * Discards emails that can no longer be used, then sends those that are due, a batch at a
+     * time, until none are left.
+     */
+    void deliver() {
+        // Not the monitor, so that stopping need not wait for a delivery to finish
+        synchronized (deliveryLock) {
+            try {
+                final int discarded = discard();
+                if (discarded > 0) {
+                    log.debug("Discarded {} reset emails whose tokens are no longer valid",
+                        discarded);
+                }
+                final int batchSize = PasswordResetPlugin.OUTBOX_BATCH_SIZE.getValue();
+                int due;
+                do {
+                    final List<Mail> claimed = new ArrayList<>();
+                    due = claim(batchSize, claimed);
+                    send(claimed);
+                } while (due >= batchSize);
+            } catch (final SQLException | RuntimeException e) {
+                log.error("Unable to send password reset emails from the outbox", e);
+            } finally {
+                refreshBacklog();
+            }
+        }
+    }
+
+    private int discard() throws SQLException {
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(DISCARD_SQL)) {
+            statement.setLong(1, System.currentTimeMillis());
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Claims up to a batch of the emails that are due, giving up on those that have already
+     * been attempted too many times.
+     *
+     * @return the number of emails that were due, claimed or not
+     */
+    private int claim(final int batchSize, final List<Mail> claimed) throws SQLException {
+        final long now = System.currentTimeMillis();
+        final int maxAttempts = PasswordResetPlugin.OUTBOX_MAX_ATTEMPTS.getValue();
+        final List<Mail> due = new ArrayList<>();
+        try (final Connection connection = connectionSupplier.get()) {
+            try (final PreparedStatement statement = connection.prepareStatement(DUE_SQL)) {
+                statement.setMaxRows(batchSize);
+                statement.setLong(1, now);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        due.add(new Mail(
+                            resultSet.getBytes("tokenHash"),
+                            resultSet.getString("userId"),
+                            resultSet.getString("token"),
+                            resultSet.getLong("created"),
+                            resultSet.getInt("attempts")));
+                    }
+                }
+            }
+            try (final PreparedStatement claimStatement = connection.prepareStatement(CLAIM_SQL);
+                final PreparedStatement deleteStatement = connection.prepareStatement(DELETE_SQL)) {
+                for (final Mail mail : due) {
+                    if (mail.attempts >= maxAttempts) {
+                        deleteStatement.setBytes(1, mail.tokenHash);
+                        if (deleteStatement.executeUpdate() > 0) {
+                            abandonedCount.increment();
+                            log.error("Gave up sending a password reset email to {} after {}"
+                                + " attempts", mail.userId, mail.attempts);
+                        }
+                        continue;
+                    }
+                    claimStatement.setInt(1, mail.attempts + 1);
+                    claimStatement.setLong(2, now + getRetryDelay(mail.attempts).toMillis());
+                    claimStatement.setBytes(3, mail.tokenHash);
+                    claimStatement.setInt(4, mail.attempts);
+                    // Otherwise another node has claimed it since it was read
+                    if (claimStatement.executeUpdate() > 0) {
+                        claimed.add(mail);
+                    }
+                }
+            }
+        }
+        return due.size();
+    }
+
+    /**
+     * Returns how long to wait after an attempt to send an email before the next one.
+     *
+     * @param attempts the number of earlier attempts
+     * @return the delay
+     */
+    static Duration getRetryDelay(final int attempts) {
+        final Duration delay = PasswordResetPlugin.OUTBOX_RETRY_DELAY.getValue()
+            .multipliedBy(1L << Math.min(attempts, MAX_DOUBLINGS));
+        final Duration maxDelay = PasswordResetPlugin.OUTBOX_MAX_RETRY_DELAY.getValue();
+        return delay.compareTo(maxDelay) > 0 ? maxDelay : delay;
+    }
+
+    private void send(final List<Mail> claimed) throws SQLException {
+        final List<Mail> done = new ArrayList<>();
+        final List<Mail> sending = new ArrayList<>();
+        final List<MimeMessage> messages = new ArrayList<>();
+        for (final Mail mail : claimed) {
+            final String token = unseal(mail.sealedToken);
+            if (token == null) {
+                log.error("Unable to decrypt the password reset token for {}", mail.userId);
+                abandonedCount.increment();
+                done.add(mail);
+                continue;
+            }
+            try {
+                final Optional<MimeMessage> message = passwordResetMailer
+                    .createMessage(userManager.getUser(mail.userId), token);
+                if (message.isPresent()) {
+                    messages.add(message.get());
+                    sending.add(mail);
+                } else {
+                    done.add(mail);
+                }
+            } catch (final UserNotFoundException ignored) {
+                done.add(mail);
+            } catch (final MessagingException | RuntimeException e) {
+                failedCount.increment();
+                log.error("Unable to create a password reset email to {}", mail.userId, e);
+            }
+        }
+        if (!messages.isEmpty()) {
+            try {
+                passwordResetMailer.sendMessages(messages);
+                final long now = System.currentTimeMillis();
+                for (final Mail mail : sending) {
+                    sentLagMillis.add(now - mail.created);
+                }
+                sentCount.add(sending.size());
+                done.addAll(sending);
+            } catch (final MessagingException | RuntimeException e) {
+                failedCount.add(sending.size());
+                log.warn("Unable to send {} password reset emails from the outbox;"
+                    + " they will be retried", sending.size(), e);
+            }
+        }
+        delete(done);
+    }
+
+    /**
+     * Deletes emails that need no more attempts. Should this fail, they are sent again later, as
+     * an email sent twice is better than one not sent at all.
+     */
+    private void delete(final List<Mail> done) throws SQLException {
+        if (done.isEmpty()) {
+            return;
+        }
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(DELETE_SQL)) {
+            for (final Mail mail : done) {
+                statement.setBytes(1, mail.tokenHash);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private void refreshBacklog() {
+        try (final Connection connection = connectionSupplier.get();
+            final PreparedStatement statement = connection.prepareStatement(BACKLOG_SQL);
+            final ResultSet resultSet = statement.executeQuery()) {
+            if (resultSet.next()) {
+                backlog = resultSet.getLong(1);
+                oldestCreated = resultSet.getLong(2);
+            }
+        } catch (final SQLException e) {
+            log.error("Unable to measure the outbox backlog", e);
+        }
+    }
+
+    /**
+     * Returns the number of emails in the outbox when it was last checked.
+     *
+     * @return the backlog
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Returns how long the oldest email in the outbox, when it was last checked, has been
+     * waiting to be sent.
+     *
+     * @return the delivery lag, or zero if the outbox was empty
+     */
+    public Duration getDeliveryLag() {
+        return backlog == 0
+            ? Duration.ZERO
+            : Duration.ofMillis(Math.max(0, System.currentTimeMillis() - oldestCreated));
+    }
+
+    public long getSentCount() {
+        return sentCount.sum();
+    }
+
+    /**
+     * Returns the number of attempts to send an email that failed.
+     *
+     * @return the number of failed attempts
+     */
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    /**
+     * Returns the number of emails given up on, without being sent.
+     *
+     * @return the number of abandoned emails
+     */
+    public long getAbandonedCount() {
+        return abandonedCount.sum();
+    }
+
+    /**
+     * Returns how long, on average, emails sent from the outbox waited there after being written.
+     *
+     * @return the average lag, or null if no email has been sent
+     */
+    public Duration getAverageSentLag() {
+        final long sent = sentCount.sum();
+        return sent == 0 ? null : Duration.ofMillis(sentLagMillis.sum() / sent);
+    }
+
+    private static final class SealingKey {
+        private final byte[] signingKey;
+        private final SecretKeySpec key;
+
+        private SealingKey(final byte[] signingKey, final SecretKeySpec key) {
+            this.signingKey = signingKey;
+            this.key = key;
+        }
+    }
+
+    private static final class Mail {
+        private final byte[] tokenHash;
+        private final String userId;
+        private final String sealedToken;
+        private final long created;
+        private final int attempts;
+
+        private Mail(
+            final byte[] tokenHash,
+            final String userId,
+            final String sealedToken,
+            final long created,
+            final int attempts) {
+            this.tokenHash = tokenHash;
+            this.userId = userId;
+            this.sealedToken = sealedToken;
+            this.created = created;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -2,9 +2,13 @@ package org.jivesoftware.openfire.plugin.passwordreset;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.List;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.tomcat.InstanceManager;
@@ -17,8 +21,10 @@ import org.jivesoftware.openfire.container.PluginManager;
 import org.jivesoftware.openfire.http.HttpBindManager;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.EmailService;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
 
 @Slf4j
 public class PasswordResetPlugin implements Plugin {
@@ -69,6 +75,72 @@ public class PasswordResetPlugin implements Plugin {
             .setDynamic(true)
             .setPlugin(PLUGIN_NAME)
             .build();
+    public static final SystemProperty<String> HTML_BODY =
+        SystemProperty.Builder.ofType(String.class)
+            .setKey("plugin.passwordreset.email-html-body")
+            .setDefaultValue("")
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<String> LOGO =
+        SystemProperty.Builder.ofType(String.class)
+            .setKey("plugin.passwordreset.email-logo")
+            .setDefaultValue("")
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    // Domains that are "special"
+    // https://en.wikipedia.org/wiki/Example.com
+    // https://en.wikipedia.org/wiki/.local
+    // https://en.wikipedia.org/wiki/Top-level_domain#Reserved_domains
+    public static final SystemProperty<List<String>> SUPPRESSED_DOMAINS =
+        SystemProperty.Builder.ofType(List.class)
+            .setKey("plugin.passwordreset.suppressed-domains")
+            .setDefaultValue(List.of(
+                "example.com",
+                "example.net",
+                "example.org",
+                "example.edu",
+                "local",
+                "example",
+                "invalid",
+                "localhost",
+                "test"))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .buildList(String.class);
+    public static final SystemProperty<String> SUPPRESSED_DOMAINS_FILE =
+        SystemProperty.Builder.ofType(String.class)
+            .setKey("plugin.passwordreset.suppressed-domains-file")
+            .setDefaultValue("")
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<String> BOUNCE_DIRECTORY =
+        SystemProperty.Builder.ofType(String.class)
+            .setKey("plugin.passwordreset.bounce-directory")
+            .setDefaultValue("")
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> BOUNCE_POLL_INTERVAL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.bounce-poll-interval")
+            .setMinValue(Duration.ofSeconds(1))
+            .setDefaultValue(Duration.ofMinutes(1))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> BOUNCE_SUPPRESSION_PERIOD =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.DAYS)
+            .setKey("plugin.passwordreset.bounce-suppression-period")
+            .setMinValue(Duration.ofDays(1))
+            .setDefaultValue(Duration.ofDays(30))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
     public static final SystemProperty<Duration> EXPIRY =
         SystemProperty.Builder.ofType(Duration.class)
             .setChronoUnit(ChronoUnit.MINUTES)
@@ -93,15 +165,296 @@ public class PasswordResetPlugin implements Plugin {
             .setDynamic(true)
             .setPlugin(PLUGIN_NAME)
             .build();
+    public static final SystemProperty<Integer> TOKEN_CACHE_SIZE =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.token-cache-size")
+            .setMinValue(0)
+            .setDefaultValue(1000)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> PURGE_INTERVAL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MINUTES)
+            .setKey("plugin.passwordreset.purge-interval")
+            .setMinValue(Duration.ofMinutes(1))
+            .setDefaultValue(Duration.ofMinutes(15))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> SUMMARY_CACHE_DURATION =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.summary-cache-duration")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofSeconds(30))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> INSERT_BATCH_SIZE =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.insert-batch-size")
+            .setMinValue(1)
+            .setDefaultValue(100)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> INSERT_BATCH_WINDOW =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setKey("plugin.passwordreset.insert-batch-window")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofMillis(5))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<PasswordResetTokenManager.TokenMode> TOKEN_MODE =
+        SystemProperty.Builder.ofType(PasswordResetTokenManager.TokenMode.class)
+            .setKey("plugin.passwordreset.token-mode")
+            .setDefaultValue(PasswordResetTokenManager.TokenMode.DATABASE)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Boolean> ONE_TOKEN_PER_USER =
+        SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("plugin.passwordreset.one-token-per-user")
+            .setDefaultValue(false)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<PasswordResetTokenManager.StoreType> TOKEN_STORE =
+        SystemProperty.Builder.ofType(PasswordResetTokenManager.StoreType.class)
+            .setKey("plugin.passwordreset.token-store")
+            .setDefaultValue(PasswordResetTokenManager.StoreType.DATABASE)
+            .setDynamic(false)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Boolean> MEMORY_STORE_SNAPSHOT =
+        SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("plugin.passwordreset.memory-store-snapshot")
+            .setDefaultValue(true)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> EMAIL_INDEX_REBUILD_INTERVAL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MINUTES)
+            .setKey("plugin.passwordreset.email-index-rebuild-interval")
+            .setMinValue(Duration.ofMinutes(1))
+            .setDefaultValue(Duration.ofHours(1))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> IDENTIFIER_CACHE_SIZE =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.identifier-cache-size")
+            .setMinValue(0)
+            .setDefaultValue(10000)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> IDENTIFIER_CACHE_TTL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.identifier-cache-ttl")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofMinutes(5))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> IDENTIFIER_CACHE_ABSENT_TTL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.identifier-cache-absent-ttl")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofSeconds(60))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> MAIL_QUEUE_CAPACITY =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.mail-queue-capacity")
+            .setMinValue(1)
+            .setDefaultValue(1000)
+            .setDynamic(false)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> MAIL_QUEUE_THREADS =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.mail-queue-threads")
+            .setMinValue(1)
+            .setDefaultValue(2)
+            .setDynamic(false)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> MAIL_QUEUE_DRAIN_TIMEOUT =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.mail-queue-drain-timeout")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofSeconds(30))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> MAIL_BATCH_SIZE =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.mail-batch-size")
+            .setMinValue(1)
+            .setDefaultValue(50)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> MAIL_BATCH_WINDOW =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MILLIS)
+            .setKey("plugin.passwordreset.mail-batch-window")
+            .setMinValue(Duration.ZERO)
+            .setDefaultValue(Duration.ofMillis(100))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> ADDRESS_RATE_LIMIT =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.address-rate-limit")
+            .setMinValue(0)
+            .setDefaultValue(10)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> ADDRESS_RATE_PERIOD =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MINUTES)
+            .setKey("plugin.passwordreset.address-rate-period")
+            .setMinValue(Duration.ofMinutes(1))
+            .setDefaultValue(Duration.ofMinutes(15))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> ACCOUNT_RATE_LIMIT =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.account-rate-limit")
+            .setMinValue(0)
+            .setDefaultValue(3)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> ACCOUNT_RATE_PERIOD =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MINUTES)
+            .setKey("plugin.passwordreset.account-rate-period")
+            .setMinValue(Duration.ofMinutes(1))
+            .setDefaultValue(Duration.ofHours(1))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Boolean> TRUST_FORWARDED_FOR =
+        SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("plugin.passwordreset.trust-forwarded-for")
+            .setDefaultValue(false)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> RATE_LIMIT_MAX_ENTRIES =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.rate-limit-max-entries")
+            .setMinValue(1)
+            .setDefaultValue(100000)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Boolean> OUTBOX_ENABLED =
+        SystemProperty.Builder.ofType(Boolean.class)
+            .setKey("plugin.passwordreset.outbox-enabled")
+            .setDefaultValue(true)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> OUTBOX_POLL_INTERVAL =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.outbox-poll-interval")
+            .setMinValue(Duration.ofSeconds(1))
+            .setDefaultValue(Duration.ofSeconds(10))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> OUTBOX_BATCH_SIZE =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.outbox-batch-size")
+            .setMinValue(1)
+            .setDefaultValue(50)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> OUTBOX_RETRY_DELAY =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.SECONDS)
+            .setKey("plugin.passwordreset.outbox-retry-delay")
+            .setMinValue(Duration.ofSeconds(1))
+            .setDefaultValue(Duration.ofSeconds(30))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Duration> OUTBOX_MAX_RETRY_DELAY =
+        SystemProperty.Builder.ofType(Duration.class)
+            .setChronoUnit(ChronoUnit.MINUTES)
+            .setKey("plugin.passwordreset.outbox-max-retry-delay")
+            .setMinValue(Duration.ofMinutes(1))
+            .setDefaultValue(Duration.ofMinutes(30))
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
+    public static final SystemProperty<Integer> OUTBOX_MAX_ATTEMPTS =
+        SystemProperty.Builder.ofType(Integer.class)
+            .setKey("plugin.passwordreset.outbox-max-attempts")
+            .setMinValue(1)
+            .setDefaultValue(10)
+            .setDynamic(true)
+            .setPlugin(PLUGIN_NAME)
+            .build();
     public static final String CONTEXT_PATH = "/passwordreset";
     private static String canonicalName;
     private static PasswordResetPlugin plugin;
     private final HttpBindManager httpBindManager;
+    private final PasswordResetSigningKey signingKey;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetDomainSuppressor domainSuppressor;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetBounceSuppressor bounceSuppressor;
     @Getter
     private final PasswordResetMailer passwordResetMailer;
     @Getter
     @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetMailQueue mailQueue;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetOutbox outbox;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
     private final PasswordResetTokenManager resetTokenManager;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetTokenSweeper tokenSweeper;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetEmailIndex emailIndex;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetEmailSearch emailSearch;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetIdentifierCache identifierCache;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetRateLimiter addressRateLimiter;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetRateLimiter accountRateLimiter;
+    @Getter
+    @SuppressFBWarnings({"EI_EXPOSE_REP"})
+    private final PasswordResetSingleFlight<String> resetSingleFlight;
     private WebAppContext webAppContext;
 
     private static void setInstance(final PasswordResetPlugin plugin) {
@@ -123,11 +476,63 @@ public class PasswordResetPlugin implements Plugin {
     public PasswordResetPlugin() {
         setInstance(this);
         this.httpBindManager = HttpBindManager.getInstance();
-        this.passwordResetMailer = new PasswordResetMailer(EmailService.getInstance());
+        this.signingKey = new PasswordResetSigningKey(PasswordResetTokenSigner::loadOrCreateKey);
+        this.domainSuppressor = new PasswordResetDomainSuppressor();
+        this.bounceSuppressor = new PasswordResetBounceSuppressor(TaskEngine.getInstance());
+        this.passwordResetMailer = new PasswordResetMailer(
+            EmailService.getInstance(), domainSuppressor, bounceSuppressor);
+        this.mailQueue = new PasswordResetMailQueue(
+            passwordResetMailer,
+            MAIL_QUEUE_CAPACITY::getValue,
+            MAIL_QUEUE_THREADS::getValue,
+            MAIL_QUEUE_DRAIN_TIMEOUT::getValue,
+            MAIL_BATCH_SIZE::getValue,
+            MAIL_BATCH_WINDOW::getValue
+        );
+        this.outbox = new PasswordResetOutbox(
+            DbConnectionManager::getConnection,
+            passwordResetMailer,
+            UserManager.getInstance(),
+            signingKey,
+            TaskEngine.getInstance()
+        );
         this.resetTokenManager = new PasswordResetTokenManager(
             DbConnectionManager::getConnection,
-            UserManager.getInstance()
+            UserManager.getInstance(),
+            new PasswordResetTokenSigner(
+                signingKey,
+                PasswordResetTokenSigner::authProviderPasswordState)
         );
+        this.tokenSweeper = new PasswordResetTokenSweeper(
+            TaskEngine.getInstance(),
+            resetTokenManager
+        );
+        this.emailIndex = new PasswordResetEmailIndex(
+            UserManager.getInstance(),
+            TaskEngine.getInstance()
+        );
+        this.emailSearch = new PasswordResetEmailSearch(
+            DbConnectionManager::getConnection,
+            UserManager.getUserProvider(),
+            UserManager.getInstance(),
+            TaskEngine.getInstance()::submit
+        );
+        this.identifierCache = new PasswordResetIdentifierCache(
+            IDENTIFIER_CACHE_SIZE::getValue,
+            IDENTIFIER_CACHE_TTL::getValue,
+            IDENTIFIER_CACHE_ABSENT_TTL::getValue
+        );
+        this.addressRateLimiter = new PasswordResetRateLimiter(
+            ADDRESS_RATE_LIMIT::getValue,
+            ADDRESS_RATE_PERIOD::getValue,
+            RATE_LIMIT_MAX_ENTRIES::getValue
+        );
+        this.accountRateLimiter = new PasswordResetRateLimiter(
+            ACCOUNT_RATE_LIMIT::getValue,
+            ACCOUNT_RATE_PERIOD::getValue,
+            RATE_LIMIT_MAX_ENTRIES::getValue
+        );
+        this.resetSingleFlight = new PasswordResetSingleFlight<>();
         setBlankServerDetails();
         log.debug("Plugin created");
     }
@@ -136,6 +541,21 @@ public class PasswordResetPlugin implements Plugin {
         return LocaleUtils.getLocalizedString(key, canonicalName, Arrays.asList(arguments));
     }
 
+    /**
+     * Resolves a path configured by a property, relative to the Openfire home directory unless it
+     * is absolute.
+     *
+     * @param path the configured path
+     * @return the resolved path
+     */
+    static Path resolveHomePath(final String path) {
+        final Path resolved = Paths.get(path);
+        if (resolved.isAbsolute() || JiveGlobals.getHomeDirectory() == null) {
+            return resolved;
+        }
+        return Paths.get(JiveGlobals.getHomeDirectory()).resolve(resolved);
+    }
+
     private void setBlankServerDetails() {
         if (SERVER.getValue().isEmpty()) {
             // Set a default value for this as there isn't one already
@@ -163,6 +583,27 @@ public class PasswordResetPlugin implements Plugin {
 
         setCanonicalName(manager.getCanonicalName(this));
 
+        // Before anything that signs or seals a token
+        signingKey.start();
+        try {
+            resetTokenManager.migrateLegacyTokens();
+        } catch (final SQLException e) {
+            log.error("Unable to migrate existing password reset tokens", e);
+        }
+        try {
+            resetTokenManager.start();
+        } catch (final SQLException e) {
+            log.error("Unable to restore password reset tokens", e);
+        }
+        tokenSweeper.start();
+        domainSuppressor.start();
+        bounceSuppressor.start();
+        passwordResetMailer.start();
+        mailQueue.start();
+        outbox.start();
+        emailIndex.start();
+        identifierCache.start();
+        // Last, so that no request is handled before the tokens are restored and migrated
         webAppContext = new WebAppContext(pluginDirectory.getPath() + "/web-client",
             CONTEXT_PATH);
         webAppContext.setAttribute(InstanceManager.class.getName(), new SimpleInstanceManager());
@@ -174,7 +615,22 @@ public class PasswordResetPlugin implements Plugin {
     @Override
     public void destroyPlugin() {
         log.debug("Plugin destruction started");
+        // First, so that no token is issued after the tokens are saved, and no more mail queued
         httpBindManager.removeJettyHandler(webAppContext);
+        identifierCache.stop();
+        emailIndex.stop();
+        tokenSweeper.stop();
+        try {
+            resetTokenManager.stop();
+        } catch (final SQLException e) {
+            log.error("Unable to save password reset tokens", e);
+        }
+        outbox.stop();
+        mailQueue.stop();
+        passwordResetMailer.stop();
+        bounceSuppressor.stop();
+        domainSuppressor.stop();
+        signingKey.stop();
         log.debug("Plugin destruction complete");
     }
 
@@ -0,0 +1,125 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Limits how often something may be done for each of a number of keys, such as source addresses
+ * or usernames, using a token bucket for each key: a burst of up to the limit is allowed at once,
+ * after which one more is allowed for each period divided by the limit that passes.
+ *
+ * <p>Each bucket is held as a single time, that at which it will be full again; a bucket that is
+ * already full holds nothing of value, so is discarded. Buckets are spread over a number of
+ * stripes, each with its own lock, and each stripe holds at most its share of the maximum number
+ * of buckets, discarding the least recently used once full. A flood of requests from many
+ * different, perhaps spoofed, addresses therefore cannot exhaust memory, at the cost of letting
+ * some of them through.
+ */
+public class PasswordResetRateLimiter {
+
+    private static final int STRIPE_COUNT = 64;
+    private final IntSupplier limit;
+    private final Supplier<Duration> period;
+    private final IntSupplier maxEntries;
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    /**
+     * Creates a new rate limiter.
+     *
+     * @param limit      supplies the number allowed in each period; zero removes the limit
+     * @param period     supplies the period
+     * @param maxEntries supplies the maximum number of keys to remember
+     */
+    public PasswordResetRateLimiter(
+        final IntSupplier limit,
+        final Supplier<Duration> period,
+        final IntSupplier maxEntries) {
+        this.limit = limit;
+        this.period = period;
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a token from the bucket for a key, if there is one to take.
+     *
+     * @param key the key
+     * @return true if allowed, or false if the limit for the key has been reached
+     */
+    public boolean tryAcquire(final String key) {
+        final int currentLimit = limit.getAsInt();
+        if (currentLimit <= 0) {
+            return true;
+        }
+        final long periodNanos = period.get().toNanos();
+        final long intervalNanos = periodNanos / currentLimit;
+        final long now = System.nanoTime();
+        final int hash = key.hashCode();
+        final Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+        synchronized (stripe) {
+            final Bucket bucket = stripe.buckets.get(key);
+            final long fullAt = bucket == null || bucket.fullAt - now < 0 ? now : bucket.fullAt;
+            final long nextFullAt = fullAt + intervalNanos;
+            if (nextFullAt - now > periodNanos) {
+                return false;
+            }
+            if (bucket == null) {
+                stripe.buckets.put(key, new Bucket(nextFullAt));
+                stripe.evict(now, Math.max(1, maxEntries.getAsInt() / STRIPE_COUNT));
+            } else {
+                bucket.fullAt = nextFullAt;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of keys currently remembered.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        int size = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.buckets.size();
+            }
+        }
+        return size;
+    }
+
+    private static final class Stripe {
+        // Access ordered, so the first bucket is the least recently used
+        private final Map<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * A bucket is full no later than a period after it was last used, so the least recently
+         * used buckets are also those most likely to be full; removing them from the front until
+         * one is found that is not full, and the stripe is no longer too big, is cheap.
+         */
+        private void evict(final long now, final int maxSize) {
+            final Iterator<Bucket> iterator = buckets.values().iterator();
+            while (iterator.hasNext()) {
+                final Bucket eldest = iterator.next();
+                if (buckets.size() <= maxSize && eldest.fullAt - now > 0) {
+                    return;
+                }
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private long fullAt;
+
+        private Bucket(final long fullAt) {
+            this.fullAt = fullAt;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Map;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+
+/**
+ * Holds the key that signs tokens, and from which the key that seals tokens in the outbox is
+ * derived. The key is loaded, or created, once when the plugin starts, so that signing, verifying
+ * and sealing tokens neither read the property nor take a lock each time.
+ *
+ * <p>Where cluster nodes start together, each may create a key of its own before seeing the
+ * others'; the key is reloaded whenever the property changes, on this or another node, so that
+ * every node settles on the key that was stored last.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP"})
+public class PasswordResetSigningKey implements Supplier<byte[]>, PropertyEventListener {
+
+    private final Supplier<byte[]> loader;
+    private volatile byte[] key;
+
+    /**
+     * Creates a new holder.
+     *
+     * @param loader loads the key, creating and storing one if there is none yet
+     */
+    public PasswordResetSigningKey(final Supplier<byte[]> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Loads the key, and starts following changes to it.
+     */
+    public void start() {
+        // Before loading, so that a key stored by another node meanwhile is not missed
+        PropertyEventDispatcher.addListener(this);
+        key = loader.get();
+    }
+
+    /**
+     * Stops following changes to the key.
+     */
+    public void stop() {
+        PropertyEventDispatcher.removeListener(this);
+    }
+
+    /**
+     * Returns the key; the same array is returned until the key changes.
+     *
+     * @return the key
+     * @throws IllegalStateException if the key has not yet been loaded
+     */
+    @Override
+    public byte[] get() {
+        final byte[] current = key;
+        if (current == null) {
+            throw new IllegalStateException("The password reset signing key has not been loaded");
+        }
+        return current;
+    }
+
+    private void reload(final String property) {
+        if (PasswordResetTokenSigner.KEY_PROPERTY.equals(property)) {
+            key = loader.get();
+            log.info("Reloaded the password reset token signing key");
+        }
+    }
+
+    @Override
+    public void propertySet(final String property, final Map<String, Object> params) {
+        reload(property);
+    }
+
+    @Override
+    public void propertyDeleted(final String property, final Map<String, Object> params) {
+        reload(property);
+    }
+
+    @Override
+    public void xmlPropertySet(final String property, final Map<String, Object> params) {
+        // The key is not held in openfire.xml
+    }
+
+    @Override
+    public void xmlPropertyDeleted(final String property, final Map<String, Object> params) {
+        // The key is not held in openfire.xml
+    }
+}
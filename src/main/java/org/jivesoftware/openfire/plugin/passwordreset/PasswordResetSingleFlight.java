@@ -0,0 +1,86 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.SqlExceptionSupplier;
+
+/**
+ * Coalesces concurrent calls for the same key: while a call for a key is in flight, further
+ * calls for that key wait for it and share its result, rather than repeating the work. Once the
+ * call completes its key is forgotten, so the next call does the work again.
+ *
+ * @param <T> the type of the result
+ */
+public class PasswordResetSingleFlight<T> {
+
+    private final Map<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /**
+     * Calls the action, unless a call for the same key is already in flight, in which case
+     * waits for that call and returns its result instead.
+     *
+     * @param key    the key
+     * @param action the work to do for the key
+     * @return the result of the action, or of the call already in flight
+     * @throws SQLException if the action, or the call already in flight, failed
+     */
+    public T execute(final String key, final SqlExceptionSupplier<T> action)
+        throws SQLException {
+        final CompletableFuture<T> flight = new CompletableFuture<>();
+        final CompletableFuture<T> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalescedCount.increment();
+            return await(existing);
+        }
+        try {
+            final T result = action.get();
+            flight.complete(result);
+            return result;
+        } catch (final SQLException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private static <T> T await(final CompletableFuture<T> flight) throws SQLException {
+        try {
+            return flight.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a concurrent request", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the number of calls for keys that are currently in flight.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * Returns the number of calls that shared the result of another, rather than doing the work.
+     *
+     * @return the number of coalesced calls
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+}
@@ -0,0 +1,208 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.jivesoftware.openfire.user.User;
+
+/**
+ * An email subject or body, parsed once into literal text and the placeholders
+ * <code>${url}</code>, <code>${userId}</code>, <code>${userName}</code> and
+ * <code>${userEmail}</code>, so that each email is rendered in a single pass.
+ *
+ * <p>Anything else of the form <code>${name}</code> is left in the email as it is, but is
+ * reported by {@link #getUnknownPlaceholders()}. The values substituted are never themselves
+ * searched for placeholders, and are escaped in templates compiled with {@link #compileHtml}.
+ */
+public final class PasswordResetTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+    private static final String PLACEHOLDER_END = "}";
+    private static final int PLACEHOLDER_COUNT = Placeholder.values().length;
+    // Each segment is either literal text, or a placeholder
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final int literalLength;
+    private final Set<String> unknownPlaceholders;
+    private final boolean html;
+
+    private enum Placeholder {
+        URL("url"),
+        USER_ID("userId"),
+        USER_NAME("userName"),
+        USER_EMAIL("userEmail");
+
+        private final String name;
+
+        Placeholder(final String name) {
+            this.name = name;
+        }
+
+        private static Placeholder forName(final String name) {
+            for (final Placeholder placeholder : values()) {
+                if (placeholder.name.equals(name)) {
+                    return placeholder;
+                }
+            }
+            return null;
+        }
+    }
+
+    private PasswordResetTemplate(
+        final List<String> literals,
+        final List<Placeholder> placeholders,
+        final Set<String> unknownPlaceholders,
+        final boolean html) {
+        this.literals = literals.toArray(new String[0]);
+        this.placeholders = placeholders.toArray(new Placeholder[0]);
+        int length = 0;
+        for (final String literal : this.literals) {
+            length += literal == null ? 0 : literal.length();
+        }
+        this.literalLength = length;
+        this.unknownPlaceholders = Collections.unmodifiableSet(unknownPlaceholders);
+        this.html = html;
+    }
+
+    /**
+     * Parses a template.
+     *
+     * @param template the template
+     * @return the parsed template
+     */
+    public static PasswordResetTemplate compile(final String template) {
+        return compile(template, false);
+    }
+
+    /**
+     * Parses an HTML template, the values substituted into which are escaped.
+     *
+     * @param template the template
+     * @return the parsed template
+     */
+    public static PasswordResetTemplate compileHtml(final String template) {
+        return compile(template, true);
+    }
+
+    private static PasswordResetTemplate compile(final String template, final boolean html) {
+        final List<String> literals = new ArrayList<>();
+        final List<Placeholder> placeholders = new ArrayList<>();
+        final Set<String> unknownPlaceholders = new LinkedHashSet<>();
+        final StringBuilder literal = new StringBuilder();
+        int position = 0;
+        while (position < template.length()) {
+            final int start = template.indexOf(PLACEHOLDER_START, position);
+            final int end = start < 0
+                ? -1
+                : template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (end < 0) {
+                literal.append(template, position, template.length());
+                break;
+            }
+            final String name = template.substring(start + PLACEHOLDER_START.length(), end);
+            if (name.contains(PLACEHOLDER_START)) {
+                // Not a placeholder, but one may follow
+                literal.append(template, position, start + PLACEHOLDER_START.length());
+                position = start + PLACEHOLDER_START.length();
+                continue;
+            }
+            final Placeholder placeholder = Placeholder.forName(name);
+            if (placeholder == null) {
+                unknownPlaceholders.add(PLACEHOLDER_START + name + PLACEHOLDER_END);
+                literal.append(template, position, end + PLACEHOLDER_END.length());
+            } else {
+                literal.append(template, position, start);
+                if (literal.length() > 0) {
+                    literals.add(literal.toString());
+                    placeholders.add(null);
+                    literal.setLength(0);
+                }
+                literals.add(null);
+                placeholders.add(placeholder);
+            }
+            position = end + PLACEHOLDER_END.length();
+        }
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            placeholders.add(null);
+        }
+        return new PasswordResetTemplate(literals, placeholders, unknownPlaceholders, html);
+    }
+
+    /**
+     * Returns anything in the template that looks like a placeholder but is not one, in the order
+     * in which they appear.
+     *
+     * @return the unknown placeholders, or an empty set if there are none
+     */
+    public Set<String> getUnknownPlaceholders() {
+        return unknownPlaceholders;
+    }
+
+    /**
+     * Renders the template for a user.
+     *
+     * @param user the user
+     * @param url  the URL at which the user can reset their password
+     * @return the rendered text
+     */
+    public String render(final User user, final String url) {
+        final String[] values = new String[PLACEHOLDER_COUNT];
+        values[Placeholder.URL.ordinal()] = url;
+        values[Placeholder.USER_ID.ordinal()] = user.getUsername();
+        values[Placeholder.USER_NAME.ordinal()] = user.getName();
+        values[Placeholder.USER_EMAIL.ordinal()] = user.getEmail();
+        if (html) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = escapeHtml(values[i]);
+            }
+        }
+        int length = literalLength;
+        for (final Placeholder placeholder : placeholders) {
+            if (placeholder != null && values[placeholder.ordinal()] != null) {
+                length += values[placeholder.ordinal()].length();
+            }
+        }
+        final StringBuilder rendered = new StringBuilder(length);
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i] != null) {
+                rendered.append(literals[i]);
+            } else if (values[placeholders[i].ordinal()] != null) {
+                rendered.append(values[placeholders[i].ordinal()]);
+            }
+        }
+        return rendered.toString();
+    }
+
+    private static String escapeHtml(final String value) {
+        if (value == null) {
+            return null;
+        }
+        final StringBuilder escaped = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\'':
+                    escaped.append("&#39;");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
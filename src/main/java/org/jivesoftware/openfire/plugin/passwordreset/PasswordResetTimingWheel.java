@@ -0,0 +1,147 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel, which finds items that have fallen due in time proportional to the
+ * number of ticks elapsed and items due, rather than to the number of items held.
+ *
+ * <p>There are four wheels of 64 slots. The first wheel has one slot per tick; each slot of the
+ * wheel above it covers a whole revolution of the wheel below. An item is placed on the lowest
+ * wheel that can hold it without a revolution, and is moved down to lower wheels as its time
+ * approaches. Items further ahead than the top wheel can hold wait in an overflow list.
+ *
+ * <p>Items are never removed early; callers should check on expiry whether an item is still
+ * wanted. This class is not thread safe.
+ *
+ * @param <T> the type of item held
+ */
+final class PasswordResetTimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int WHEELS = 4;
+    private final long tickMillis;
+    private final List<List<List<Scheduled<T>>>> wheels = new ArrayList<>(WHEELS);
+    private final List<Scheduled<T>> overflow = new ArrayList<>();
+    private long currentTick;
+    private int size;
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param tick      the resolution of the wheel
+     * @param nowMillis the current time
+     */
+    PasswordResetTimingWheel(final Duration tick, final long nowMillis) {
+        this.tickMillis = tick.toMillis();
+        this.currentTick = nowMillis / tickMillis;
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            final List<List<Scheduled<T>>> slots = new ArrayList<>(SLOTS);
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayList<>());
+            }
+            wheels.add(slots);
+        }
+    }
+
+    /**
+     * Schedules an item.
+     *
+     * @param item      the item
+     * @param dueMillis when the item falls due
+     * @return false if the item is already due, in which case it was not scheduled
+     */
+    boolean schedule(final T item, final long dueMillis) {
+        // Rounded up, so that items never fall due early
+        final long dueTick = (dueMillis + tickMillis - 1) / tickMillis;
+        if (dueTick <= currentTick) {
+            return false;
+        }
+        place(new Scheduled<>(item, dueTick));
+        size++;
+        return true;
+    }
+
+    private void place(final Scheduled<T> scheduled) {
+        for (int wheel = 0; wheel < WHEELS; wheel++) {
+            // The lowest wheel on which the due tick is within the current revolution
+            final int shift = SLOT_BITS * (wheel + 1);
+            if (scheduled.dueTick >>> shift == currentTick >>> shift) {
+                final int slot = (int) (scheduled.dueTick >>> (SLOT_BITS * wheel)) & SLOT_MASK;
+                wheels.get(wheel).get(slot).add(scheduled);
+                return;
+            }
+        }
+        overflow.add(scheduled);
+    }
+
+    /**
+     * Advances the wheel to the current time.
+     *
+     * @param nowMillis the current time
+     * @param due       receives every item that has fallen due
+     * @return the number of items that fell due
+     */
+    int advance(final long nowMillis, final Consumer<T> due) {
+        final long nowTick = nowMillis / tickMillis;
+        int dueCount = 0;
+        while (currentTick < nowTick) {
+            currentTick++;
+            if (isStartOfRevolution(WHEELS)) {
+                cascade(overflow);
+            }
+            // From the top, so that items cascade all the way down in a single tick
+            for (int wheel = WHEELS - 1; wheel > 0; wheel--) {
+                if (isStartOfRevolution(wheel)) {
+                    final int slot = (int) (currentTick >>> (SLOT_BITS * wheel)) & SLOT_MASK;
+                    cascade(wheels.get(wheel).get(slot));
+                }
+            }
+            final List<Scheduled<T>> slot = wheels.get(0).get((int) currentTick & SLOT_MASK);
+            for (final Scheduled<T> scheduled : slot) {
+                due.accept(scheduled.item);
+            }
+            dueCount += slot.size();
+            size -= slot.size();
+            slot.clear();
+        }
+        return dueCount;
+    }
+
+    private boolean isStartOfRevolution(final int wheel) {
+        return (currentTick & ((1L << (SLOT_BITS * wheel)) - 1)) == 0;
+    }
+
+    private void cascade(final List<Scheduled<T>> slot) {
+        if (slot.isEmpty()) {
+            return;
+        }
+        final List<Scheduled<T>> cascading = new ArrayList<>(slot);
+        slot.clear();
+        cascading.forEach(this::place);
+    }
+
+    /**
+     * Returns the number of items scheduled, including any no longer wanted.
+     *
+     * @return the number of items
+     */
+    int size() {
+        return size;
+    }
+
+    private static final class Scheduled<T> {
+        private final T item;
+        private final long dueTick;
+
+        private Scheduled(final T item, final long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * A bounded, expiry-aware, least-recently-used cache of token to user id. Note that the cache is
+ * local to this node; in a cluster, tokens deleted on another node would remain here until they
+ * expire, so the cache must be disabled by setting its size to zero, as the
+ * {@link PasswordResetJdbcTokenStore} does whenever clustering is enabled.
+ */
+public class PasswordResetTokenCache {
+
+    private final IntSupplier maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Access ordered, so the first entry is always the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxSize supplies the maximum number of entries to hold; zero disables the cache
+     */
+    public PasswordResetTokenCache(final IntSupplier maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds a token to the cache.
+     *
+     * @param token   the token
+     * @param userId  the user the token belongs to
+     * @param expires when the token expires
+     */
+    public synchronized void put(final String token, final String userId, final Instant expires) {
+        final int max = maxSize.getAsInt();
+        if (max > 0) {
+            entries.put(token, new Entry(userId, expires));
+        }
+        final Iterator<String> iterator = entries.keySet().iterator();
+        while (entries.size() > max && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Retrieves the user id for a token, if it is cached and has not yet expired.
+     *
+     * @param token the token to look up
+     * @return the user id, or empty if not known to the cache
+     */
+    public synchronized Optional<String> get(final String token) {
+        if (maxSize.getAsInt() <= 0) {
+            // Anything cached before the cache was disabled may since have been deleted
+            entries.clear();
+            misses.increment();
+            return Optional.empty();
+        }
+        final Entry entry = entries.get(token);
+        if (entry == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        if (!entry.expires.isAfter(Instant.now())) {
+            entries.remove(token);
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(entry.userId);
+    }
+
+    /**
+     * Removes every cached token belonging to a user.
+     *
+     * @param userId the user whose tokens should be removed
+     */
+    public synchronized void removeUser(final String userId) {
+        entries.values().removeIf(entry -> entry.userId.equals(userId));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class Entry {
+        private final String userId;
+        private final Instant expires;
+
+        private Entry(final String userId, final Instant expires) {
+            this.userId = userId;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * Converts token details to and from the compact form in which they are stored in the database.
+ */
+final class PasswordResetTokenEncoding {
+
+    private static final Pattern IPV4_LITERAL = Pattern.compile("\\d{1,3}(\\.\\d{1,3}){3}");
+    // Hex digits, colons and dots only, starting with a hex digit or colon, optionally in brackets
+    private static final Pattern IPV6_LITERAL =
+        Pattern.compile("[\\p{XDigit}:][\\p{XDigit}:.]*|\\[[\\p{XDigit}:][\\p{XDigit}:.]*]");
+
+    private PasswordResetTokenEncoding() {
+    }
+
+    /**
+     * Hashes a token, so that the token itself need never be stored.
+     *
+     * @param token the token to hash
+     * @return the SHA-256 digest of the token
+     */
+    static byte[] hash(final String token) {
+        try {
+            return MessageDigest.getInstance("SHA-256")
+                .digest(token.getBytes(StandardCharsets.UTF_8));
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Packs an IPv4 or IPv6 address literal in to four or sixteen bytes. Anything else - for
+     * example a host name, or a host and port - is packed as zero bytes; it is never resolved.
+     *
+     * @param address the address to pack
+     * @return the packed address
+     */
+    static byte[] packAddress(final String address) {
+        if (address == null) {
+            return new byte[0];
+        }
+        if (IPV4_LITERAL.matcher(address).matches()) {
+            final String[] octets = address.split("\\.");
+            final byte[] packedAddress = new byte[octets.length];
+            for (int i = 0; i < octets.length; i++) {
+                final int octet = Integer.parseInt(octets[i]);
+                if (octet > 255) {
+                    return new byte[0];
+                }
+                packedAddress[i] = (byte) octet;
+            }
+            return packedAddress;
+        }
+        if (address.indexOf(':') >= 0 && IPV6_LITERAL.matcher(address).matches()) {
+            try {
+                // InetAddress parses, rather than looks up, a name that starts with a hex digit,
+                // colon or bracket and contains a colon; a malformed literal fails without a lookup
+                return InetAddress.getByName(address).getAddress();
+            } catch (final UnknownHostException ignored) {
+                return new byte[0];
+            }
+        }
+        return new byte[0];
+    }
+
+    /**
+     * Unpacks an address packed by {@link #packAddress(String)}.
+     *
+     * @param packedAddress the packed address
+     * @return the address literal, or an empty string if the address was not known
+     */
+    static String unpackAddress(final byte[] packedAddress) {
+        if (packedAddress == null || packedAddress.length == 0) {
+            return "";
+        }
+        try {
+            return InetAddress.getByAddress(packedAddress).getHostAddress();
+        } catch (final UnknownHostException ignored) {
+            return "";
+        }
+    }
+
+    /**
+     * The position of a reset request in the order in which they are listed - by user id, then
+     * expiry, then token hash.
+     */
+    @SuppressFBWarnings({"EI_EXPOSE_REP", "EI_EXPOSE_REP2"})
+    static final class Cursor {
+        private final String userId;
+        private final long expires;
+        private final byte[] tokenHash;
+
+        Cursor(final String userId, final long expires, final byte[] tokenHash) {
+            this.userId = userId;
+            this.expires = expires;
+            this.tokenHash = tokenHash;
+        }
+
+        String getUserId() {
+            return userId;
+        }
+
+        long getExpires() {
+            return expires;
+        }
+
+        byte[] getTokenHash() {
+            return tokenHash;
+        }
+
+        /**
+         * Encodes the cursor in a form suitable for a URL.
+         *
+         * @return the encoded cursor
+         */
+        String encode() {
+            final byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                ByteBuffer.allocate(Long.BYTES + Integer.BYTES + tokenHash.length
+                        + userIdBytes.length)
+                    .putLong(expires)
+                    .putInt(tokenHash.length)
+                    .put(tokenHash)
+                    .put(userIdBytes)
+                    .array());
+        }
+
+        /**
+         * Decodes a cursor encoded by {@link #encode()}.
+         *
+         * @param cursor the encoded cursor
+         * @return the cursor, or empty if there was none or it could not be decoded
+         */
+        static Optional<Cursor> decode(final String cursor) {
+            if (cursor == null || cursor.isEmpty()) {
+                return Optional.empty();
+            }
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+                final long expires = buffer.getLong();
+                final int tokenHashLength = buffer.getInt();
+                if (tokenHashLength < 0 || tokenHashLength > buffer.remaining()) {
+                    return Optional.empty();
+                }
+                final byte[] tokenHash = new byte[tokenHashLength];
+                buffer.get(tokenHash);
+                final String userId = StandardCharsets.UTF_8.decode(buffer).toString();
+                return Optional.of(new Cursor(userId, expires, tokenHash));
+            } catch (final IllegalArgumentException | BufferUnderflowException ignored) {
+                // Start from the beginning rather than fail
+                return Optional.empty();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates random, URL-safe tokens without contending on a single {@link SecureRandom}.
+ *
+ * <p>Tokens are drawn from a number of stripes, each with its own deterministic generator and a
+ * buffer of random bytes filled ahead of use; a thread always uses the same stripe, so threads
+ * rarely wait for one another. Each generator is seeded, and periodically reseeded, from a single
+ * non-blocking {@link SecureRandom}, so that a freshly booted machine short of entropy does not
+ * block token generation. Stripes are used rather than thread locals, which would outlive the
+ * plugin on the server's threads.
+ */
+public class PasswordResetTokenGenerator {
+
+    // 64 characters, so that each is chosen uniformly by the low six bits of a random byte
+    private static final byte[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final int CHARACTER_MASK = ALPHABET.length - 1;
+    private static final int BUFFER_SIZE = 1024;
+    private static final int SEED_SIZE = 32;
+    // Reseed after this many buffers of output
+    private static final int RESEED_INTERVAL = 1024;
+    private final int tokenLength;
+    private final SecureRandom seedSource;
+    private final Stripe[] stripes;
+
+    /**
+     * Creates a new generator, with two stripes for every available processor.
+     *
+     * @param tokenLength the length of the tokens to generate
+     */
+    public PasswordResetTokenGenerator(final int tokenLength) {
+        this(tokenLength, Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Creates a new generator.
+     *
+     * @param tokenLength the length of the tokens to generate
+     * @param stripeCount the number of stripes, rounded up to a power of two
+     */
+    public PasswordResetTokenGenerator(final int tokenLength, final int stripeCount) {
+        if (tokenLength < 1 || tokenLength > BUFFER_SIZE) {
+            throw new IllegalArgumentException("Invalid token length " + tokenLength);
+        }
+        this.tokenLength = tokenLength;
+        this.seedSource = new SecureRandom();
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(seedSource);
+        }
+    }
+
+    /**
+     * Generates a token.
+     *
+     * @return a new token
+     */
+    public String generate() {
+        final byte[] token = new byte[tokenLength];
+        final Stripe stripe =
+            stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        synchronized (stripe) {
+            if (stripe.position + tokenLength > BUFFER_SIZE) {
+                stripe.refill(seedSource);
+            }
+            for (int i = 0; i < tokenLength; i++) {
+                token[i] = ALPHABET[stripe.buffer[stripe.position++] & CHARACTER_MASK];
+            }
+        }
+        return new String(token, StandardCharsets.US_ASCII);
+    }
+
+    private static final class Stripe {
+        private final SecureRandom random;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int refills;
+
+        private Stripe(final SecureRandom seedSource) {
+            try {
+                // Seeded before first use, so it never gathers entropy of its own
+                random = SecureRandom.getInstance("SHA1PRNG");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA1PRNG is not available", e);
+            }
+            random.setSeed(seed(seedSource));
+            random.nextBytes(buffer);
+        }
+
+        private void refill(final SecureRandom seedSource) {
+            if (++refills % RESEED_INTERVAL == 0) {
+                random.setSeed(seed(seedSource));
+            }
+            random.nextBytes(buffer);
+            position = 0;
+        }
+
+        private static byte[] seed(final SecureRandom seedSource) {
+            final byte[] seed = new byte[SEED_SIZE];
+            // Not generateSeed, which may block waiting for entropy
+            seedSource.nextBytes(seed);
+            return seed;
+        }
+    }
+}
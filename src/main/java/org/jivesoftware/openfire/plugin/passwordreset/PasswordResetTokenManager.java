@@ -2,41 +2,67 @@ package org.jivesoftware.openfire.plugin.passwordreset;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
-import org.jivesoftware.util.StringUtils;
 
 @Slf4j
 @SuppressFBWarnings({"EI_EXPOSE_REP2"})
 public class PasswordResetTokenManager {
 
     private static final int TOKEN_LENGTH = 32;
-    private static final String INSERT_SQL =
-        "INSERT INTO ofPasswordResetToken (token, userId, sourceAddress, expires)"
-            + " VALUES (?,?,?,?)";
-    private static final String PURGE_EXPIRED_SQL =
-        "DELETE FROM ofPasswordResetToken WHERE expires < NOW()";
-    private static final String FIND_USER_SQL =
-        "SELECT userId FROM ofPasswordResetToken WHERE token = ?";
-    private static final String DELETE_TOKENS_FOR_USER =
-        "DELETE FROM ofPasswordResetToken WHERE userId = ?";
-    private static final String RESET_REQUESTS_SQL =
-        "SELECT userId, sourceAddress, expires FROM ofPasswordResetToken ORDER by userId, expires";
-    private final SqlExceptionSupplier<Connection> connectionSupplier;
+    private static final int SUMMARY_ROWS = 10;
+    private static final int USER_LOCKS = 64;
     private final UserManager userManager;
+    private final PasswordResetTokenSigner tokenSigner;
+    private final PasswordResetTokenGenerator tokenGenerator =
+        new PasswordResetTokenGenerator(TOKEN_LENGTH);
+    private final PasswordResetJdbcTokenStore jdbcTokenStore;
+    private final PasswordResetTokenStore tokenStore;
+    // Signed tokens consumed on this node, kept until they expire, so that each can be used only
+    // once even before the password it was signed with has been changed
+    private final Map<String, Instant> consumedSignedTokens = new ConcurrentHashMap<>();
+    private final Object[] userLocks = new Object[USER_LOCKS];
+    private ResetRequestSummary summary;
+
+    /**
+     * How new tokens are issued; see {@link PasswordResetPlugin#TOKEN_MODE}.
+     */
+    public enum TokenMode {
+        /**
+         * A random token is issued, and a hash of it stored in the token store.
+         */
+        DATABASE,
+        /**
+         * A signed token is issued, and verified without reference to the token store.
+         */
+        SIGNED
+    }
+
+    /**
+     * Where tokens are stored; see {@link PasswordResetPlugin#TOKEN_STORE}.
+     */
+    public enum StoreType {
+        /**
+         * Tokens are stored in the database, by a {@link PasswordResetJdbcTokenStore}.
+         */
+        DATABASE,
+        /**
+         * Tokens are held in memory on this node, by a {@link PasswordResetMemoryTokenStore}.
+         */
+        MEMORY
+    }
 
     /**
      * Can't use a {@link java.util.function.Supplier} because of the exception.
@@ -46,69 +72,160 @@ public class PasswordResetTokenManager {
         T get() throws SQLException;
     }
 
+    /**
+     * Can't use a {@link java.util.function.Function} because of the exception.
+     */
+    public interface SqlExceptionFunction<T, R> {
+
+        R apply(T t) throws SQLException;
+    }
+
     public PasswordResetTokenManager(
         final SqlExceptionSupplier<Connection> connectionSupplier,
-        final UserManager userManager) {
-        this.connectionSupplier = connectionSupplier;
+        final UserManager userManager,
+        final PasswordResetTokenSigner tokenSigner) {
         this.userManager = userManager;
+        this.tokenSigner = tokenSigner;
+        for (int i = 0; i < USER_LOCKS; i++) {
+            userLocks[i] = new Object();
+        }
+        this.jdbcTokenStore = new PasswordResetJdbcTokenStore(connectionSupplier);
+        if (PasswordResetPlugin.TOKEN_STORE.getValue() == StoreType.MEMORY) {
+            this.tokenStore = new PasswordResetMemoryTokenStore(
+                connectionSupplier, PasswordResetPlugin.MEMORY_STORE_SNAPSHOT::getValue);
+        } else {
+            this.tokenStore = jdbcTokenStore;
+        }
     }
 
     /**
-     * Generates a random token for the user, and persists in the database.
+     * Generates a token for the user. In {@link TokenMode#DATABASE} mode, this is a random token
+     * a hash of which is kept in the token store; in {@link TokenMode#SIGNED} mode, it is a
+     * signed token and nothing is stored - unless the user's password state is not available,
+     * in which case a stored token is issued instead.
      *
      * @param user The user to create the token for
      * @param sourceAddress The address from which the request was made
-     * @return the random token
+     * @return the token
      * @throws SQLException if anything untoward happens
      */
     public String generateToken(final User user, final String sourceAddress) throws SQLException {
-        purgeOldTokens();
-        final String token = StringUtils.randomString(TOKEN_LENGTH);
-        try (final Connection connection = connectionSupplier.get();
-            final PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
-            statement.setString(1, token);
-            statement.setString(2, user.getUsername());
-            statement.setString(3, sourceAddress);
-            statement.setTimestamp(4,
-                new Timestamp(Instant.now().plus(PasswordResetPlugin.EXPIRY.getValue())
-                    .toEpochMilli()));
-            statement.execute();
-        }
-        return token;
+        return generateToken(user, sourceAddress, null).getToken();
     }
 
-    private void purgeOldTokens() throws SQLException {
-        try (final Connection connection = connectionSupplier.get();
-            final PreparedStatement statement = connection.prepareStatement(PURGE_EXPIRED_SQL)) {
-            final int updateCount = statement.executeUpdate();
-            log.debug("Purged {} records", updateCount);
+    /**
+     * Generates a token for the user as {@link #generateToken(User, String)}. If the token is
+     * stored in the database and the outbox is enabled, the email that sends it is added to the
+     * outbox in the same transaction; otherwise it is left to the caller to send.
+     *
+     * @param user          The user to create the token for
+     * @param sourceAddress The address from which the request was made
+     * @param outbox        the outbox, or null to send no email
+     * @return the token, and whether its email was added to the outbox
+     * @throws SQLException if anything untoward happens
+     */
+    public IssuedToken generateToken(
+        final User user,
+        final String sourceAddress,
+        final PasswordResetOutbox outbox) throws SQLException {
+        final Instant expires = Instant.now().plus(PasswordResetPlugin.EXPIRY.getValue());
+        if (PasswordResetPlugin.TOKEN_MODE.getValue() == TokenMode.SIGNED) {
+            final Optional<String> signedToken = tokenSigner.sign(user.getUsername(), expires);
+            if (signedToken.isPresent()) {
+                return new IssuedToken(signedToken.get(), false);
+            }
+            log.warn("Unable to determine the password state of user {};"
+                + " storing a token instead", user.getUsername());
         }
+        final String token = tokenGenerator.generate();
+        if (outbox != null && outbox.isEnabled() && tokenStore == jdbcTokenStore) {
+            jdbcTokenStore.store(token, user.getUsername(), sourceAddress, expires,
+                outbox.seal(token));
+            outbox.wake();
+            return new IssuedToken(token, true);
+        }
+        tokenStore.store(token, user.getUsername(), sourceAddress, expires);
+        return new IssuedToken(token, false);
     }
 
     /**
-     * Finds the user for the specified token.
+     * Removes all expired tokens from the token store. Expired tokens are otherwise ignored, so
+     * this is only needed to stop the store growing; it is called periodically by the
+     * {@link PasswordResetTokenSweeper} rather than on every request.
+     *
+     * @return the number of tokens removed
+     * @throws SQLException if something untoward happens
+     */
+    public int purgeExpiredTokens() throws SQLException {
+        final Instant now = Instant.now();
+        consumedSignedTokens.values().removeIf(expires -> !expires.isAfter(now));
+        return tokenStore.purgeExpired();
+    }
+
+    /**
+     * Finds the user for the specified token. Signed tokens are only accepted in
+     * {@link TokenMode#SIGNED} mode, and are verified without reference to the token store.
      *
      * @param token the token to perform the search on
      * @return the user, if any
      * @throws SQLException if something untoward happens
      */
     public Optional<User> getUser(final String token) throws SQLException {
-        purgeOldTokens();
-        try (final Connection connection = connectionSupplier.get();
-            final PreparedStatement statement = connection.prepareStatement(FIND_USER_SQL)) {
-            statement.setString(1, token);
-            try (final ResultSet resultSet = statement.executeQuery()) {
-                if (resultSet.next()) {
-                    final String userId = resultSet.getString("userId");
-                    try {
-                        return Optional.of(userManager.getUser(userId));
-                    } catch (final UserNotFoundException ignored) {
-                        return Optional.empty();
-                    }
-                } else {
-                    return Optional.empty();
-                }
+        if (PasswordResetTokenSigner.isSigned(token)) {
+            if (PasswordResetPlugin.TOKEN_MODE.getValue() != TokenMode.SIGNED) {
+                return Optional.empty();
+            }
+            return tokenSigner.verify(token).flatMap(this::findUser);
+        }
+        final Optional<String> userId = tokenStore.findUserId(token);
+        if (userId.isPresent()) {
+            return findUser(userId.get());
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Finds the user for the specified token and deletes all of that user's tokens, atomically,
+     * so that a stored token can be used only once however many requests use it at the same
+     * time. Signed tokens are verified as by {@link #getUser(String)}, and then marked as used
+     * under a lock for the user, so that of concurrent requests using the same signed token only
+     * the first succeeds. They are also no longer valid once the user's password has changed,
+     * which is what invalidates them on other cluster nodes.
+     *
+     * @param token the token to use
+     * @return the user, if the token was valid
+     * @throws SQLException if something untoward happens
+     */
+    public Optional<User> consumeToken(final String token) throws SQLException {
+        if (PasswordResetTokenSigner.isSigned(token)) {
+            return consumeSignedToken(token);
+        }
+        return tokenStore.consume(token).flatMap(this::findUser);
+    }
+
+    private Optional<User> consumeSignedToken(final String token) throws SQLException {
+        final Optional<User> user = getUser(token);
+        if (user.isEmpty()) {
+            return Optional.empty();
+        }
+        final String username = user.get().getUsername();
+        synchronized (userLocks[Math.floorMod(username.hashCode(), USER_LOCKS)]) {
+            final Optional<Instant> expires = PasswordResetTokenSigner.getExpires(token);
+            if (expires.isEmpty() || consumedSignedTokens.containsKey(token)) {
+                return Optional.empty();
             }
+            consumedSignedTokens.put(token, expires.get());
+        }
+        // Any stored tokens, issued before the switch to signed tokens, are used up too
+        deleteTokens(user.get());
+        return user;
+    }
+
+    private Optional<User> findUser(final String userId) {
+        try {
+            return Optional.of(userManager.getUser(userId));
+        } catch (final UserNotFoundException ignored) {
+            return Optional.empty();
         }
     }
 
@@ -119,47 +236,188 @@ public class PasswordResetTokenManager {
      * @throws SQLException if something untoward happens
      */
     public void deleteTokens(final User user) throws SQLException {
-        try (final Connection connection = connectionSupplier.get();
-            final PreparedStatement statement
-                = connection.prepareStatement(DELETE_TOKENS_FOR_USER)) {
-            statement.setString(1, user.getUsername());
-            statement.execute();
-        }
+        tokenStore.deleteUser(user.getUsername());
     }
 
     /**
-     * Returns the current list of reset requests - excluding the all important token.
+     * Returns a page of the current reset requests - excluding the all important token - that
+     * match a filter, in order of user id and expiry.
      *
-     * @return the list of reset requests.
+     * @param filter   the filter to apply
+     * @param cursor   the {@link ResetRequestPage#getNextCursor() cursor} of the previous page,
+     *                 or null or empty for the first page
+     * @param pageSize the maximum number of requests to return
+     * @return the page of reset requests
      */
-    public List<ResetRequest> getResetRequests() {
+    public ResetRequestPage getResetRequests(
+        final ResetRequestFilter filter,
+        final String cursor,
+        final int pageSize) {
         try {
-            purgeOldTokens();
-            try (final Connection connection = connectionSupplier.get();
-                final PreparedStatement statement = connection.prepareStatement(RESET_REQUESTS_SQL);
-                final ResultSet resultSet = statement.executeQuery()) {
-
-                final List<ResetRequest> resetRequests = new ArrayList<>();
-                while (resultSet.next()) {
-
-                    final ResetRequest resetRequest = new ResetRequest(
-                        resultSet.getString("userId"),
-                        resultSet.getString("sourceAddress"),
-                        resultSet.getTimestamp("expires"));
-                    resetRequests.add(resetRequest);
-                }
-                return resetRequests;
-            }
+            return tokenStore.getResetRequests(filter, cursor, pageSize);
         } catch (final SQLException e) {
             log.error("Unexpected exception retrieving outstanding requests", e);
-            return Collections.emptyList();
+            return new ResetRequestPage(Collections.emptyList(), "");
         }
     }
 
+    /**
+     * Summarises the current reset requests. The summary is calculated at most once every
+     * {@link PasswordResetPlugin#SUMMARY_CACHE_DURATION}, as doing so involves every outstanding
+     * token.
+     *
+     * @return the summary, or empty if it could not be calculated
+     */
+    public synchronized Optional<ResetRequestSummary> getResetRequestSummary() {
+        if (summary != null && summary.getCalculated().toInstant()
+            .plus(PasswordResetPlugin.SUMMARY_CACHE_DURATION.getValue()).isAfter(Instant.now())) {
+            return Optional.of(summary);
+        }
+        try {
+            summary = tokenStore.summarise(SUMMARY_ROWS);
+            return Optional.of(summary);
+        } catch (final SQLException e) {
+            log.error("Unexpected exception summarising outstanding requests", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Moves any unexpired tokens left over from before database version 3, when tokens were
+     * stored in plain text, in to the current table and then drops the old table. Does nothing
+     * if there is no old table.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    public void migrateLegacyTokens() throws SQLException {
+        jdbcTokenStore.migrateLegacyTokens();
+    }
+
+    /**
+     * Starts the token store; called when the plugin starts.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    public void start() throws SQLException {
+        tokenStore.start();
+    }
+
+    /**
+     * Stops the token store; called when the plugin stops.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    public void stop() throws SQLException {
+        tokenStore.stop();
+    }
+
+    /**
+     * Returns the number of token lookups that were served from the cache of the database store.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHits() {
+        return jdbcTokenStore.getCacheHits();
+    }
+
+    /**
+     * Returns the number of token lookups that had to go to the database.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMisses() {
+        return jdbcTokenStore.getCacheMisses();
+    }
+
+    /**
+     * Returns the number of batches in which tokens have been written to the database.
+     *
+     * @return the number of batches
+     */
+    public long getInsertBatchCount() {
+        return jdbcTokenStore.getInsertBatchCount();
+    }
+
+    /**
+     * Returns the average number of tokens written to the database in each batch.
+     *
+     * @return the average batch size
+     */
+    public double getAverageInsertBatchSize() {
+        return jdbcTokenStore.getAverageInsertBatchSize();
+    }
+
+    /**
+     * Returns the largest number of tokens written to the database in a single batch.
+     *
+     * @return the largest batch size
+     */
+    public int getLargestInsertBatchSize() {
+        return jdbcTokenStore.getLargestInsertBatchSize();
+    }
+
+    /**
+     * Returns the average time taken to write and commit a batch of tokens.
+     *
+     * @return the average commit latency
+     */
+    public Duration getAverageInsertCommitLatency() {
+        return jdbcTokenStore.getAverageInsertCommitLatency();
+    }
+
+    @Data
+    public static class IssuedToken {
+        public final String token;
+        /**
+         * Whether the email that sends the token has been added to the outbox.
+         */
+        public final boolean queued;
+    }
+
     @Data
     public static class ResetRequest {
         public final String userId;
         public final String sourceAddress;
         public final Date expires;
     }
+
+    /**
+     * Restricts the reset requests returned; null or empty values match everything.
+     */
+    @Data
+    public static class ResetRequestFilter {
+        public final String userIdPrefix;
+        public final String sourceAddress;
+        public final Instant expiresFrom;
+        public final Instant expiresTo;
+    }
+
+    @Data
+    public static class ResetRequestPage {
+        public final List<ResetRequest> resetRequests;
+        /**
+         * The cursor to retrieve the next page with, or empty if this is the last page.
+         */
+        public final String nextCursor;
+    }
+
+    @Data
+    public static class ResetRequestSummary {
+        public final long outstandingTokens;
+        /**
+         * The source addresses with the most outstanding tokens, most first.
+         */
+        public final List<ResetRequestCount> sourceAddressCounts;
+        /**
+         * The users with more than one outstanding token, most first.
+         */
+        public final List<ResetRequestCount> userCounts;
+        public final Date calculated;
+    }
+
+    @Data
+    public static class ResetRequestCount {
+        public final String value;
+        public final long count;
+    }
 }
@@ -0,0 +1,193 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.function.Supplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.openfire.auth.AuthFactory;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * Creates and verifies self-describing tokens that need no database. Each token carries the
+ * username and expiry, and is signed with a key held by the server together with the current state
+ * of the user's password - so changing the password invalidates the token.
+ */
+@Slf4j
+public class PasswordResetTokenSigner {
+
+    static final String KEY_PROPERTY = "plugin.passwordreset.signing-key";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final char SEPARATOR = '.';
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private final Supplier<byte[]> keySupplier;
+    private final PasswordState passwordState;
+
+    /**
+     * Supplies something that changes whenever a user's password changes.
+     */
+    public interface PasswordState {
+
+        /**
+         * Returns the current password state for a user.
+         *
+         * @param username the user
+         * @return the state, or empty if it cannot be determined
+         */
+        Optional<String> get(String username);
+    }
+
+    public PasswordResetTokenSigner(
+        final Supplier<byte[]> keySupplier,
+        final PasswordState passwordState) {
+        this.keySupplier = keySupplier;
+        this.passwordState = passwordState;
+    }
+
+    /**
+     * Returns true if the token was created by a signer, rather than stored in the database.
+     *
+     * @param token the token
+     * @return true if the token is signed
+     */
+    public static boolean isSigned(final String token) {
+        return token.indexOf(SEPARATOR) >= 0;
+    }
+
+    /**
+     * Creates a signed token.
+     *
+     * @param username the user the token is for
+     * @param expires  when the token expires
+     * @return the token, or empty if the user's password state cannot be determined
+     */
+    public Optional<String> sign(final String username, final Instant expires) {
+        final byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        final byte[] payload = ByteBuffer.allocate(Long.BYTES + usernameBytes.length)
+            .putLong(expires.toEpochMilli())
+            .put(usernameBytes)
+            .array();
+        return passwordState.get(username)
+            .map(state -> ENCODER.encodeToString(payload) + SEPARATOR
+                + ENCODER.encodeToString(mac(payload, state)));
+    }
+
+    /**
+     * Verifies a signed token.
+     *
+     * @param token the token
+     * @return the username, if the token is valid, unexpired and the password is unchanged
+     */
+    public Optional<String> verify(final String token) {
+        final int separator = token.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return Optional.empty();
+        }
+        final byte[] payload;
+        final byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, separator));
+            signature = DECODER.decode(token.substring(separator + 1));
+        } catch (final IllegalArgumentException ignored) {
+            return Optional.empty();
+        }
+        if (payload.length <= Long.BYTES) {
+            return Optional.empty();
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        final Instant expires = Instant.ofEpochMilli(buffer.getLong());
+        if (!expires.isAfter(Instant.now())) {
+            return Optional.empty();
+        }
+        final String username = StandardCharsets.UTF_8
+            .decode(buffer.slice())
+            .toString();
+        return passwordState.get(username)
+            .filter(state -> MessageDigest.isEqual(signature, mac(payload, state)))
+            .map(state -> username);
+    }
+
+    /**
+     * Returns when a signed token expires, without verifying it.
+     *
+     * @param token the token
+     * @return when the token expires, or empty if it is not a well-formed signed token
+     */
+    public static Optional<Instant> getExpires(final String token) {
+        final int separator = token.indexOf(SEPARATOR);
+        if (separator < 0) {
+            return Optional.empty();
+        }
+        final byte[] payload;
+        try {
+            payload = DECODER.decode(token.substring(0, separator));
+        } catch (final IllegalArgumentException ignored) {
+            return Optional.empty();
+        }
+        if (payload.length <= Long.BYTES) {
+            return Optional.empty();
+        }
+        return Optional.of(Instant.ofEpochMilli(ByteBuffer.wrap(payload).getLong()));
+    }
+
+    private byte[] mac(final byte[] payload, final String state) {
+        try {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(keySupplier.get(), ALGORITHM));
+            mac.update(payload);
+            mac.update((byte) 0);
+            return mac.doFinal(state.getBytes(StandardCharsets.UTF_8));
+        } catch (final GeneralSecurityException e) {
+            // Every Java platform is required to support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the signing key, generating and storing an encrypted one if there is none yet. This
+     * reads the property each time, so is called through a {@link PasswordResetSigningKey}.
+     *
+     * @return the signing key
+     */
+    public static synchronized byte[] loadOrCreateKey() {
+        final String storedKey = JiveGlobals.getProperty(KEY_PROPERTY);
+        if (storedKey != null && !storedKey.isEmpty()) {
+            return Base64.getDecoder().decode(storedKey);
+        }
+        final byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        JiveGlobals.setProperty(KEY_PROPERTY, Base64.getEncoder().encodeToString(key), true);
+        log.info("Generated a new password reset token signing key");
+        return key;
+    }
+
+    /**
+     * Determines the password state from the SCRAM stored key, which changes (with the salt)
+     * every time the password is set, or failing that from the password itself.
+     *
+     * @param username the user
+     * @return the password state, or empty if the auth provider exposes neither
+     */
+    public static Optional<String> authProviderPasswordState(final String username) {
+        try {
+            return Optional.of(AuthFactory.getStoredKey(username));
+        } catch (final UnsupportedOperationException | UserNotFoundException ignored) {
+            // Fall through to the password
+        }
+        try {
+            return Optional.of(AuthFactory.getPassword(username));
+        } catch (final UnsupportedOperationException | UserNotFoundException ignored) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Optional;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestPage;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestSummary;
+
+/**
+ * Where the {@link PasswordResetTokenManager} keeps the tokens it has issued; see
+ * {@link PasswordResetPlugin#TOKEN_STORE}.
+ */
+public interface PasswordResetTokenStore {
+
+    /**
+     * Stores a token.
+     *
+     * @param token         the token
+     * @param userId        the user the token belongs to
+     * @param sourceAddress the address from which the token was requested
+     * @param expires       when the token expires
+     * @throws SQLException if something untoward happens
+     */
+    void store(String token, String userId, String sourceAddress, Instant expires)
+        throws SQLException;
+
+    /**
+     * Finds the user a token belongs to.
+     *
+     * @param token the token
+     * @return the user id, or empty if the token is not known or has expired
+     * @throws SQLException if something untoward happens
+     */
+    Optional<String> findUserId(String token) throws SQLException;
+
+    /**
+     * Uses a token: if it is valid, removes every token belonging to its user. Of any concurrent
+     * calls with the same token, at most one finds it valid.
+     *
+     * @param token the token
+     * @return the user id, or empty if the token is not known, has expired or has already been
+     *     used
+     * @throws SQLException if something untoward happens
+     */
+    Optional<String> consume(String token) throws SQLException;
+
+    /**
+     * Removes every token belonging to a user.
+     *
+     * @param userId the user
+     * @throws SQLException if something untoward happens
+     */
+    void deleteUser(String userId) throws SQLException;
+
+    /**
+     * Removes expired tokens.
+     *
+     * @return the number of tokens removed
+     * @throws SQLException if something untoward happens
+     */
+    int purgeExpired() throws SQLException;
+
+    /**
+     * Returns a page of the unexpired tokens, in order of user id, expiry and token hash.
+     *
+     * @param filter   the filter to apply
+     * @param cursor   the cursor of the previous page, or null or empty for the first page
+     * @param pageSize the maximum number of requests to return
+     * @return the page of reset requests
+     * @throws SQLException if something untoward happens
+     */
+    ResetRequestPage getResetRequests(ResetRequestFilter filter, String cursor, int pageSize)
+        throws SQLException;
+
+    /**
+     * Summarises the unexpired tokens.
+     *
+     * @param rows the maximum number of source addresses and of users to include
+     * @return the summary
+     * @throws SQLException if something untoward happens
+     */
+    ResetRequestSummary summarise(int rows) throws SQLException;
+
+    /**
+     * Called when the plugin starts, before any other method.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    default void start() throws SQLException {
+    }
+
+    /**
+     * Called when the plugin stops, after every other method.
+     *
+     * @throws SQLException if something untoward happens
+     */
+    default void stop() throws SQLException {
+    }
+}
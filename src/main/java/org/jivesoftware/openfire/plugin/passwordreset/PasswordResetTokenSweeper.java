@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.jivesoftware.util.TaskEngine;
+
+/**
+ * Periodically removes expired tokens from the database, so that requests never have to.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetTokenSweeper {
+
+    private final TaskEngine taskEngine;
+    private final PasswordResetTokenManager resetTokenManager;
+    private final Consumer<Duration> intervalListener = interval -> reschedule();
+    private final AtomicLong totalPurgeCount = new AtomicLong();
+    private TimerTask timerTask;
+    @Getter
+    private volatile Instant lastRun;
+    @Getter
+    private volatile int lastPurgeCount;
+    @Getter
+    private volatile Duration lastRunDuration = Duration.ZERO;
+
+    public PasswordResetTokenSweeper(
+        final TaskEngine taskEngine,
+        final PasswordResetTokenManager resetTokenManager) {
+        this.taskEngine = taskEngine;
+        this.resetTokenManager = resetTokenManager;
+    }
+
+    public long getTotalPurgeCount() {
+        return totalPurgeCount.get();
+    }
+
+    /**
+     * Starts sweeping at the interval set by {@link PasswordResetPlugin#PURGE_INTERVAL}, and
+     * follows any subsequent changes to that interval.
+     */
+    public void start() {
+        PasswordResetPlugin.PURGE_INTERVAL.addListener(intervalListener);
+        reschedule();
+    }
+
+    /**
+     * Stops sweeping.
+     */
+    public void stop() {
+        PasswordResetPlugin.PURGE_INTERVAL.removeListener(intervalListener);
+        cancel();
+    }
+
+    private synchronized void reschedule() {
+        cancel();
+        final Duration interval = PasswordResetPlugin.PURGE_INTERVAL.getValue();
+        // A TimerTask cannot be rescheduled, so each schedule needs a new one
+        timerTask = new TimerTask() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        };
+        taskEngine.schedule(timerTask, interval, interval);
+        log.debug("Expired tokens will be purged every {}", interval);
+    }
+
+    private synchronized void cancel() {
+        if (timerTask != null) {
+            taskEngine.cancelScheduledTask(timerTask);
+            timerTask = null;
+        }
+    }
+
+    /**
+     * Purges expired tokens once, recording how many were removed and how long it took.
+     */
+    void sweep() {
+        final Instant start = Instant.now();
+        try {
+            final int purgeCount = resetTokenManager.purgeExpiredTokens();
+            lastRunDuration = Duration.between(start, Instant.now());
+            lastPurgeCount = purgeCount;
+            totalPurgeCount.addAndGet(purgeCount);
+            log.debug("Purged {} expired tokens in {} ms",
+                purgeCount, lastRunDuration.toMillis());
+        } catch (final SQLException e) {
+            log.error("Unable to purge expired tokens", e);
+        } finally {
+            lastRun = start;
+        }
+    }
+}
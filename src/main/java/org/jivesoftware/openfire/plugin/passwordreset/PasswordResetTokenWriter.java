@@ -0,0 +1,334 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Inserts tokens using group commit: the first of a number of concurrent requests waits briefly
+ * for others to join it, then inserts all their tokens in a single batch and transaction, while
+ * the others wait for that to complete. Tokens are visible through {@link #getPending(String)}
+ * while they are waiting to be written.
+ */
+@Slf4j
+@SuppressFBWarnings({"EI_EXPOSE_REP2"})
+public class PasswordResetTokenWriter {
+
+    private final PasswordResetTokenManager.SqlExceptionSupplier<Connection> connectionSupplier;
+    private final PasswordResetTokenManager.SqlExceptionFunction<Connection, String> insertSql;
+    private final IntSupplier maxBatchSize;
+    private final Supplier<Duration> batchWindow;
+    private final Map<String, PendingToken> pendingTokens = new ConcurrentHashMap<>();
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder tokenCount = new LongAdder();
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicInteger largestBatchSize = new AtomicInteger();
+    private Batch fillingBatch;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param connectionSupplier supplies connections to write with
+     * @param insertSql          the statement that inserts a token, with parameters for the token
+     *                           hash, user id, packed source address and expiry millis
+     * @param maxBatchSize       supplies the largest number of tokens to write at once
+     * @param batchWindow        supplies how long to wait for other tokens to join a batch
+     */
+    public PasswordResetTokenWriter(
+        final PasswordResetTokenManager.SqlExceptionSupplier<Connection> connectionSupplier,
+        final String insertSql,
+        final IntSupplier maxBatchSize,
+        final Supplier<Duration> batchWindow) {
+        this(connectionSupplier, connection -> insertSql, maxBatchSize, batchWindow);
+    }
+
+    /**
+     * Creates a new writer whose insert statement depends on the database written to.
+     *
+     * @param connectionSupplier supplies connections to write with
+     * @param insertSql          supplies, for the connection about to be written with, the
+     *                           statement that inserts a token, with parameters for the token
+     *                           hash, user id, packed source address and expiry millis
+     * @param maxBatchSize       supplies the largest number of tokens to write at once
+     * @param batchWindow        supplies how long to wait for other tokens to join a batch
+     */
+    public PasswordResetTokenWriter(
+        final PasswordResetTokenManager.SqlExceptionSupplier<Connection> connectionSupplier,
+        final PasswordResetTokenManager.SqlExceptionFunction<Connection, String> insertSql,
+        final IntSupplier maxBatchSize,
+        final Supplier<Duration> batchWindow) {
+        this.connectionSupplier = connectionSupplier;
+        this.insertSql = insertSql;
+        this.maxBatchSize = maxBatchSize;
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Writes a token to the database, returning once it has been committed.
+     *
+     * @param token         the token
+     * @param userId        the user the token belongs to
+     * @param sourceAddress the address from which the token was requested
+     * @param expires       when the token expires
+     * @throws SQLException if the token could not be written
+     */
+    public void write(
+        final String token,
+        final String userId,
+        final String sourceAddress,
+        final Instant expires) throws SQLException {
+        write(token, userId, sourceAddress, expires, null);
+    }
+
+    /**
+     * Writes a token to the database, returning once it has been committed. If a sealed token is
+     * given, the email that sends it is added to the {@link PasswordResetOutbox} in the same
+     * transaction, so that the token is never written without it.
+     *
+     * @param token         the token
+     * @param userId        the user the token belongs to
+     * @param sourceAddress the address from which the token was requested
+     * @param expires       when the token expires
+     * @param sealedToken   the token as sealed by {@link PasswordResetOutbox#seal(String)}, or
+     *                      null to write no email
+     * @throws SQLException if the token could not be written
+     */
+    public void write(
+        final String token,
+        final String userId,
+        final String sourceAddress,
+        final Instant expires,
+        final String sealedToken) throws SQLException {
+        final Batch batch;
+        final boolean leader;
+        synchronized (this) {
+            leader = fillingBatch == null;
+            if (leader) {
+                fillingBatch = new Batch();
+            }
+            batch = fillingBatch;
+            final PendingToken pendingToken =
+                new PendingToken(token, userId, sourceAddress, expires, sealedToken,
+                    batch.committed);
+            batch.tokens.add(pendingToken);
+            pendingTokens.put(token, pendingToken);
+            if (batch.tokens.size() >= maxBatchSize.getAsInt()) {
+                fillingBatch = null;
+                notifyAll();
+            }
+        }
+        try {
+            if (leader) {
+                awaitBatch(batch);
+                writeBatch(batch);
+            }
+            await(batch.committed);
+        } finally {
+            pendingTokens.remove(token);
+        }
+    }
+
+    private synchronized void awaitBatch(final Batch batch) {
+        final long deadline = System.nanoTime() + batchWindow.get().toNanos();
+        long remaining = deadline - System.nanoTime();
+        try {
+            while (fillingBatch == batch && remaining > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+        } catch (final InterruptedException ignored) {
+            // Write what has been gathered so far
+            Thread.currentThread().interrupt();
+        }
+        if (fillingBatch == batch) {
+            fillingBatch = null;
+        }
+    }
+
+    private void writeBatch(final Batch batch) {
+        final long start = System.nanoTime();
+        try (final Connection connection = connectionSupplier.get()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement statement =
+                     connection.prepareStatement(insertSql.apply(connection))) {
+                for (final PendingToken pendingToken : batch.tokens) {
+                    statement.setBytes(1, PasswordResetTokenEncoding.hash(pendingToken.token));
+                    statement.setString(2, pendingToken.userId);
+                    statement.setBytes(3,
+                        PasswordResetTokenEncoding.packAddress(pendingToken.sourceAddress));
+                    statement.setLong(4, pendingToken.expires.toEpochMilli());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                writeOutbox(connection, batch);
+                connection.commit();
+            } catch (final SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (final SQLException | RuntimeException e) {
+            // Never leave the rest of the batch waiting
+            batch.committed.completeExceptionally(e);
+            return;
+        }
+        final int size = batch.tokens.size();
+        batchCount.increment();
+        tokenCount.add(size);
+        commitNanos.add(System.nanoTime() - start);
+        largestBatchSize.accumulateAndGet(size, Math::max);
+        log.debug("Wrote a batch of {} tokens", size);
+        batch.committed.complete(null);
+    }
+
+    private static void writeOutbox(final Connection connection, final Batch batch)
+        throws SQLException {
+        if (batch.tokens.stream().allMatch(pendingToken -> pendingToken.sealedToken == null)) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        try (final PreparedStatement statement =
+                 connection.prepareStatement(PasswordResetOutbox.INSERT_SQL)) {
+            for (final PendingToken pendingToken : batch.tokens) {
+                if (pendingToken.sealedToken != null) {
+                    statement.setBytes(1, PasswordResetTokenEncoding.hash(pendingToken.token));
+                    statement.setString(2, pendingToken.userId);
+                    statement.setString(3, pendingToken.sealedToken);
+                    statement.setLong(4, pendingToken.expires.toEpochMilli());
+                    statement.setLong(5, now);
+                    statement.setLong(6, now);
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static void await(final CompletableFuture<Void> committed) throws SQLException {
+        try {
+            committed.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for the token to be written", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Retrieves the user id for a token that has not yet been committed.
+     *
+     * @param token the token to look up
+     * @return the user id, or empty if the token is not waiting to be written
+     */
+    public Optional<String> getPending(final String token) {
+        return Optional.ofNullable(pendingTokens.get(token))
+            .filter(pendingToken -> pendingToken.expires.isAfter(Instant.now()))
+            .map(pendingToken -> pendingToken.userId);
+    }
+
+    /**
+     * Waits until every token for a user that is waiting to be written has been written (or has
+     * failed to be written), so that they can then be deleted.
+     *
+     * @param userId the user
+     * @throws SQLException if interrupted while waiting
+     */
+    public void awaitPending(final String userId) throws SQLException {
+        for (final PendingToken pendingToken : pendingTokens.values()) {
+            if (pendingToken.userId.equals(userId)) {
+                try {
+                    await(pendingToken.committed);
+                } catch (final SQLException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+                    // A token that failed to be written needs no deleting
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of batches committed.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * Returns the average number of tokens in each committed batch.
+     *
+     * @return the average batch size, or zero if there have been none
+     */
+    public double getAverageBatchSize() {
+        final long batches = batchCount.sum();
+        return batches == 0 ? 0 : (double) tokenCount.sum() / batches;
+    }
+
+    public int getLargestBatchSize() {
+        return largestBatchSize.get();
+    }
+
+    /**
+     * Returns the average time taken to write and commit a batch, excluding the time spent
+     * waiting for the batch to fill.
+     *
+     * @return the average commit latency, or zero if there have been no batches
+     */
+    public Duration getAverageCommitLatency() {
+        final long batches = batchCount.sum();
+        return batches == 0 ? Duration.ZERO : Duration.ofNanos(commitNanos.sum() / batches);
+    }
+
+    private static final class Batch {
+        private final List<PendingToken> tokens = new ArrayList<>();
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+    }
+
+    private static final class PendingToken {
+        private final String token;
+        private final String userId;
+        private final String sourceAddress;
+        private final Instant expires;
+        private final String sealedToken;
+        private final CompletableFuture<Void> committed;
+
+        private PendingToken(
+            final String token,
+            final String userId,
+            final String sourceAddress,
+            final Instant expires,
+            final String sealedToken,
+            final CompletableFuture<Void> committed) {
+            this.token = token;
+            this.userId = userId;
+            this.sourceAddress = sourceAddress;
+            this.expires = expires;
+            this.sealedToken = sealedToken;
+            this.committed = committed;
+        }
+    }
+}
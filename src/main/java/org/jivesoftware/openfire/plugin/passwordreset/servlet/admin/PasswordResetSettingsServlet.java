@@ -6,8 +6,14 @@ import static org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.IOException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -18,10 +24,16 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.hazlewood.connor.bottema.emailaddress.EmailAddressValidator;
 import org.jivesoftware.admin.FlashMessageTag;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetBounceSuppressor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetDomainSuppressor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailQueue;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailer;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetOutbox;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTemplate;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager;
-import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequest;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenSweeper;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserProvider;
@@ -33,32 +45,54 @@ import org.jivesoftware.util.WebManager;
 public class PasswordResetSettingsServlet extends HttpServlet {
 
     private static final long serialVersionUID = -2522058940676139518L;
+    private static final long MILLISECONDS_IN_SECOND = Duration.ofSeconds(1).toMillis();
     private static final long MILLISECONDS_IN_MINUTE = Duration.ofMinutes(1).toMillis();
     private static final long MILLISECONDS_IN_HOUR = Duration.ofHours(1).toMillis();
     private static final long MILLISECONDS_IN_DAY = Duration.ofDays(1).toMillis();
+    private static final int RESET_REQUESTS_PAGE_SIZE = 50;
     private static UserProvider userProvider;
     private static Supplier<WebManager> webManagerSupplier;
+    private static PasswordResetDomainSuppressor domainSuppressor;
+    private static PasswordResetBounceSuppressor bounceSuppressor;
     private static PasswordResetMailer passwordResetMailer;
+    private static PasswordResetMailQueue mailQueue;
+    private static PasswordResetOutbox outbox;
     private static PasswordResetTokenManager resetTokenManager;
+    private static PasswordResetTokenSweeper tokenSweeper;
 
     @Override
     public void init() {
         final PasswordResetPlugin plugin = PasswordResetPlugin.getInstance();
         initStatic(UserManager.getUserProvider(),
             WebManager::new,
+            plugin.getDomainSuppressor(),
+            plugin.getBounceSuppressor(),
             plugin.getPasswordResetMailer(),
-            plugin.getResetTokenManager());
+            plugin.getMailQueue(),
+            plugin.getOutbox(),
+            plugin.getResetTokenManager(),
+            plugin.getTokenSweeper());
     }
 
     static void initStatic(
         final UserProvider userProvider,
         final Supplier<WebManager> webManagerSupplier,
+        final PasswordResetDomainSuppressor domainSuppressor,
+        final PasswordResetBounceSuppressor bounceSuppressor,
         final PasswordResetMailer passwordResetMailer,
-        final PasswordResetTokenManager resetTokenManager) {
+        final PasswordResetMailQueue mailQueue,
+        final PasswordResetOutbox outbox,
+        final PasswordResetTokenManager resetTokenManager,
+        final PasswordResetTokenSweeper tokenSweeper) {
         PasswordResetSettingsServlet.userProvider = userProvider;
         PasswordResetSettingsServlet.webManagerSupplier = webManagerSupplier;
+        PasswordResetSettingsServlet.domainSuppressor = domainSuppressor;
+        PasswordResetSettingsServlet.bounceSuppressor = bounceSuppressor;
         PasswordResetSettingsServlet.passwordResetMailer = passwordResetMailer;
+        PasswordResetSettingsServlet.mailQueue = mailQueue;
+        PasswordResetSettingsServlet.outbox = outbox;
         PasswordResetSettingsServlet.resetTokenManager = resetTokenManager;
+        PasswordResetSettingsServlet.tokenSweeper = tokenSweeper;
     }
 
     @Override
@@ -66,9 +100,41 @@ public class PasswordResetSettingsServlet extends HttpServlet {
         throws ServletException, IOException {
         final Dto dto = new Dto();
         request.setAttribute("dto", dto);
+        if (dto.enabled) {
+            // Only listed here, so that saving the settings never has to query them
+            final ResetRequestFilter filter = new ResetRequestFilter(
+                ParamUtils.getStringParameter(request, "filter-user", "").trim(),
+                ParamUtils.getStringParameter(request, "filter-source", "").trim(),
+                parseDate(ParamUtils.getStringParameter(request, "filter-expires-from", ""), 0),
+                parseDate(ParamUtils.getStringParameter(request, "filter-expires-to", ""), 1));
+            resetTokenManager.getResetRequestSummary()
+                .ifPresent(summary -> request.setAttribute("summary", summary));
+            request.setAttribute("resetRequests", resetTokenManager.getResetRequests(
+                filter,
+                ParamUtils.getStringParameter(request, "after", ""),
+                RESET_REQUESTS_PAGE_SIZE));
+        }
         request.getRequestDispatcher("password-reset-settings.jsp").forward(request, response);
     }
 
+    /**
+     * Parses a date, as submitted by a date input, in to the start of that day - or a number of
+     * days later - in the server's time zone.
+     */
+    private static Instant parseDate(final String date, final int daysToAdd) {
+        if (date.isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date)
+                .plusDays(daysToAdd)
+                .atStartOfDay(ZoneId.systemDefault())
+                .toInstant();
+        } catch (final DateTimeParseException ignored) {
+            return null;
+        }
+    }
+
     @Override
     protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
         throws IOException, ServletException {
@@ -129,9 +195,19 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             PasswordResetPlugin.SENDER_ADDRESS.setValue(dto.senderAddress);
             PasswordResetPlugin.SUBJECT.setValue(dto.subject);
             PasswordResetPlugin.BODY.setValue(dto.body);
+            PasswordResetPlugin.HTML_BODY.setValue(dto.htmlBody);
             PasswordResetPlugin.EXPIRY.setValue(dto.getExpiry());
             PasswordResetPlugin.MIN_LENGTH.setValue(Integer.valueOf(dto.getMinLength()));
             PasswordResetPlugin.MAX_LENGTH.setValue(Integer.valueOf(dto.getMaxLength()));
+            PasswordResetPlugin.ADDRESS_RATE_LIMIT.setValue(
+                Integer.valueOf(dto.getAddressRateLimit()));
+            PasswordResetPlugin.ADDRESS_RATE_PERIOD.setValue(
+                Duration.ofMinutes(Long.parseLong(dto.getAddressRatePeriod())));
+            PasswordResetPlugin.ACCOUNT_RATE_LIMIT.setValue(
+                Integer.valueOf(dto.getAccountRateLimit()));
+            PasswordResetPlugin.ACCOUNT_RATE_PERIOD.setValue(
+                Duration.ofMinutes(Long.parseLong(dto.getAccountRatePeriod())));
+            PasswordResetPlugin.TRUST_FORWARDED_FOR.setValue(dto.isTrustForwardedFor());
             createWebManagerForLocalUser(request, response)
                 .logEvent("Password reset plugin settings updated", dto.toString());
             redirectWithMessage(request, response, FlashMessageTag.SUCCESS_MESSAGE_KEY,
@@ -173,6 +249,8 @@ public class PasswordResetSettingsServlet extends HttpServlet {
         private final String subjectError;
         private final String body;
         private final String bodyError;
+        private final String htmlBody;
+        private final String htmlBodyError;
         private final String expiryCount;
         private final String expiryPeriod;
         private final String expiryError;
@@ -180,9 +258,16 @@ public class PasswordResetSettingsServlet extends HttpServlet {
         private final String minLengthError;
         private final String maxLength;
         private final String maxLengthError;
+        private final String addressRateLimit;
+        private final String addressRatePeriod;
+        private final String addressRateError;
+        private final String accountRateLimit;
+        private final String accountRatePeriod;
+        private final String accountRateError;
+        private final boolean trustForwardedFor;
         private final boolean valid;
         @SuppressFBWarnings({"EI_EXPOSE_REP"})
-        private final List<ResetRequest> resetRequests;
+        private final Stats stats;
 
         private Dto() {
             this.notSupported = userProvider.isReadOnly();
@@ -197,6 +282,8 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             this.subjectError = "";
             this.body = PasswordResetPlugin.BODY.getValue();
             this.bodyError = "";
+            this.htmlBody = PasswordResetPlugin.HTML_BODY.getValue();
+            this.htmlBodyError = "";
             final long expiry = PasswordResetPlugin.EXPIRY.getValue().toMillis();
             if (expiry % MILLISECONDS_IN_DAY == 0) {
                 expiryCount = String.valueOf(expiry / MILLISECONDS_IN_DAY);
@@ -213,8 +300,19 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             this.minLengthError = "";
             this.maxLength = String.valueOf(PasswordResetPlugin.MAX_LENGTH.getValue());
             this.maxLengthError = "";
+            this.addressRateLimit =
+                String.valueOf(PasswordResetPlugin.ADDRESS_RATE_LIMIT.getValue());
+            this.addressRatePeriod =
+                String.valueOf(PasswordResetPlugin.ADDRESS_RATE_PERIOD.getValue().toMinutes());
+            this.addressRateError = "";
+            this.accountRateLimit =
+                String.valueOf(PasswordResetPlugin.ACCOUNT_RATE_LIMIT.getValue());
+            this.accountRatePeriod =
+                String.valueOf(PasswordResetPlugin.ACCOUNT_RATE_PERIOD.getValue().toMinutes());
+            this.accountRateError = "";
+            this.trustForwardedFor = PasswordResetPlugin.TRUST_FORWARDED_FOR.getValue();
             this.valid = allValid();
-            resetRequests = resetTokenManager.getResetRequests();
+            this.stats = new Stats();
         }
 
         private Dto(final HttpServletRequest request) {
@@ -230,6 +328,8 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             this.subjectError = validateSubject();
             this.body = ParamUtils.getStringParameter(request, "body", "");
             this.bodyError = validateBody();
+            this.htmlBody = ParamUtils.getStringParameter(request, "html-body", "");
+            this.htmlBodyError = validateHtmlBody();
             this.expiryCount = ParamUtils.getStringParameter(request, "expiryCount", "");
             this.expiryPeriod = ParamUtils.getStringParameter(request, "expiryPeriod", "");
             this.expiryError = validateExpiry();
@@ -237,14 +337,38 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             this.minLengthError = validateMinLength();
             this.maxLength = ParamUtils.getStringParameter(request, "maxLength", "");
             this.maxLengthError = validateMaxLength();
+            this.addressRateLimit =
+                ParamUtils.getStringParameter(request, "addressRateLimit", "");
+            this.addressRatePeriod =
+                ParamUtils.getStringParameter(request, "addressRatePeriod", "");
+            this.addressRateError = validateRate(addressRateLimit, addressRatePeriod);
+            this.accountRateLimit =
+                ParamUtils.getStringParameter(request, "accountRateLimit", "");
+            this.accountRatePeriod =
+                ParamUtils.getStringParameter(request, "accountRatePeriod", "");
+            this.accountRateError = validateRate(accountRateLimit, accountRatePeriod);
+            this.trustForwardedFor =
+                ParamUtils.getBooleanParameter(request, "trustForwardedFor");
             this.valid = allValid();
-            resetRequests = resetTokenManager.getResetRequests();
+            this.stats = new Stats();
         }
 
         private boolean allValid() {
             return serverError.isEmpty() && senderNameError.isEmpty()
                 && senderAddressError.isEmpty() && subjectError.isEmpty() && bodyError.isEmpty()
-                && expiryError.isEmpty() && minLengthError.isEmpty() && maxLengthError.isEmpty();
+                && htmlBodyError.isEmpty()
+                && expiryError.isEmpty() && minLengthError.isEmpty() && maxLengthError.isEmpty()
+                && addressRateError.isEmpty() && accountRateError.isEmpty();
+        }
+
+        private static String validateRate(final String limit, final String period) {
+            if (StringUtils.parseInteger(limit).orElse(-1) < 0) {
+                return localize("passwordreset.settings.rate-limit-integer");
+            }
+            if (StringUtils.parseInteger(period).orElse(0) < 1) {
+                return localize("passwordreset.settings.rate-period-integer");
+            }
+            return "";
         }
 
         private String validateMaxLength() {
@@ -288,7 +412,14 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             if (body.length() > MAX_PROP_LENGTH) {
                 return localize("passwordreset.settings.body-too-long");
             }
-            return "";
+            return validatePlaceholders(body);
+        }
+
+        private String validateHtmlBody() {
+            if (htmlBody.length() > MAX_PROP_LENGTH) {
+                return localize("passwordreset.settings.html-body-too-long");
+            }
+            return validatePlaceholders(htmlBody);
         }
 
         private String validateSubject() {
@@ -298,6 +429,16 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             if (subject.length() > MAX_PROP_LENGTH) {
                 return localize("passwordreset.settings.subject-too-long");
             }
+            return validatePlaceholders(subject);
+        }
+
+        private static String validatePlaceholders(final String template) {
+            final Set<String> unknownPlaceholders =
+                PasswordResetTemplate.compile(template).getUnknownPlaceholders();
+            if (!unknownPlaceholders.isEmpty()) {
+                return localize("passwordreset.settings.unknown-placeholders",
+                    String.join(", ", unknownPlaceholders));
+            }
             return "";
         }
 
@@ -341,4 +482,87 @@ public class PasswordResetSettingsServlet extends HttpServlet {
             return Duration.of(Long.parseLong(expiryCount), ChronoUnit.valueOf(expiryPeriod));
         }
     }
+
+    /**
+     * The statistics shown at the bottom of the settings page.
+     */
+    @Data
+    public static final class Stats {
+
+        private final long cacheHits;
+        private final long cacheMisses;
+        private final long insertBatchCount;
+        private final double averageInsertBatchSize;
+        private final int largestInsertBatchSize;
+        private final long averageInsertCommitMillis;
+        @SuppressFBWarnings({"EI_EXPOSE_REP"})
+        private final Date lastPurgeRun;
+        private final int lastPurgeCount;
+        private final int mailQueueDepth;
+        private final long mailSentCount;
+        private final long mailSentByRequesterCount;
+        private final long mailFailedCount;
+        private final long averageMailWaitMillis;
+        private final long averageMailSendMillis;
+        private final long mailBatchCount;
+        private final double averageMailBatchSize;
+        private final double mailDeliveryThroughput;
+        private final boolean outboxEnabled;
+        private final long outboxBacklog;
+        private final long outboxLagSeconds;
+        private final long outboxSentCount;
+        private final long averageOutboxLagMillis;
+        private final long outboxFailedCount;
+        private final long outboxAbandonedCount;
+        private final int suppressedDomainCount;
+        private final long suppressedEmailCount;
+        private final int bouncedAddressCount;
+        private final long bouncedEmailCount;
+        private final long bounceFileCount;
+        private final long lastPurgeMillis;
+        private final long totalPurgeCount;
+
+        private Stats() {
+            cacheHits = resetTokenManager.getCacheHits();
+            cacheMisses = resetTokenManager.getCacheMisses();
+            insertBatchCount = resetTokenManager.getInsertBatchCount();
+            averageInsertBatchSize = resetTokenManager.getAverageInsertBatchSize();
+            largestInsertBatchSize = resetTokenManager.getLargestInsertBatchSize();
+            averageInsertCommitMillis =
+                toMillis(resetTokenManager.getAverageInsertCommitLatency());
+            lastPurgeRun = toDate(tokenSweeper.getLastRun());
+            lastPurgeCount = tokenSweeper.getLastPurgeCount();
+            lastPurgeMillis = toMillis(tokenSweeper.getLastRunDuration());
+            totalPurgeCount = tokenSweeper.getTotalPurgeCount();
+            mailQueueDepth = mailQueue.getQueueDepth();
+            mailSentCount = mailQueue.getSentCount();
+            mailSentByRequesterCount = mailQueue.getSentByRequesterCount();
+            mailFailedCount = mailQueue.getFailedCount();
+            averageMailWaitMillis = toMillis(mailQueue.getAverageWait());
+            averageMailSendMillis = toMillis(mailQueue.getAverageSend());
+            mailBatchCount = mailQueue.getBatchCount();
+            averageMailBatchSize = mailQueue.getAverageBatchSize();
+            mailDeliveryThroughput = mailQueue.getDeliveryThroughput();
+            outboxEnabled = outbox.isEnabled();
+            outboxBacklog = outbox.getBacklog();
+            outboxLagSeconds = toMillis(outbox.getDeliveryLag()) / MILLISECONDS_IN_SECOND;
+            outboxSentCount = outbox.getSentCount();
+            averageOutboxLagMillis = toMillis(outbox.getAverageSentLag());
+            outboxFailedCount = outbox.getFailedCount();
+            outboxAbandonedCount = outbox.getAbandonedCount();
+            suppressedDomainCount = domainSuppressor.getDomainCount();
+            suppressedEmailCount = domainSuppressor.getSuppressedCount();
+            bouncedAddressCount = bounceSuppressor.getAddressCount();
+            bouncedEmailCount = bounceSuppressor.getSuppressedCount();
+            bounceFileCount = bounceSuppressor.getFileCount();
+        }
+
+        private static Date toDate(final Instant instant) {
+            return instant == null ? null : Date.from(instant);
+        }
+
+        private static long toMillis(final Duration duration) {
+            return duration == null ? 0 : duration.toMillis();
+        }
+    }
 }
@@ -88,7 +88,8 @@ public class PasswordResetChangePasswordServlet extends HttpServlet {
         request.setAttribute("form", form);
         if (form.valid) {
             try {
-                final Optional<User> optionalUser = resetTokenManager.getUser(form.token);
+                // Used up before the password is changed, so it can only be used once
+                final Optional<User> optionalUser = resetTokenManager.consumeToken(form.token);
                 if (optionalUser.isEmpty()) {
                     request.getRequestDispatcher("password-reset-bad-token.jsp")
                         .forward(request, response);
@@ -101,7 +102,6 @@ public class PasswordResetChangePasswordServlet extends HttpServlet {
                     return;
                 }
                 user.setPassword(form.newPassword);
-                resetTokenManager.deleteTokens(user);
                 request.getSession().setAttribute(
                     FlashMessageTag.SUCCESS_MESSAGE_KEY,
                     localize("passwordreset.change-password.password-changed"));
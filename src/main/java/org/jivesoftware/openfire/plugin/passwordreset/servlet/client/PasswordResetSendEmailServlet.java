@@ -4,7 +4,6 @@ import static org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Collection;
 import java.util.Optional;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -14,9 +13,16 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.jivesoftware.admin.FlashMessageTag;
 import org.jivesoftware.openfire.XMPPServer;
-import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailer;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetEmailIndex;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetEmailSearch;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetIdentifierCache;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailQueue;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetOutbox;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetRateLimiter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetSingleFlight;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.IssuedToken;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
@@ -28,12 +34,20 @@ import org.xmpp.packet.JID;
 public class PasswordResetSendEmailServlet extends HttpServlet {
 
     private static final long serialVersionUID = -7605965376783076351L;
-    private static final int BATCH_SIZE = 50;
+    // Not defined by HttpServletResponse
+    private static final int SC_TOO_MANY_REQUESTS = 429;
     private static XMPPServer xmppServer;
     private static UserProvider userProvider;
     private static UserManager userManager;
     private static PasswordResetTokenManager resetTokenManager;
-    private static PasswordResetMailer passwordResetMailer;
+    private static PasswordResetMailQueue mailQueue;
+    private static PasswordResetOutbox outbox;
+    private static PasswordResetEmailIndex emailIndex;
+    private static PasswordResetEmailSearch emailSearch;
+    private static PasswordResetIdentifierCache identifierCache;
+    private static PasswordResetRateLimiter addressRateLimiter;
+    private static PasswordResetRateLimiter accountRateLimiter;
+    private static PasswordResetSingleFlight<String> resetSingleFlight;
 
     @Override
     public void init() {
@@ -42,7 +56,14 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
             UserManager.getUserProvider(),
             UserManager.getInstance(),
             plugin.getResetTokenManager(),
-            plugin.getPasswordResetMailer());
+            plugin.getMailQueue(),
+            plugin.getOutbox(),
+            plugin.getEmailIndex(),
+            plugin.getEmailSearch(),
+            plugin.getIdentifierCache(),
+            plugin.getAddressRateLimiter(),
+            plugin.getAccountRateLimiter(),
+            plugin.getResetSingleFlight());
     }
 
     static void initStatic(
@@ -50,12 +71,26 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
         final UserProvider userProvider,
         final UserManager userManager,
         final PasswordResetTokenManager resetTokenManager,
-        final PasswordResetMailer passwordResetMailer) {
+        final PasswordResetMailQueue mailQueue,
+        final PasswordResetOutbox outbox,
+        final PasswordResetEmailIndex emailIndex,
+        final PasswordResetEmailSearch emailSearch,
+        final PasswordResetIdentifierCache identifierCache,
+        final PasswordResetRateLimiter addressRateLimiter,
+        final PasswordResetRateLimiter accountRateLimiter,
+        final PasswordResetSingleFlight<String> resetSingleFlight) {
         PasswordResetSendEmailServlet.xmppServer = xmppServer;
         PasswordResetSendEmailServlet.userProvider = userProvider;
         PasswordResetSendEmailServlet.userManager = userManager;
         PasswordResetSendEmailServlet.resetTokenManager = resetTokenManager;
-        PasswordResetSendEmailServlet.passwordResetMailer = passwordResetMailer;
+        PasswordResetSendEmailServlet.mailQueue = mailQueue;
+        PasswordResetSendEmailServlet.outbox = outbox;
+        PasswordResetSendEmailServlet.emailIndex = emailIndex;
+        PasswordResetSendEmailServlet.emailSearch = emailSearch;
+        PasswordResetSendEmailServlet.identifierCache = identifierCache;
+        PasswordResetSendEmailServlet.addressRateLimiter = addressRateLimiter;
+        PasswordResetSendEmailServlet.accountRateLimiter = accountRateLimiter;
+        PasswordResetSendEmailServlet.resetSingleFlight = resetSingleFlight;
     }
 
     @Override
@@ -85,16 +120,30 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
         final HttpServletRequest request,
         final HttpServletResponse response) throws IOException, ServletException {
 
+        final String sourceAddress = getSourceAddress(request);
+        // Before looking up the user, so that a flood of requests never reaches the provider
+        if (!addressRateLimiter.tryAcquire(sourceAddress)) {
+            log.debug("Too many password resets requested from {}", sourceAddress);
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            request.getSession().setAttribute(
+                FlashMessageTag.ERROR_MESSAGE_KEY,
+                localize("passwordreset.send-email.too-many-requests"));
+            request.setAttribute("form", form);
+            request.getRequestDispatcher("password-reset-send-email.jsp")
+                .forward(request, response);
+            return;
+        }
+
         final Optional<User> optionalUser = getUserFromIdentifier(form.user);
 
         // Dont warn the user if they've not specified the correct value - we don't want people
-        // using this page to guess valid identifiers
+        // using this page to guess valid identifiers. Nor if too many emails have been sent to
+        // the user, which would tell them the same.
         try {
             if (optionalUser.isPresent()) {
                 final User user = optionalUser.get();
-                final String token;
-                token = resetTokenManager.generateToken(user, request.getRemoteAddr());
-                passwordResetMailer.sendEmail(user, token);
+                // Concurrent duplicate requests share the one token and email
+                resetSingleFlight.execute(user.getUsername(), () -> sendReset(user, sourceAddress));
             }
             form.emailSent = true;
         } catch (final SQLException e) {
@@ -108,6 +157,37 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
             .forward(request, response);
     }
 
+    private static String sendReset(final User user, final String sourceAddress)
+        throws SQLException {
+        if (!accountRateLimiter.tryAcquire(user.getUsername())) {
+            log.debug("Too many password resets requested for {}", user.getUsername());
+            return null;
+        }
+        final IssuedToken issuedToken =
+            resetTokenManager.generateToken(user, sourceAddress, outbox);
+        if (!issuedToken.isQueued()) {
+            mailQueue.submit(user, issuedToken.getToken());
+        }
+        return issuedToken.getToken();
+    }
+
+    /**
+     * Returns the address the request came from. If enabled, this is the last address in any
+     * X-Forwarded-For header, being the one added by the proxy in front of Openfire; earlier
+     * addresses may have been set by the client.
+     */
+    private static String getSourceAddress(final HttpServletRequest request) {
+        final String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (PasswordResetPlugin.TRUST_FORWARDED_FOR.getValue() && forwardedFor != null) {
+            final String address =
+                forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+            if (!address.isEmpty()) {
+                return address;
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
     /**
      * There are three ways a user can specify their id.
      * <ol>
@@ -116,10 +196,22 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
      * <ul>Their actual email {@code admin@example.com}</ul>
      * </ol>
      *
+     * Identifiers that cannot be any of these are rejected before they are parsed, and what each
+     * identifier resolved to, if anything, is cached, so that guessing identifiers does not reach
+     * the user provider.
+     *
      * @param userIdentifier one of the above forms, hopefully
      * @return The User if one can be found.
      */
     private Optional<User> getUserFromIdentifier(final String userIdentifier) {
+        if (!PasswordResetIdentifierCache.isPlausible(userIdentifier)) {
+            return Optional.empty();
+        }
+        return identifierCache.resolve(
+            userIdentifier, this::resolveUser, this::getUserFromUserId);
+    }
+
+    private Optional<User> resolveUser(final String userIdentifier) {
         if (userIdentifier.contains("@")) {
             // We have either an email /or/ a JID
             final JID jid = new JID(userIdentifier);
@@ -139,18 +231,15 @@ public class PasswordResetSendEmailServlet extends HttpServlet {
     }
 
     private Optional<User> getUserFromEmail(final String userEmail) {
-        // Fetch users in batches to try and avoid flooding the system
-        int currentIndex = 0;
-        Collection<User> users;
-        while (!(users = userManager.getUsers(currentIndex, BATCH_SIZE)).isEmpty()) {
-            for (final User user : users) {
-                if (userEmail.equalsIgnoreCase(user.getEmail())) {
-                    return Optional.of(user);
-                }
+        if (emailIndex.isWarm()) {
+            final Optional<User> user =
+                emailIndex.findUsername(userEmail).flatMap(this::getUserFromUserId);
+            // The user may have been changed elsewhere since the index was last rebuilt
+            if (user.isEmpty() || userEmail.equalsIgnoreCase(user.get().getEmail())) {
+                return user;
             }
-            currentIndex += BATCH_SIZE;
         }
-        return Optional.empty();
+        return emailSearch.findByEmail(userEmail);
     }
 
     private Optional<User> getUserFromUserId(final String userId) {
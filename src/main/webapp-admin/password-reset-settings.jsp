@@ -202,6 +202,27 @@
                                 </c:if>
                             </td>
                         </tr>
+                        <tr>
+                            <td style="vertical-align: top">
+                                <label for="html-body">
+                                    <fmt:message key="passwordreset.settings.html-body-label"/>
+                                </label>
+                            </td>
+                            <td>
+                                <textarea id="html-body" name="html-body"
+                                          style="width: 41em; height: 10em"
+                                          <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                ><c:out value="${dto.htmlBody}"/></textarea>
+                            </td>
+                            <td style="vertical-align: top">
+                                <fmt:message key="passwordreset.settings.html-body-description"/>
+                                <c:if test='${!empty dto.htmlBodyError}'>
+                                    <div class="warning">
+                                        <c:out value="${dto.htmlBodyError}"/>
+                                    </div>
+                                </c:if>
+                            </td>
+                        </tr>
                         <tr>
                             <td>
                                 <label for="expiryCount">
@@ -287,6 +308,81 @@
                                 </c:if>
                             </td>
                         </tr>
+                        <tr>
+                            <td>
+                                <label for="addressRateLimit">
+                                    <fmt:message key="passwordreset.settings.address-rate-label"/>
+                                </label>
+                            </td>
+                            <td>
+                                <input id="addressRateLimit" name="addressRateLimit" type="number"
+                                       min="0" style="width: 5em"
+                                       <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                       value="<c:out value="${dto.addressRateLimit}"/>"
+                                >
+                                <fmt:message key="passwordreset.settings.rate-per"/>
+                                <input id="addressRatePeriod" name="addressRatePeriod" type="number"
+                                       min="1" style="width: 5em"
+                                       <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                       value="<c:out value="${dto.addressRatePeriod}"/>"
+                                >
+                                <fmt:message key="passwordreset.settings.rate-minutes"/>
+                            </td>
+                            <td>
+                                <fmt:message key="passwordreset.settings.address-rate-description"/>
+                                <c:if test='${!empty dto.addressRateError}'>
+                                    <div class="warning">
+                                        <c:out value="${dto.addressRateError}"/>
+                                    </div>
+                                </c:if>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td>
+                                <label for="accountRateLimit">
+                                    <fmt:message key="passwordreset.settings.account-rate-label"/>
+                                </label>
+                            </td>
+                            <td>
+                                <input id="accountRateLimit" name="accountRateLimit" type="number"
+                                       min="0" style="width: 5em"
+                                       <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                       value="<c:out value="${dto.accountRateLimit}"/>"
+                                >
+                                <fmt:message key="passwordreset.settings.rate-per"/>
+                                <input id="accountRatePeriod" name="accountRatePeriod" type="number"
+                                       min="1" style="width: 5em"
+                                       <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                       value="<c:out value="${dto.accountRatePeriod}"/>"
+                                >
+                                <fmt:message key="passwordreset.settings.rate-minutes"/>
+                            </td>
+                            <td>
+                                <fmt:message key="passwordreset.settings.account-rate-description"/>
+                                <c:if test='${!empty dto.accountRateError}'>
+                                    <div class="warning">
+                                        <c:out value="${dto.accountRateError}"/>
+                                    </div>
+                                </c:if>
+                            </td>
+                        </tr>
+                        <tr>
+                            <td>
+                                <label for="trustForwardedFor">
+                                    <fmt:message key="passwordreset.settings.trust-forwarded-for-label"/>
+                                </label>
+                            </td>
+                            <td>
+                                <input id="trustForwardedFor" name="trustForwardedFor"
+                                       type="checkbox" value="true"
+                                       <c:if test='${dto.trustForwardedFor}'>checked="checked"</c:if>
+                                       <c:if test='${dto.notSupported}'>disabled="disabled"</c:if>
+                                >
+                            </td>
+                            <td>
+                                <fmt:message key="passwordreset.settings.trust-forwarded-for-description"/>
+                            </td>
+                        </tr>
                         <tr>
                             <td colspan="3">
                                 <input type="submit" name="update"
@@ -307,53 +403,226 @@
     </div>
 </form>
 
-
 <c:if test="${dto.enabled}">
-    <div class="jive-contentBoxHeader">
+    <div class="jive-contentBoxHeader"><fmt:message key="passwordreset.settings.statistics-title"/></div>
+    <div class="jive-contentBox">
+        <p>
+            <fmt:message key="passwordreset.settings.cache-statistics">
+                <fmt:param value="${dto.stats.cacheHits}"/>
+                <fmt:param value="${dto.stats.cacheMisses}"/>
+            </fmt:message>
+        </p>
+        <p>
+            <fmt:message key="passwordreset.settings.batch-statistics">
+                <fmt:param value="${dto.stats.insertBatchCount}"/>
+                <fmt:param><fmt:formatNumber value="${dto.stats.averageInsertBatchSize}" maxFractionDigits="1"/></fmt:param>
+                <fmt:param value="${dto.stats.largestInsertBatchSize}"/>
+                <fmt:param value="${dto.stats.averageInsertCommitMillis}"/>
+            </fmt:message>
+        </p>
+        <p>
+            <fmt:message key="passwordreset.settings.mail-statistics">
+                <fmt:param value="${dto.stats.mailQueueDepth}"/>
+                <fmt:param value="${dto.stats.mailSentCount}"/>
+                <fmt:param value="${dto.stats.mailSentByRequesterCount}"/>
+                <fmt:param value="${dto.stats.mailFailedCount}"/>
+                <fmt:param value="${dto.stats.averageMailWaitMillis}"/>
+                <fmt:param value="${dto.stats.averageMailSendMillis}"/>
+            </fmt:message>
+        </p>
+        <p>
+            <fmt:message key="passwordreset.settings.mail-batch-statistics">
+                <fmt:param value="${dto.stats.mailBatchCount}"/>
+                <fmt:param><fmt:formatNumber value="${dto.stats.averageMailBatchSize}" maxFractionDigits="1"/></fmt:param>
+                <fmt:param><fmt:formatNumber value="${dto.stats.mailDeliveryThroughput}" maxFractionDigits="1"/></fmt:param>
+            </fmt:message>
+        </p>
+        <p>
+            <fmt:message key="passwordreset.settings.outbox-statistics">
+                <fmt:param value="${dto.stats.outboxBacklog}"/>
+                <fmt:param value="${dto.stats.outboxLagSeconds}"/>
+                <fmt:param value="${dto.stats.outboxSentCount}"/>
+                <fmt:param value="${dto.stats.averageOutboxLagMillis}"/>
+                <fmt:param value="${dto.stats.outboxFailedCount}"/>
+                <fmt:param value="${dto.stats.outboxAbandonedCount}"/>
+            </fmt:message>
+        </p>
+        <c:if test="${dto.stats.outboxEnabled}">
+            <p>
+                <fmt:message key="passwordreset.settings.outbox-security"/>
+            </p>
+        </c:if>
+        <p>
+            <fmt:message key="passwordreset.settings.suppression-statistics">
+                <fmt:param value="${dto.stats.suppressedDomainCount}"/>
+                <fmt:param value="${dto.stats.suppressedEmailCount}"/>
+            </fmt:message>
+        </p>
+        <p>
+            <fmt:message key="passwordreset.settings.bounce-statistics">
+                <fmt:param value="${dto.stats.bouncedAddressCount}"/>
+                <fmt:param value="${dto.stats.bouncedEmailCount}"/>
+                <fmt:param value="${dto.stats.bounceFileCount}"/>
+            </fmt:message>
+        </p>
+        <p>
+            <c:choose>
+                <c:when test="${empty dto.stats.lastPurgeRun}">
+                    <fmt:message key="passwordreset.settings.purge-not-run"/>
+                </c:when>
+                <c:otherwise>
+                    <fmt:message key="passwordreset.settings.purge-statistics">
+                        <fmt:param value="${admin:formatDateTime(dto.stats.lastPurgeRun)}"/>
+                        <fmt:param value="${dto.stats.lastPurgeCount}"/>
+                        <fmt:param value="${dto.stats.lastPurgeMillis}"/>
+                        <fmt:param value="${dto.stats.totalPurgeCount}"/>
+                    </fmt:message>
+                </c:otherwise>
+            </c:choose>
+        </p>
+    </div>
+</c:if>
+
+<c:if test="${dto.enabled && !empty summary}">
+    <div class="jive-contentBoxHeader"><fmt:message key="passwordreset.settings.summary-title"/></div>
+    <div class="jive-contentBox">
+        <p>
+            <fmt:message key="passwordreset.settings.summary-outstanding">
+                <fmt:param value="${summary.outstandingTokens}"/>
+                <fmt:param value="${admin:formatDateTime(summary.calculated)}"/>
+            </fmt:message>
+        </p>
+        <c:if test="${!empty summary.sourceAddressCounts}">
+            <table>
+                <thead>
+                <tr>
+                    <th><fmt:message key="passwordreset.settings.summary-source-addresses"/></th>
+                    <th><fmt:message key="passwordreset.settings.summary-tokens"/></th>
+                </tr>
+                </thead>
+                <tbody>
+                <c:forEach var="sourceAddressCount" items="${summary.sourceAddressCounts}" varStatus="status">
+                    <tr class="${status.index % 2 == 0 ? 'jive-odd' : 'jive-even'}">
+                        <td>
+                            <c:choose>
+                                <c:when test="${empty sourceAddressCount.value}">
+                                    <fmt:message key="passwordreset.settings.summary-unknown-address"/>
+                                </c:when>
+                                <c:otherwise>
+                                    <c:out value="${sourceAddressCount.value}"/>
+                                </c:otherwise>
+                            </c:choose>
+                        </td>
+                        <td><c:out value="${sourceAddressCount.count}"/></td>
+                    </tr>
+                </c:forEach>
+                </tbody>
+            </table>
+        </c:if>
+        <c:if test="${!empty summary.userCounts}">
+            <table>
+                <thead>
+                <tr>
+                    <th><fmt:message key="passwordreset.settings.summary-users"/></th>
+                    <th><fmt:message key="passwordreset.settings.summary-tokens"/></th>
+                </tr>
+                </thead>
+                <tbody>
+                <c:forEach var="userCount" items="${summary.userCounts}" varStatus="status">
+                    <tr class="${status.index % 2 == 0 ? 'jive-odd' : 'jive-even'}">
+                        <td>
+                            <c:url var="url" value="/user-properties.jsp">
+                                <c:param name="username" value="${userCount.value}"/>
+                            </c:url>
+                            <a href="${url}"><c:out value="${userCount.value}"/></a>
+                        </td>
+                        <td><c:out value="${userCount.count}"/></td>
+                    </tr>
+                </c:forEach>
+                </tbody>
+            </table>
+        </c:if>
+    </div>
+</c:if>
+
+<c:if test="${dto.enabled && !empty resetRequests}">
+    <div class="jive-contentBoxHeader"><fmt:message key="passwordreset.settings.current-requests"/></div>
+    <div class="jive-contentBox">
+        <form method="get">
+            <label for="filter-user"><fmt:message key="passwordreset.settings.filter-user"/></label>
+            <input id="filter-user" name="filter-user" type="text" size="20"
+                   value="<c:out value="${param['filter-user']}"/>">
+            <label for="filter-source"><fmt:message key="passwordreset.settings.filter-source"/></label>
+            <input id="filter-source" name="filter-source" type="text" size="20"
+                   value="<c:out value="${param['filter-source']}"/>">
+            <label for="filter-expires-from"><fmt:message key="passwordreset.settings.filter-expires-from"/></label>
+            <input id="filter-expires-from" name="filter-expires-from" type="date"
+                   value="<c:out value="${param['filter-expires-from']}"/>">
+            <label for="filter-expires-to"><fmt:message key="passwordreset.settings.filter-expires-to"/></label>
+            <input id="filter-expires-to" name="filter-expires-to" type="date"
+                   value="<c:out value="${param['filter-expires-to']}"/>">
+            <input type="submit" value="<fmt:message key="passwordreset.settings.filter"/>">
+        </form>
         <c:choose>
-            <c:when test="${empty dto.resetRequests}">
-                <fmt:message key="passwordreset.settings.no-current-requests"/>
+            <c:when test="${empty resetRequests.resetRequests}">
+                <p><fmt:message key="passwordreset.settings.no-current-requests"/></p>
             </c:when>
             <c:otherwise>
-                <fmt:message key="passwordreset.settings.current-requests">
-                    <fmt:param value="${dto.resetRequests.size()}"/>
-                </fmt:message>
-                <div class="jive-contentBox">
-                    <table>
-                        <thead>
-                        <tr>
-                            <th><fmt:message key="passwordreset.settings.request-user"/></th>
-                            <th><fmt:message key="passwordreset.settings.request-source"/></th>
-                            <th><fmt:message key="passwordreset.settings.request-expires"/></th>
+                <table>
+                    <thead>
+                    <tr>
+                        <th><fmt:message key="passwordreset.settings.request-user"/></th>
+                        <th><fmt:message key="passwordreset.settings.request-source"/></th>
+                        <th><fmt:message key="passwordreset.settings.request-expires"/></th>
+                    </tr>
+                    </thead>
+                    <tbody>
+                    <c:set var="rowClass" value="jive-even"/>
+                    <c:forEach var="resetRequest" items="${resetRequests.resetRequests}">
+                        <c:choose>
+                            <c:when test="${rowClass == 'jive-even'}"><c:set var="rowClass" value="jive-odd"/></c:when>
+                            <c:otherwise><c:set var="rowClass" value="jive-even"/></c:otherwise>
+                        </c:choose>
+                        <tr class="${rowClass}">
+                            <td>
+                                <c:url var="url" value="/user-properties.jsp">
+                                    <c:param name="username" value="${resetRequest.userId}"/>
+                                </c:url>
+                                <a href="${url}"><c:out value="${resetRequest.userId}"/></a>
+                            </td>
+                            <td>
+                                <c:out value="${resetRequest.sourceAddress}"/>
+                            </td>
+                            <td>
+                                <c:out value="${admin:formatDateTime(resetRequest.expires)}"/>
+                            </td>
                         </tr>
-                        </thead>
-                        <tbody>
-                        <c:set var="rowClass" value="jive-even"/>
-                        <c:forEach var="resetRequest" items="${dto.resetRequests}">
-                            <c:choose>
-                                <c:when test="${rowClass == 'jive-even'}"><c:set var="rowClass" value="jive-odd"/></c:when>
-                                <c:otherwise><c:set var="rowClass" value="jive-even"/></c:otherwise>
-                            </c:choose>
-                            <tr class="${rowClass}">
-                                <td>
-                                    <c:url var="url" value="/user-properties.jsp">
-                                        <c:param name="username" value="${resetRequest.userId}"/>
-                                    </c:url>
-                                    <a href="${url}"><c:out value="${resetRequest.userId}"/></a>
-                                </td>
-                                <td>
-                                    <c:out value="${resetRequest.sourceAddress}"/>
-                                </td>
-                                <td>
-                                    <c:out value="${admin:formatDateTime(resetRequest.expires)}"/>
-                                </td>
-                            </tr>
-                        </c:forEach>
-                        </tbody>
-                    </table>
-                </div>
+                    </c:forEach>
+                    </tbody>
+                </table>
             </c:otherwise>
         </c:choose>
+        <p>
+            <c:if test="${!empty param.after}">
+                <c:url var="firstPageUrl" value="settings.jsp">
+                    <c:param name="filter-user" value="${param['filter-user']}"/>
+                    <c:param name="filter-source" value="${param['filter-source']}"/>
+                    <c:param name="filter-expires-from" value="${param['filter-expires-from']}"/>
+                    <c:param name="filter-expires-to" value="${param['filter-expires-to']}"/>
+                </c:url>
+                <a href="${firstPageUrl}"><fmt:message key="passwordreset.settings.first-page"/></a>
+            </c:if>
+            <c:if test="${!empty resetRequests.nextCursor}">
+                <c:url var="nextPageUrl" value="settings.jsp">
+                    <c:param name="filter-user" value="${param['filter-user']}"/>
+                    <c:param name="filter-source" value="${param['filter-source']}"/>
+                    <c:param name="filter-expires-from" value="${param['filter-expires-from']}"/>
+                    <c:param name="filter-expires-to" value="${param['filter-expires-to']}"/>
+                    <c:param name="after" value="${resetRequests.nextCursor}"/>
+                </c:url>
+                <a href="${nextPageUrl}"><fmt:message key="passwordreset.settings.next-page"/></a>
+            </c:if>
+        </p>
     </div>
 </c:if>
 </body>
@@ -1,11 +1,27 @@
 CREATE TABLE IF NOT EXISTS ofPasswordResetToken
 (
-    token         VARCHAR(32) NOT NULL,
-    userId        VARCHAR(64) NOT NULL,
-    sourceAddress VARCHAR(45) NOT NULL,
-    expires       TIMESTAMP   NOT NULL,
-    PRIMARY KEY (token)
+    tokenHash     BYTEA         NOT NULL,
+    userId        VARCHAR(64)   NOT NULL,
+    sourceAddress BYTEA         NOT NULL,
+    expires       BIGINT        NOT NULL,
+    userSlot      SMALLINT,
+    PRIMARY KEY (tokenHash)
 );
+CREATE INDEX ofPasswordResetToken_expires_idx ON ofPasswordResetToken (expires);
+CREATE INDEX ofPasswordResetToken_userId_idx ON ofPasswordResetToken (userId, expires);
+CREATE UNIQUE INDEX ofPasswordResetToken_userSlot_idx ON ofPasswordResetToken (userId, userSlot);
+CREATE TABLE IF NOT EXISTS ofPasswordResetOutbox
+(
+    tokenHash   BYTEA        NOT NULL,
+    userId      VARCHAR(64)  NOT NULL,
+    token       VARCHAR(255) NOT NULL,
+    expires     BIGINT       NOT NULL,
+    created     BIGINT       NOT NULL,
+    nextAttempt BIGINT       NOT NULL,
+    attempts    INTEGER      NOT NULL,
+    PRIMARY KEY (tokenHash)
+);
+CREATE INDEX ofPasswordResetOutbox_nextAttempt_idx ON ofPasswordResetOutbox (nextAttempt);
 
 INSERT INTO ofVersion (name, version)
-VALUES ('password-reset', 1);
\ No newline at end of file
+VALUES ('password-reset', 5);
\ No newline at end of file
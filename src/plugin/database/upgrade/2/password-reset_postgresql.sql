@@ -0,0 +1,6 @@
+-- Supports purging expired tokens
+CREATE INDEX ofPasswordResetToken_expires_idx ON ofPasswordResetToken (expires);
+-- Supports deleting a user's tokens, and listing outstanding requests in user order
+CREATE INDEX ofPasswordResetToken_userId_idx ON ofPasswordResetToken (userId, expires);
+
+UPDATE ofVersion SET version = 2 WHERE name = 'password-reset';
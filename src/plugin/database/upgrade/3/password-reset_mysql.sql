@@ -0,0 +1,17 @@
+-- Tokens are now stored as a SHA-256 hash, source addresses as packed IPv4 or IPv6 addresses
+-- and expiry times as milliseconds since the epoch. The old table is kept so that the plugin can
+-- hash and migrate the outstanding tokens when it starts, after which it is dropped.
+ALTER TABLE ofPasswordResetToken RENAME TO ofPasswordResetTokenLegacy;
+-- Index names are per table in MySQL, so the old indexes can stay with the old table
+CREATE TABLE IF NOT EXISTS ofPasswordResetToken
+(
+    tokenHash     BINARY(32)    NOT NULL,
+    userId        VARCHAR(64)   NOT NULL,
+    sourceAddress VARBINARY(16) NOT NULL,
+    expires       BIGINT        NOT NULL,
+    PRIMARY KEY (tokenHash)
+);
+CREATE INDEX ofPasswordResetToken_expires_idx ON ofPasswordResetToken (expires);
+CREATE INDEX ofPasswordResetToken_userId_idx ON ofPasswordResetToken (userId, expires);
+
+UPDATE ofVersion SET version = 3 WHERE name = 'password-reset';
@@ -0,0 +1,21 @@
+-- Tokens are now stored as a SHA-256 hash, source addresses as packed IPv4 or IPv6 addresses
+-- and expiry times as milliseconds since the epoch. The old table is kept so that the plugin can
+-- hash and migrate the outstanding tokens when it starts, after which it is dropped.
+ALTER TABLE ofPasswordResetToken RENAME TO ofPasswordResetTokenLegacy;
+-- Index names are per schema, so the old indexes must go before the new ones are created
+DROP INDEX ofPasswordResetToken_expires_idx;
+DROP INDEX ofPasswordResetToken_userId_idx;
+ALTER INDEX ofPasswordResetToken_pkey RENAME TO ofPasswordResetTokenLegacy_pkey;
+
+CREATE TABLE IF NOT EXISTS ofPasswordResetToken
+(
+    tokenHash     BYTEA         NOT NULL,
+    userId        VARCHAR(64)   NOT NULL,
+    sourceAddress BYTEA         NOT NULL,
+    expires       BIGINT        NOT NULL,
+    PRIMARY KEY (tokenHash)
+);
+CREATE INDEX ofPasswordResetToken_expires_idx ON ofPasswordResetToken (expires);
+CREATE INDEX ofPasswordResetToken_userId_idx ON ofPasswordResetToken (userId, expires);
+
+UPDATE ofVersion SET version = 3 WHERE name = 'password-reset';
@@ -0,0 +1,6 @@
+-- With one token per user, the user's token is kept in slot 0 so that it can be replaced by an
+-- upsert; otherwise the slot is null, which the unique index does not constrain.
+ALTER TABLE ofPasswordResetToken ADD COLUMN userSlot SMALLINT;
+CREATE UNIQUE INDEX ofPasswordResetToken_userSlot_idx ON ofPasswordResetToken (userId, userSlot);
+
+UPDATE ofVersion SET version = 4 WHERE name = 'password-reset';
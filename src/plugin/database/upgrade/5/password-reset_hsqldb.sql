@@ -0,0 +1,16 @@
+-- Reset emails waiting to be sent, written in the same transaction as their tokens; the token
+-- is sealed with AES-GCM, under a key derived from the token signing key.
+CREATE TABLE IF NOT EXISTS ofPasswordResetOutbox
+(
+    tokenHash   BINARY(32)   NOT NULL,
+    userId      VARCHAR(64)  NOT NULL,
+    token       VARCHAR(255) NOT NULL,
+    expires     BIGINT       NOT NULL,
+    created     BIGINT       NOT NULL,
+    nextAttempt BIGINT       NOT NULL,
+    attempts    INTEGER      NOT NULL,
+    PRIMARY KEY (tokenHash)
+);
+CREATE INDEX ofPasswordResetOutbox_nextAttempt_idx ON ofPasswordResetOutbox (nextAttempt);
+
+UPDATE ofVersion SET version = 5 WHERE name = 'password-reset';
@@ -8,6 +8,13 @@ import static org.mockito.Mockito.withSettings;
 
 import java.io.File;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
 import lombok.SneakyThrows;
 import org.jivesoftware.openfire.IQRouter;
 import org.jivesoftware.openfire.XMPPServer;
@@ -23,6 +30,7 @@ import org.xmpp.packet.JID;
 public final class Fixtures {
 
     public static final String XMPP_DOMAIN = "test.xmpp.domain";
+    private static final String DATABASE_URL = "jdbc:hsqldb:mem:password-reset";
 
     private Fixtures() {
     }
@@ -120,5 +128,51 @@ public final class Fixtures {
         return mock(PluginManager.class, withSettings().strictness(Strictness.LENIENT));
     }
 
-}
+    /**
+     * Creates an in-memory HSQLDB database from the plugin's own schema script. The database
+     * lasts until it is shut down with {@link #shutdownDatabase(Connection)}, whatever other
+     * connections to it are closed in the meantime.
+     *
+     * @return a connection to the database, to be passed to {@link #shutdownDatabase(Connection)}
+     */
+    @SneakyThrows
+    public static Connection createDatabase() {
+        final URL scriptFile = ClassLoader.getSystemResource("password-reset_hsqldb.sql");
+        final String script = new String(Files.readAllBytes(Paths.get(scriptFile.toURI())),
+            StandardCharsets.UTF_8).replaceAll("(?m)^--.*$", "");
+        final Connection connection = connectDatabase();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                "CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL)");
+            for (final String sql : script.split(";")) {
+                if (!sql.trim().isEmpty()) {
+                    statement.execute(sql.trim());
+                }
+            }
+        }
+        return connection;
+    }
 
+    /**
+     * Opens a further connection to the database created by {@link #createDatabase()}.
+     *
+     * @return the connection
+     * @throws SQLException if the connection could not be opened
+     */
+    public static Connection connectDatabase() throws SQLException {
+        return DriverManager.getConnection(DATABASE_URL, "SA", "");
+    }
+
+    /**
+     * Shuts down, and so discards, the database created by {@link #createDatabase()}.
+     *
+     * @param connection the connection returned by {@link #createDatabase()}
+     */
+    @SneakyThrows
+    public static void shutdownDatabase(final Connection connection) {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        }
+        connection.close();
+    }
+}
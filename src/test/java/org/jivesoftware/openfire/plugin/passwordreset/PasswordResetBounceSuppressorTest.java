@@ -0,0 +1,251 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import lombok.SneakyThrows;
+import org.jivesoftware.util.TaskEngine;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetBounceSuppressorTest {
+
+    private PasswordResetBounceSuppressor bounceSuppressor;
+    @Mock
+    private TaskEngine taskEngine;
+    @TempDir
+    Path directory;
+
+    @BeforeAll
+    static void beforeAll() {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @BeforeEach
+    void setUp() {
+        Fixtures.clearExistingProperties();
+        PasswordResetPlugin.BOUNCE_DIRECTORY.setValue(directory.toString());
+        bounceSuppressor = new PasswordResetBounceSuppressor(taskEngine);
+    }
+
+    private static List<String> notification(final String... recipients) {
+        final List<String> lines = new ArrayList<>(List.of(
+            "From: MAILER-DAEMON@mail.domain.com",
+            "Subject: Undelivered Mail Returned to Sender",
+            "Content-Type: multipart/report; report-type=delivery-status; boundary=\"b\"",
+            "",
+            "--b",
+            "Content-Type: message/delivery-status",
+            "",
+            "Reporting-MTA: dns; mail.domain.com",
+            "Arrival-Date: Mon, 12 Oct 2026 10:00:00 +0000",
+            ""));
+        for (final String recipient : recipients) {
+            lines.add(recipient);
+        }
+        lines.add("--b--");
+        return lines;
+    }
+
+    private static String hardBounce(final String address) {
+        return "Final-Recipient: rfc822; " + address + "\nAction: failed\nStatus: 5.1.1\n";
+    }
+
+    @SneakyThrows
+    private Path write(
+        final Path folder, final String name, final List<String> lines, final Instant modified) {
+        final Path file = folder.resolve(name);
+        Files.write(file, lines, StandardCharsets.ISO_8859_1);
+        Files.setLastModifiedTime(file, FileTime.from(modified));
+        return file;
+    }
+
+    @Test
+    @SneakyThrows
+    void willOnlyReadHardBounces() {
+        final Path file = write(directory, "1", notification(
+            hardBounce("gone@domain.com"),
+            "Final-Recipient: rfc822; busy@domain.com\nAction: delayed\nStatus: 4.2.2\n",
+            "Final-Recipient: rfc822; later@domain.com\nAction: failed\nStatus: 4.4.7\n",
+            "Original-Recipient: rfc822;alias@domain.com\n" + hardBounce("<Full@Domain.com>")),
+            Instant.now());
+
+        assertThat(PasswordResetBounceSuppressor.readHardBounces(file))
+            .containsExactly("gone@domain.com", "<Full@Domain.com>");
+    }
+
+    @Test
+    void willSuppressAddressesThatHardBounced() {
+        write(directory, "1", notification(hardBounce("<Gone@Domain.com>")), Instant.now());
+
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.isSuppressed("gone@domain.com"))
+            .isTrue();
+        assertThat(bounceSuppressor.isSuppressed("other@domain.com"))
+            .isFalse();
+        assertThat(bounceSuppressor.getAddressCount())
+            .isEqualTo(1);
+        assertThat(bounceSuppressor.getSuppressedCount())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    void willOnlyReadNewFiles() {
+        final Instant now = Instant.now();
+        write(directory, "1", notification(hardBounce("first@domain.com")), now.minusSeconds(60));
+        write(directory, "2", notification(hardBounce("second@domain.com")), now);
+        bounceSuppressor.ingest();
+
+        bounceSuppressor.ingest();
+        write(directory, "3", notification(hardBounce("third@domain.com")), now);
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.getFileCount())
+            .isEqualTo(3L);
+        assertThat(bounceSuppressor.isSuppressed("third@domain.com"))
+            .isTrue();
+    }
+
+    @Test
+    void willReadFilesDeliveredAfterANewerOne() {
+        final Instant now = Instant.now();
+        write(directory, "2", notification(hardBounce("second@domain.com")), now);
+        bounceSuppressor.ingest();
+
+        // Written before the newer file, but only moved in to place after it was read
+        write(directory, "1", notification(hardBounce("first@domain.com")), now.minusSeconds(60));
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.isSuppressed("first@domain.com"))
+            .isTrue();
+        assertThat(bounceSuppressor.getFileCount())
+            .isEqualTo(2L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotReadAFileAgainWhenItIsMovedToTheCurrentFolder() {
+        Files.createDirectories(directory.resolve("new"));
+        Files.createDirectories(directory.resolve("cur"));
+        final Path file = write(directory.resolve("new"), "1.M1P1.host",
+            notification(hardBounce("gone@domain.com")), Instant.now());
+        bounceSuppressor.ingest();
+
+        Files.move(file, directory.resolve("cur").resolve("1.M1P1.host:2,S"));
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.getFileCount())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willStopReadingAfterTheLimitEvenWithinALine() {
+        final List<String> lines = new ArrayList<>(List.of(hardBounce("first@domain.com")));
+        lines.add("X".repeat(2 * 1024 * 1024));
+        lines.add("");
+        lines.add(hardBounce("second@domain.com"));
+        final Path file = write(directory, "1", lines, Instant.now());
+
+        assertThat(PasswordResetBounceSuppressor.readHardBounces(file))
+            .containsExactly("first@domain.com");
+    }
+
+    @Test
+    @SneakyThrows
+    void willReadTheNewAndCurrentFoldersOfAMaildir() {
+        Files.createDirectories(directory.resolve("new"));
+        Files.createDirectories(directory.resolve("cur"));
+        Files.createDirectories(directory.resolve("tmp"));
+        write(directory.resolve("new"), "1", notification(hardBounce("new@domain.com")),
+            Instant.now());
+        write(directory.resolve("cur"), "2", notification(hardBounce("cur@domain.com")),
+            Instant.now());
+        write(directory.resolve("tmp"), "3", notification(hardBounce("tmp@domain.com")),
+            Instant.now());
+
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.isSuppressed("new@domain.com"))
+            .isTrue();
+        assertThat(bounceSuppressor.isSuppressed("cur@domain.com"))
+            .isTrue();
+        assertThat(bounceSuppressor.isSuppressed("tmp@domain.com"))
+            .isFalse();
+    }
+
+    @Test
+    void willIgnoreBouncesBeforeTheSuppressionPeriod() {
+        PasswordResetPlugin.BOUNCE_SUPPRESSION_PERIOD.setValue(Duration.ofDays(7));
+        bounceSuppressor = new PasswordResetBounceSuppressor(taskEngine);
+        write(directory, "1", notification(hardBounce("old@domain.com")),
+            Instant.now().minus(Duration.ofDays(8)));
+
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.isSuppressed("old@domain.com"))
+            .isFalse();
+        assertThat(bounceSuppressor.getFileCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    void willHoldManyAddresses() {
+        final String[] bounces = new String[1000];
+        for (int i = 0; i < bounces.length; i++) {
+            bounces[i] = hardBounce("user" + i + "@domain.com");
+        }
+        write(directory, "1", notification(bounces), Instant.now());
+
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.getAddressCount())
+            .isEqualTo(1000);
+        for (int i = 0; i < bounces.length; i++) {
+            assertThat(bounceSuppressor.isSuppressed("user" + i + "@domain.com"))
+                .isTrue();
+        }
+        assertThat(bounceSuppressor.isSuppressed("user1000@domain.com"))
+            .isFalse();
+    }
+
+    @Test
+    void willNotReadWithoutADirectory() {
+        PasswordResetPlugin.BOUNCE_DIRECTORY.setValue("");
+        write(directory, "1", notification(hardBounce("gone@domain.com")), Instant.now());
+
+        bounceSuppressor.ingest();
+
+        assertThat(bounceSuppressor.getFileCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    void willScheduleAtTheConfiguredInterval() {
+        PasswordResetPlugin.BOUNCE_POLL_INTERVAL.setValue(Duration.ofSeconds(42));
+
+        bounceSuppressor.start();
+
+        verify(taskEngine).schedule(
+            any(TimerTask.class), eq(Duration.ZERO), eq(Duration.ofSeconds(42)));
+        bounceSuppressor.stop();
+    }
+}
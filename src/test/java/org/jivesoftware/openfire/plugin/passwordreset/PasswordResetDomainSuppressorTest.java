@@ -0,0 +1,128 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PasswordResetDomainSuppressorTest {
+
+    @BeforeAll
+    static void beforeAll() {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @BeforeEach
+    void setUp() {
+        Fixtures.clearExistingProperties();
+    }
+
+    @Test
+    void willSuppressTheSpecialDomainsByDefault() {
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        assertThat(suppressor.isSuppressed("user@example.com"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@EXAMPLE.ORG"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@host.local"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@localhost"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@domain.com"))
+            .isFalse();
+        assertThat(suppressor.getDomainCount())
+            .isEqualTo(9);
+    }
+
+    @Test
+    void willSuppressSubdomains() {
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.setValue(List.of("internal.example.net"));
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        assertThat(suppressor.isSuppressed("user@internal.example.net"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@mail.internal.example.net"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@example.net"))
+            .isFalse();
+    }
+
+    @Test
+    void willOnlyMatchWholeLabels() {
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        assertThat(suppressor.isSuppressed("user@mytest"))
+            .isFalse();
+        assertThat(suppressor.isSuppressed("user@notexample.com"))
+            .isFalse();
+        assertThat(suppressor.isSuppressed("user@example.community"))
+            .isFalse();
+    }
+
+    @Test
+    void willIgnoreWildcardsAndTrailingDots() {
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.setValue(List.of("*.internal.", ".disposable"));
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        assertThat(suppressor.isSuppressed("user@host.internal."))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@mail.disposable"))
+            .isTrue();
+        assertThat(suppressor.getDomainCount())
+            .isEqualTo(2);
+    }
+
+    @Test
+    @SneakyThrows
+    void willReadFurtherDomainsFromAFile(@TempDir final Path directory) {
+        final Path file = directory.resolve("suppressed-domains.txt");
+        Files.write(file, List.of("# Decommissioned", "old.domain.com", "", "  Disposable.Net  "),
+            StandardCharsets.UTF_8);
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.setValue(List.of("test"));
+        PasswordResetPlugin.SUPPRESSED_DOMAINS_FILE.setValue(file.toString());
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        assertThat(suppressor.isSuppressed("user@old.domain.com"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@disposable.net"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@test"))
+            .isTrue();
+        assertThat(suppressor.getDomainCount())
+            .isEqualTo(3);
+    }
+
+    @Test
+    void willRecompileWhenTheDomainsChange() {
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+        suppressor.start();
+
+        PasswordResetPlugin.SUPPRESSED_DOMAINS.setValue(List.of("domain.com"));
+        suppressor.stop();
+
+        assertThat(suppressor.isSuppressed("user@domain.com"))
+            .isTrue();
+        assertThat(suppressor.isSuppressed("user@example.com"))
+            .isFalse();
+    }
+
+    @Test
+    void willCountSuppressedAddresses() {
+        final PasswordResetDomainSuppressor suppressor = new PasswordResetDomainSuppressor();
+
+        suppressor.isSuppressed("user@example.com");
+        suppressor.isSuppressed("user@domain.com");
+        suppressor.isSuppressed("other@test");
+
+        assertThat(suppressor.getSuppressedCount())
+            .isEqualTo(2L);
+    }
+}
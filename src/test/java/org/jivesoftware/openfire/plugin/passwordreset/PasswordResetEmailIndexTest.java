@@ -0,0 +1,193 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.TimerTask;
+import lombok.SneakyThrows;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.TaskEngine;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetEmailIndexTest {
+
+    private PasswordResetEmailIndex emailIndex;
+    @Mock
+    private UserManager userManager;
+    @Mock
+    private TaskEngine taskEngine;
+
+    @BeforeAll
+    static void beforeAll() {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @BeforeEach
+    void setUp() {
+        Fixtures.clearExistingProperties();
+        emailIndex = new PasswordResetEmailIndex(userManager, taskEngine);
+    }
+
+    @AfterEach
+    void tearDown() {
+        emailIndex.stop();
+    }
+
+    private static User user(final String username, final String email) {
+        return new User(username, null, email, new Date(), new Date());
+    }
+
+    @Test
+    void willNotBeWarmUntilBuilt() {
+        emailIndex.start();
+
+        assertThat(emailIndex.isWarm())
+            .isFalse();
+        verify(taskEngine).submit(any(Runnable.class));
+    }
+
+    @Test
+    void willFindUsersByEmailIgnoringCase() {
+        doReturn(Arrays.asList(user("alice", "Alice@Example.com"), user("bob", null)))
+            .doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+
+        emailIndex.build();
+
+        assertThat(emailIndex.isWarm())
+            .isTrue();
+        assertThat(emailIndex.findUsername("alice@example.COM"))
+            .hasValue("alice");
+        assertThat(emailIndex.findUsername("bob@example.com"))
+            .isEmpty();
+        assertThat(emailIndex.size())
+            .isOne();
+    }
+
+    @Test
+    void willFollowChangesToUsers() {
+        doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        emailIndex.build();
+
+        emailIndex.userCreated(user("alice", "alice@example.com"), Collections.emptyMap());
+        emailIndex.userModified(user("alice", "alice@example.org"), Collections.emptyMap());
+        emailIndex.userCreated(user("bob", "bob@example.com"), Collections.emptyMap());
+        emailIndex.userDeleting(user("bob", "bob@example.com"), Collections.emptyMap());
+
+        assertThat(emailIndex.findUsername("alice@example.com"))
+            .isEmpty();
+        assertThat(emailIndex.findUsername("alice@example.org"))
+            .hasValue("alice");
+        assertThat(emailIndex.findUsername("bob@example.com"))
+            .isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotOverwriteChangesMadeWhileBuilding() {
+        emailIndex.start();
+        // Modified after the build has read the old address, but before it has indexed it
+        doReturn(Collections.singletonList(user("alice", "old@example.com")))
+            .doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        emailIndex.userModified(user("alice", "new@example.com"), Collections.emptyMap());
+
+        emailIndex.build();
+
+        assertThat(emailIndex.findUsername("old@example.com"))
+            .isEmpty();
+        assertThat(emailIndex.findUsername("new@example.com"))
+            .hasValue("alice");
+    }
+
+    @Test
+    void willRepeatTheBuildIfUsersAreDeletedDuringIt() {
+        emailIndex.start();
+        doReturn(Collections.singletonList(user("alice", "alice@example.com")))
+            .doAnswer(invocation -> {
+                emailIndex.userDeleting(user("bob", "bob@example.com"), Collections.emptyMap());
+                return Collections.emptyList();
+            })
+            .doReturn(Collections.singletonList(user("alice", "alice@example.com")))
+            .doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+
+        emailIndex.build();
+
+        verify(userManager, times(4)).getUsers(anyInt(), anyInt());
+        assertThat(emailIndex.findUsername("alice@example.com"))
+            .hasValue("alice");
+    }
+
+    @Test
+    void willRemoveUsersNoLongerInTheProviderWhenRebuilt() {
+        doReturn(Arrays.asList(user("alice", "alice@example.com"), user("bob", "bob@example.com")))
+            .doReturn(Collections.emptyList())
+            // Bob deleted, and Alice's address changed, on another node
+            .doReturn(Collections.singletonList(user("alice", "alice@example.org")))
+            .doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        emailIndex.build();
+
+        emailIndex.build();
+
+        assertThat(emailIndex.findUsername("bob@example.com"))
+            .isEmpty();
+        assertThat(emailIndex.findUsername("alice@example.com"))
+            .isEmpty();
+        assertThat(emailIndex.findUsername("alice@example.org"))
+            .hasValue("alice");
+        assertThat(emailIndex.size())
+            .isOne();
+    }
+
+    @Test
+    void willKeepUsersCreatedWhileRebuilding() {
+        doReturn(Collections.emptyList())
+            .doAnswer(invocation -> {
+                emailIndex.userCreated(user("alice", "alice@example.com"), Collections.emptyMap());
+                return Collections.emptyList();
+            })
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        emailIndex.build();
+
+        emailIndex.build();
+
+        assertThat(emailIndex.findUsername("alice@example.com"))
+            .hasValue("alice");
+    }
+
+    @Test
+    void willScheduleRebuildsAtTheConfiguredInterval() {
+        PasswordResetPlugin.EMAIL_INDEX_REBUILD_INTERVAL.setValue(Duration.ofMinutes(42));
+
+        emailIndex.start();
+
+        verify(taskEngine).schedule(
+            any(TimerTask.class), eq(Duration.ofMinutes(42)), eq(Duration.ofMinutes(42)));
+    }
+}
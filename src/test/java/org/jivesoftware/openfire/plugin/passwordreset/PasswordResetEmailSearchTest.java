@@ -0,0 +1,151 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import lombok.SneakyThrows;
+import org.jivesoftware.openfire.user.DefaultUserProvider;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.openfire.user.UserProvider;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetEmailSearchTest {
+
+    private static final User USER =
+        new User("test-username", "Test User", "test@example.com", new Date(), new Date());
+    @Mock
+    private UserProvider userProvider;
+    @Mock
+    private UserManager userManager;
+
+    private static List<User> users(final int start, final int count, final int total) {
+        return IntStream.range(start, Math.min(start + count, total))
+            .mapToObj(i -> new User("user-" + i, null, "user-" + i + "@example.com",
+                new Date(), new Date()))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    @SneakyThrows
+    @SuppressFBWarnings(
+        value = {"OBL_UNSATISFIED_OBLIGATION", "ODR_OPEN_DATABASE_RESOURCE"},
+        justification = "All false positives!")
+    void willQueryTheDefaultProvidersTableDirectly() {
+        final DefaultUserProvider defaultUserProvider = mock(DefaultUserProvider.class);
+        final Connection connection = mock(Connection.class);
+        final PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(preparedStatement).when(connection).prepareStatement(anyString());
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(USER.getUsername()).when(resultSet).getString("username");
+        doReturn(USER).when(userManager).getUser(USER.getUsername());
+        final PasswordResetEmailSearch emailSearch = new PasswordResetEmailSearch(
+            () -> connection, defaultUserProvider, userManager, Runnable::run);
+
+        assertThat(emailSearch.findByEmail("TEST@Example.com"))
+            .hasValue(USER);
+        verify(preparedStatement).setString(1, "test@example.com");
+        verify(defaultUserProvider, never()).findUsers(any(), anyString());
+        verify(userManager, never()).getUsers(anyInt(), anyInt());
+    }
+
+    @Test
+    void willSearchWhenTheProviderCan() {
+        doReturn(true).when(userProvider).isSearchSupported();
+        doReturn(Collections.singleton("Email")).when(userProvider).getSearchFields();
+        doReturn(Arrays.asList(new User(), USER))
+            .when(userProvider)
+            .findUsers(Collections.singleton("Email"), "TEST@example.com");
+        final PasswordResetEmailSearch emailSearch =
+            new PasswordResetEmailSearch(() -> null, userProvider, userManager, Runnable::run);
+
+        assertThat(emailSearch.findByEmail("TEST@example.com"))
+            .hasValue(USER);
+        verify(userManager, never()).getUsers(anyInt(), anyInt());
+    }
+
+    @Test
+    void willScanWhenTheProviderCannotSearch() {
+        doReturn(true).when(userProvider).isSearchSupported();
+        doThrow(new UnsupportedOperationException()).when(userProvider).getSearchFields();
+        doAnswer(invocation -> users(invocation.getArgument(0), invocation.getArgument(1), 500))
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        final PasswordResetEmailSearch emailSearch =
+            new PasswordResetEmailSearch(() -> null, userProvider, userManager, Runnable::run);
+
+        assertThat(emailSearch.findByEmail("USER-321@example.com"))
+            .hasValueSatisfying(user -> assertThat(user.getUsername()).isEqualTo("user-321"));
+        assertThat(emailSearch.findByEmail("nobody@example.com"))
+            .isEmpty();
+    }
+
+    @Test
+    void willScanInParallelAndReturnTheFirstMatch() {
+        doAnswer(invocation -> {
+            final List<User> users =
+                users(invocation.getArgument(0), invocation.getArgument(1), 10_000);
+            // Two users share the address
+            return users.stream()
+                .map(user -> user.getUsername().equals("user-7000")
+                    || user.getUsername().equals("user-7500")
+                    ? new User(user.getUsername(), null, "shared@example.com", new Date(),
+                    new Date())
+                    : user)
+                .collect(Collectors.toList());
+        })
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final PasswordResetEmailSearch emailSearch =
+                new PasswordResetEmailSearch(() -> null, userProvider, userManager, executor);
+
+            assertThat(emailSearch.findByEmail("shared@example.com"))
+                .hasValueSatisfying(user -> assertThat(user.getUsername()).isEqualTo("user-7000"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void willFetchLargerChunksFromAFastProvider() {
+        doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+        final PasswordResetEmailSearch emailSearch =
+            new PasswordResetEmailSearch(() -> null, userProvider, userManager, Runnable::run);
+        final int initialChunkSize = emailSearch.getChunkSize();
+
+        emailSearch.findByEmail("test@example.com");
+
+        assertThat(emailSearch.getChunkSize())
+            .isGreaterThan(initialChunkSize);
+    }
+}
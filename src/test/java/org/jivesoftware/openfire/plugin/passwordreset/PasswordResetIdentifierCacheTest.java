@@ -0,0 +1,160 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jivesoftware.openfire.user.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetIdentifierCacheTest {
+
+    private static final User USER =
+        new User("test-username", "Test User", "test@example.com", new Date(), new Date());
+    private PasswordResetIdentifierCache identifierCache;
+    private int maxSize;
+    private Duration absentTtl;
+    private AtomicInteger resolutions;
+
+    @BeforeEach
+    void setUp() {
+        maxSize = 2;
+        absentTtl = Duration.ofMinutes(1);
+        resolutions = new AtomicInteger();
+        identifierCache = new PasswordResetIdentifierCache(
+            () -> maxSize, () -> Duration.ofMinutes(5), () -> absentTtl);
+    }
+
+    private Optional<User> resolve(final String identifier, final User user) {
+        return identifierCache.resolve(identifier, ignored -> {
+            resolutions.incrementAndGet();
+            return Optional.ofNullable(user);
+        }, username -> Optional.of(USER));
+    }
+
+    @Test
+    void willRememberTheUserAnIdentifierResolvedTo() {
+        resolve("TEST@example.com", USER);
+
+        assertThat(resolve("test@EXAMPLE.com", null))
+            .hasValue(USER);
+        assertThat(resolutions.get())
+            .isEqualTo(1);
+        assertThat(identifierCache.getHits())
+            .isEqualTo(1L);
+        assertThat(identifierCache.getMisses())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    void willRememberIdentifiersThatResolvedToNoUser() {
+        resolve("nobody", null);
+
+        assertThat(resolve("nobody", USER))
+            .isEmpty();
+        assertThat(resolutions.get())
+            .isEqualTo(1);
+    }
+
+    @Test
+    void willForgetIdentifiersThatResolvedToNoUserOnceExpired() {
+        absentTtl = Duration.ZERO;
+        resolve("nobody", null);
+
+        assertThat(resolve("nobody", USER))
+            .hasValue(USER);
+        assertThat(resolutions.get())
+            .isEqualTo(2);
+    }
+
+    @Test
+    void willEvictLeastRecentlyUsedIdentifier() {
+        resolve("user1", null);
+        resolve("user2", null);
+        resolve("user1", null);
+        resolve("user3", null);
+
+        assertThat(identifierCache.size())
+            .isEqualTo(2);
+        resolve("user2", null);
+        assertThat(resolutions.get())
+            .isEqualTo(4);
+    }
+
+    @Test
+    void willNotCacheWhenDisabled() {
+        maxSize = 0;
+        resolve("nobody", null);
+        resolve("nobody", null);
+
+        assertThat(resolutions.get())
+            .isEqualTo(2);
+    }
+
+    @Test
+    void willForgetAUserWhenTheyChange() {
+        resolve("test-username", USER);
+        resolve("someone-else", null);
+
+        identifierCache.userModified(USER, Collections.emptyMap());
+
+        assertThat(identifierCache.size())
+            .isEqualTo(0);
+    }
+
+    @Test
+    void willKeepOtherUsersWhenAUserChanges() {
+        resolve("test-username", USER);
+
+        identifierCache.userCreated(
+            new User("another-user", null, null, new Date(), new Date()),
+            Collections.emptyMap());
+
+        assertThat(identifierCache.size())
+            .isEqualTo(1);
+    }
+
+    @Test
+    void willNotCacheWhatAUserChangedWhileResolving() {
+        identifierCache.resolve("test@example.com", ignored -> {
+            identifierCache.userModified(USER, Collections.emptyMap());
+            return Optional.empty();
+        }, username -> Optional.of(USER));
+
+        assertThat(identifierCache.size())
+            .isEqualTo(0);
+    }
+
+    @Test
+    void willAcceptPlausibleIdentifiers() {
+        assertThat(PasswordResetIdentifierCache.isPlausible("test-username"))
+            .isTrue();
+        assertThat(PasswordResetIdentifierCache.isPlausible("test-username@example.org"))
+            .isTrue();
+        assertThat(PasswordResetIdentifierCache.isPlausible("o'brien+reset@example.com"))
+            .isTrue();
+    }
+
+    @Test
+    void willRejectImplausibleIdentifiers() {
+        assertThat(PasswordResetIdentifierCache.isPlausible("test username"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible("@example.com"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible("test@"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible("test@example@example.com"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible("test@example.com/resource"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible("<test>"))
+            .isFalse();
+        assertThat(PasswordResetIdentifierCache.isPlausible(
+            String.join("", Collections.nCopies(1024, "a"))))
+            .isFalse();
+    }
+}
@@ -0,0 +1,230 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import lombok.SneakyThrows;
+import org.jivesoftware.openfire.user.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetMailQueueTest {
+
+    private static final User USER =
+        new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+    private PasswordResetMailQueue mailQueue;
+    @Mock
+    private PasswordResetMailer passwordResetMailer;
+    private int capacity;
+    private Duration batchWindow;
+    private Duration drainTimeout;
+    private List<Collection<MimeMessage>> batches;
+
+    @BeforeEach
+    @SneakyThrows
+    void setUp() {
+        capacity = 10;
+        batchWindow = Duration.ZERO;
+        drainTimeout = Duration.ofSeconds(10);
+        batches = new CopyOnWriteArrayList<>();
+        lenient().doAnswer(invocation -> Optional.of(mock(MimeMessage.class)))
+            .when(passwordResetMailer).createMessage(any(), anyString());
+        lenient().doAnswer(invocation -> batches.add(invocation.getArgument(0)))
+            .when(passwordResetMailer).sendMessages(any());
+        mailQueue = new PasswordResetMailQueue(passwordResetMailer,
+            () -> capacity, () -> 1, () -> drainTimeout, () -> 3, () -> batchWindow);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mailQueue.stop();
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendQueuedEmails() {
+        mailQueue.start();
+
+        mailQueue.submit(USER, "test-token");
+
+        verify(passwordResetMailer, timeout(10_000))
+            .sendMessages(any());
+        verify(passwordResetMailer)
+            .createMessage(USER, "test-token");
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendEmailsQueuedTogetherInBatches() {
+        batchWindow = Duration.ofSeconds(10);
+        mailQueue.start();
+
+        for (int i = 0; i < 5; i++) {
+            mailQueue.submit(USER, "test-token-" + i);
+        }
+        mailQueue.stop();
+
+        assertThat(batches)
+            .hasSize(2);
+        assertThat(batches.get(0))
+            .hasSize(3);
+        assertThat(batches.get(1))
+            .hasSize(2);
+        assertThat(mailQueue.getBatchCount())
+            .isEqualTo(2L);
+        assertThat(mailQueue.getAverageBatchSize())
+            .isEqualTo(2.5);
+        assertThat(mailQueue.getSentCount())
+            .isEqualTo(5L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendEmailsWhileNotStarted() {
+        mailQueue.submit(USER, "test-token");
+
+        verify(passwordResetMailer)
+            .createMessage(USER, "test-token");
+        assertThat(batches)
+            .hasSize(1);
+        assertThat(mailQueue.getSentCount())
+            .isEqualTo(1L);
+        assertThat(mailQueue.getSentByRequesterCount())
+            .isEqualTo(1L);
+        assertThat(mailQueue.getAverageSend())
+            .isNotNull();
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendEmailsOnceTheQueueIsFull() {
+        capacity = 1;
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return Optional.empty();
+        }).when(passwordResetMailer).createMessage(USER, "first-token");
+        mailQueue.start();
+
+        mailQueue.submit(USER, "first-token");
+        sending.await(10, TimeUnit.SECONDS);
+        mailQueue.submit(USER, "second-token");
+        mailQueue.submit(USER, "third-token");
+
+        // The second is queued, so the third is sent here
+        verify(passwordResetMailer)
+            .createMessage(USER, "third-token");
+        assertThat(mailQueue.getQueueDepth())
+            .isEqualTo(1);
+        assertThat(mailQueue.getSentByRequesterCount())
+            .isEqualTo(1L);
+        release.countDown();
+    }
+
+    @Test
+    @SneakyThrows
+    void willDrainTheQueueWhenStopped() {
+        final CountDownLatch sending = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            Thread.sleep(100);
+            return Optional.empty();
+        }).when(passwordResetMailer).createMessage(USER, "first-token");
+        mailQueue.start();
+        mailQueue.submit(USER, "first-token");
+        sending.await(10, TimeUnit.SECONDS);
+        mailQueue.submit(USER, "second-token");
+
+        mailQueue.stop();
+
+        verify(passwordResetMailer)
+            .createMessage(USER, "second-token");
+        assertThat(mailQueue.getSentCount())
+            .isEqualTo(2L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willInterruptThreadsStillSendingAfterTheDrainTimeout() {
+        drainTimeout = Duration.ofMillis(100);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final AtomicReference<Thread> sender = new AtomicReference<>();
+        doAnswer(invocation -> {
+            sender.set(Thread.currentThread());
+            sending.countDown();
+            // A mail server that never replies
+            try {
+                new CountDownLatch(1).await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted", e);
+            }
+            return Optional.empty();
+        }).when(passwordResetMailer).createMessage(USER, "first-token");
+        mailQueue.start();
+        mailQueue.submit(USER, "first-token");
+        sending.await(10, TimeUnit.SECONDS);
+
+        mailQueue.stop();
+
+        assertThat(sender.get().isAlive())
+            .isFalse();
+        assertThat(mailQueue.getFailedCount())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willCountFailures() {
+        doThrow(new MessagingException("test"))
+            .when(passwordResetMailer).sendMessages(any());
+
+        mailQueue.submit(USER, "test-token");
+
+        assertThat(mailQueue.getFailedCount())
+            .isEqualTo(1L);
+        assertThat(mailQueue.getSentCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotSendBatchesWithNothingToSend() {
+        doReturn(Optional.empty())
+            .when(passwordResetMailer).createMessage(USER, "test-token");
+
+        mailQueue.submit(USER, "test-token");
+
+        assertThat(batches)
+            .isEqualTo(Collections.emptyList());
+        assertThat(mailQueue.getSentCount())
+            .isEqualTo(1L);
+    }
+}
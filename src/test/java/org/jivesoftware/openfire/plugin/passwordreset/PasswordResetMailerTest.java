@@ -1,9 +1,25 @@
 package org.jivesoftware.openfire.plugin.passwordreset;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verifyNoInteractions;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Date;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import lombok.SneakyThrows;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.util.EmailService;
@@ -11,6 +27,8 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -20,6 +38,10 @@ class PasswordResetMailerTest {
     private PasswordResetMailer passwordResetMailer;
     @Mock
     private EmailService emailService;
+    @Mock
+    private MimeMessage message;
+    @Mock
+    private PasswordResetBounceSuppressor bounceSuppressor;
 
     @BeforeAll
     @SuppressWarnings("deprecation")
@@ -32,28 +54,119 @@ class PasswordResetMailerTest {
     void setUp() {
         Fixtures.clearExistingProperties();
         PasswordResetPlugin.SERVER.setValue("https://localhost:7443/passwordreset");
-        passwordResetMailer = new PasswordResetMailer(emailService);
+        passwordResetMailer = createMailer();
+    }
+
+    private PasswordResetMailer createMailer() {
+        return new PasswordResetMailer(emailService, new PasswordResetDomainSuppressor(),
+            bounceSuppressor);
     }
 
     @Test
+    @SneakyThrows
     void willSubstitutePlaceholders() {
         final User user
             = new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+        doReturn(message).when(emailService).createMimeMessage();
 
         passwordResetMailer
             .sendEmail(user, "test-token");
 
-        verify(emailService)
-            .sendMessage("Test User", "test@domain.com",
-                "Openfire", "admin@example.com",
-                "Openfire password reset",
-                "Dear Test User\n"
+        verify(message)
+            .setSubject("Openfire password reset", "UTF-8");
+        verify(message)
+            .setText("Dear Test User\n"
                     + "\n"
                     + "To reset the password for your test-username Openfire account, simply go to"
                     + " https://localhost:7443/passwordreset/change-password?token=test-token at"
                     + " any time in the next five hours. After this time, you will need to request"
                     + " another reset email is sent to you.",
-                null);
+                "UTF-8");
+        verify(message, never())
+            .setContent(any(Multipart.class));
+        verify(emailService)
+            .sendMessage(message);
+    }
+
+    @Test
+    @SneakyThrows
+    void willRecompileTheTemplatesWhenTheyChange() {
+        final User user
+            = new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+        doReturn(message).when(emailService).createMimeMessage();
+        passwordResetMailer.start();
+
+        PasswordResetPlugin.SUBJECT.setValue("Reset ${userId}");
+        PasswordResetPlugin.BODY.setValue("Go to ${url}");
+        PasswordResetPlugin.SERVER.setValue("https://example.com/passwordreset");
+        passwordResetMailer
+            .sendEmail(user, "test-token");
+        passwordResetMailer.stop();
+
+        verify(message)
+            .setSubject("Reset test-username", "UTF-8");
+        verify(message)
+            .setText("Go to https://example.com/passwordreset/change-password?token=test-token",
+                "UTF-8");
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendHtmlAlongsideThePlainText() {
+        final User user = new User(
+            "test-username", "<b>Test</b> User", "test@domain.com", new Date(), new Date());
+        doReturn(message).when(emailService).createMimeMessage();
+        PasswordResetPlugin.HTML_BODY.setValue("<p>Dear ${userName}, go to ${url}</p>");
+        passwordResetMailer = createMailer();
+
+        passwordResetMailer.createMessage(user, "test-token");
+
+        final MimeMultipart alternatives = captureContent();
+        assertThat(alternatives.getContentType())
+            .startsWith("multipart/alternative");
+        assertThat(alternatives.getCount())
+            .isEqualTo(2);
+        assertThat(alternatives.getBodyPart(0).getContent())
+            .asString()
+            .startsWith("Dear <b>Test</b> User");
+        assertThat(alternatives.getBodyPart(1).getContent())
+            .isEqualTo("<p>Dear &lt;b&gt;Test&lt;/b&gt; User, go to"
+                + " https://localhost:7443/passwordreset/change-password?token=test-token</p>");
+    }
+
+    @Test
+    @SneakyThrows
+    void willIncludeTheLogoInHtmlEmails(@TempDir final Path directory) {
+        final User user
+            = new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+        final Path logo = directory.resolve("logo.png");
+        Files.write(logo, "not really a png".getBytes(StandardCharsets.UTF_8));
+        doReturn(message).when(emailService).createMimeMessage();
+        PasswordResetPlugin.HTML_BODY.setValue("<img src=\"cid:logo\">");
+        PasswordResetPlugin.LOGO.setValue(logo.toString());
+        passwordResetMailer = createMailer();
+
+        passwordResetMailer.createMessage(user, "test-token");
+
+        final MimeMultipart alternatives = captureContent();
+        final MimeMultipart related =
+            (MimeMultipart) alternatives.getBodyPart(1).getContent();
+        assertThat(related.getContentType())
+            .startsWith("multipart/related");
+        assertThat(related.getBodyPart(0).getContent())
+            .isEqualTo("<img src=\"cid:logo\">");
+        final MimeBodyPart logoPart = (MimeBodyPart) related.getBodyPart(1);
+        assertThat(logoPart.getContentID())
+            .isEqualTo("<logo>");
+        assertThat(logoPart.getDataHandler().getContentType())
+            .isEqualTo("image/png");
+    }
+
+    @SneakyThrows
+    private MimeMultipart captureContent() {
+        final ArgumentCaptor<Multipart> content = ArgumentCaptor.forClass(Multipart.class);
+        verify(message).setContent(content.capture());
+        return (MimeMultipart) content.getValue();
     }
 
     @Test
@@ -77,4 +190,48 @@ class PasswordResetMailerTest {
 
         verifyNoInteractions(emailService);
     }
-}
\ No newline at end of file
+
+    @Test
+    @SneakyThrows
+    void willCreateMessagesToSendTogether() {
+        final User user
+            = new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+        final MimeMessage message = mock(MimeMessage.class);
+        doReturn(message).when(emailService).createMimeMessage();
+
+        assertThat(passwordResetMailer.createMessage(user, "test-token"))
+            .hasValue(message);
+        verify(message)
+            .setSubject("Openfire password reset", "UTF-8");
+        verify(message)
+            .setText(startsWith("Dear Test User"), eq("UTF-8"));
+
+        passwordResetMailer.sendMessages(Collections.singletonList(message));
+
+        verify(emailService)
+            .sendMessagesImmediately(Collections.singletonList(message));
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotCreateMessagesToUsersWithSpecialEmailAddress() {
+        final User user
+            = new User("test-username", "Test User", "user@example.com", new Date(), new Date());
+
+        assertThat(passwordResetMailer.createMessage(user, "test-token"))
+            .isEmpty();
+        verifyNoInteractions(emailService);
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotCreateMessagesToAddressesThatBounced() {
+        final User user
+            = new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+        doReturn(true).when(bounceSuppressor).isSuppressed("test@domain.com");
+
+        assertThat(passwordResetMailer.createMessage(user, "test-token"))
+            .isEmpty();
+        verifyNoInteractions(emailService);
+    }
+}
@@ -0,0 +1,226 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Collectors;
+import lombok.SneakyThrows;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequest;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestCount;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestPage;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestSummary;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetMemoryTokenStoreTest {
+
+    private static final ResetRequestFilter NO_FILTER =
+        new ResetRequestFilter(null, null, null, null);
+    private final Instant expires = Instant.now().plus(Duration.ofHours(1));
+    @Mock
+    private Connection connection;
+    @Mock
+    private PreparedStatement preparedStatement;
+    @Mock
+    private Statement statement;
+    @Mock
+    private ResultSet resultSet;
+
+    private PasswordResetMemoryTokenStore newStore(final boolean snapshotEnabled) {
+        return new PasswordResetMemoryTokenStore(() -> connection, () -> snapshotEnabled);
+    }
+
+    @Test
+    void willFindStoredTokens() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+
+        tokenStore.store("token", "test-user", "127.0.0.1", expires);
+
+        assertThat(tokenStore.findUserId("token"))
+            .hasValue("test-user");
+        assertThat(tokenStore.findUserId("another-token"))
+            .isEmpty();
+    }
+
+    @Test
+    void willNotKeepExpiredTokens() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+
+        tokenStore.store("token", "test-user", "127.0.0.1", Instant.now().minusSeconds(1));
+
+        assertThat(tokenStore.findUserId("token"))
+            .isEmpty();
+        assertThat(tokenStore.size())
+            .isZero();
+    }
+
+    @Test
+    void willDeleteEveryTokenForAUser() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+        tokenStore.store("token-1", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-2", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-3", "other-user", "127.0.0.1", expires);
+
+        tokenStore.deleteUser("test-user");
+
+        assertThat(tokenStore.findUserId("token-1"))
+            .isEmpty();
+        assertThat(tokenStore.findUserId("token-2"))
+            .isEmpty();
+        assertThat(tokenStore.findUserId("token-3"))
+            .hasValue("other-user");
+    }
+
+    @Test
+    void willConsumeATokenOnlyOnce() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+        tokenStore.store("token-1", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-2", "test-user", "127.0.0.1", expires);
+
+        assertThat(tokenStore.consume("token-1"))
+            .hasValue("test-user");
+        assertThat(tokenStore.consume("token-1"))
+            .isEmpty();
+        // Along with every other token for the user
+        assertThat(tokenStore.findUserId("token-2"))
+            .isEmpty();
+    }
+
+    @Test
+    void willPageAndFilterResetRequests() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+        for (int i = 0; i < 5; i++) {
+            tokenStore.store("token-" + i, "user-" + i, "127.0.0.1", expires);
+        }
+        tokenStore.store("token-other", "other-user", "10.0.0.1", expires);
+        final ResetRequestFilter filter = new ResetRequestFilter("user-", "127.0.0.1", null, null);
+
+        final ResetRequestPage firstPage = tokenStore.getResetRequests(filter, null, 3);
+        final ResetRequestPage lastPage =
+            tokenStore.getResetRequests(filter, firstPage.getNextCursor(), 3);
+
+        assertThat(firstPage.getResetRequests().stream()
+            .map(ResetRequest::getUserId)
+            .collect(Collectors.toList()))
+            .containsExactly("user-0", "user-1", "user-2");
+        assertThat(lastPage.getResetRequests().stream()
+            .map(ResetRequest::getUserId)
+            .collect(Collectors.toList()))
+            .containsExactly("user-3", "user-4");
+        assertThat(lastPage.getNextCursor())
+            .isEmpty();
+    }
+
+    @Test
+    void willSummariseResetRequests() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+        tokenStore.store("token-1", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-2", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-3", "other-user", "10.0.0.1", expires);
+
+        final ResetRequestSummary summary = tokenStore.summarise(10);
+
+        assertThat(summary.getOutstandingTokens())
+            .isEqualTo(3L);
+        assertThat(summary.getSourceAddressCounts())
+            .containsExactly(
+                new ResetRequestCount("127.0.0.1", 2L),
+                new ResetRequestCount("10.0.0.1", 1L));
+        // Only users with more than one token
+        assertThat(summary.getUserCounts())
+            .containsExactly(new ResetRequestCount("test-user", 2L));
+        assertThat(tokenStore.getResetRequests(NO_FILTER, null, 10).getResetRequests())
+            .hasSize(3);
+    }
+
+    @Test
+    @SneakyThrows
+    @SuppressFBWarnings(
+        value = {"OBL_UNSATISFIED_OBLIGATION", "ODR_OPEN_DATABASE_RESOURCE"},
+        justification = "All false positives!")
+    void willRestoreAndClearTheSnapshotOnStart() {
+        doReturn(preparedStatement)
+            .when(connection)
+            .prepareStatement(anyString());
+        doReturn(statement)
+            .when(connection)
+            .createStatement();
+        doReturn(resultSet)
+            .when(preparedStatement)
+            .executeQuery();
+        doReturn(true, false)
+            .when(resultSet)
+            .next();
+        doReturn(PasswordResetTokenEncoding.hash("token"))
+            .when(resultSet)
+            .getBytes("tokenHash");
+        doReturn("test-user")
+            .when(resultSet)
+            .getString("userId");
+        doReturn(PasswordResetTokenEncoding.packAddress("127.0.0.1"))
+            .when(resultSet)
+            .getBytes("sourceAddress");
+        doReturn(expires.toEpochMilli())
+            .when(resultSet)
+            .getLong("expires");
+        final PasswordResetMemoryTokenStore tokenStore = newStore(true);
+
+        tokenStore.start();
+
+        assertThat(tokenStore.findUserId("token"))
+            .hasValue("test-user");
+        verify(statement).execute("DELETE FROM ofPasswordResetToken");
+        verify(connection).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    @SuppressFBWarnings(
+        value = {"OBL_UNSATISFIED_OBLIGATION", "ODR_OPEN_DATABASE_RESOURCE"},
+        justification = "All false positives!")
+    void willSaveTheSnapshotOnStop() {
+        doReturn(preparedStatement)
+            .when(connection)
+            .prepareStatement(PasswordResetJdbcTokenStore.INSERT_SQL);
+        doReturn(statement)
+            .when(connection)
+            .createStatement();
+        final PasswordResetMemoryTokenStore tokenStore = newStore(true);
+        tokenStore.store("token-1", "test-user", "127.0.0.1", expires);
+        tokenStore.store("token-2", "other-user", "127.0.0.1", expires);
+
+        tokenStore.stop();
+
+        verify(statement).execute("DELETE FROM ofPasswordResetToken");
+        verify(preparedStatement, times(2)).addBatch();
+        verify(preparedStatement).executeBatch();
+        verify(connection).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotTouchTheDatabaseWithoutSnapshots() {
+        final PasswordResetMemoryTokenStore tokenStore = newStore(false);
+        tokenStore.store("token", "test-user", "127.0.0.1", expires);
+
+        tokenStore.start();
+        tokenStore.stop();
+
+        verify(connection, never()).createStatement();
+    }
+}
@@ -0,0 +1,309 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.TimerTask;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import lombok.SneakyThrows;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.TaskEngine;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetOutboxTest {
+
+    private static final byte[] TOKEN_HASH = new byte[32];
+    private static final byte[] KEY = new byte[32];
+    private static final User USER =
+        new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+    private PasswordResetOutbox outbox;
+    @Mock
+    private Connection connection;
+    @Mock
+    private PreparedStatement discardStatement;
+    @Mock
+    private PreparedStatement dueStatement;
+    @Mock
+    private PreparedStatement claimStatement;
+    @Mock
+    private PreparedStatement deleteStatement;
+    @Mock
+    private PreparedStatement backlogStatement;
+    @Mock
+    private ResultSet dueResultSet;
+    @Mock
+    private ResultSet backlogResultSet;
+    @Mock
+    private PasswordResetMailer passwordResetMailer;
+    @Mock
+    private UserManager userManager;
+    @Mock
+    private TaskEngine taskEngine;
+    @Mock
+    private MimeMessage message;
+
+    @BeforeAll
+    static void beforeAll() {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @BeforeEach
+    @SneakyThrows
+    void setUp() {
+        Fixtures.clearExistingProperties();
+        // Lenient, as not every test delivers
+        lenient().doReturn(discardStatement)
+            .when(connection).prepareStatement(PasswordResetOutbox.DISCARD_SQL);
+        lenient().doReturn(dueStatement)
+            .when(connection).prepareStatement(PasswordResetOutbox.DUE_SQL);
+        lenient().doReturn(claimStatement)
+            .when(connection).prepareStatement(PasswordResetOutbox.CLAIM_SQL);
+        lenient().doReturn(deleteStatement)
+            .when(connection).prepareStatement(PasswordResetOutbox.DELETE_SQL);
+        lenient().doReturn(backlogStatement)
+            .when(connection).prepareStatement(PasswordResetOutbox.BACKLOG_SQL);
+        lenient().doReturn(dueResultSet)
+            .when(dueStatement).executeQuery();
+        lenient().doReturn(backlogResultSet)
+            .when(backlogStatement).executeQuery();
+        outbox = new PasswordResetOutbox(
+            () -> connection, passwordResetMailer, userManager, () -> KEY, taskEngine);
+    }
+
+    @SneakyThrows
+    private void givenDue(final int attempts) {
+        givenDue(attempts, outbox.seal("test-token"));
+    }
+
+    @SneakyThrows
+    private void givenDue(final int attempts, final String sealedToken) {
+        doReturn(true)
+            .doReturn(false)
+            .when(dueResultSet).next();
+        doReturn(TOKEN_HASH)
+            .when(dueResultSet).getBytes("tokenHash");
+        doReturn(USER.getUsername())
+            .when(dueResultSet).getString("userId");
+        doReturn(sealedToken)
+            .when(dueResultSet).getString("token");
+        doReturn(attempts)
+            .when(dueResultSet).getInt("attempts");
+    }
+
+    @SneakyThrows
+    private void givenClaimed(final boolean claimed) {
+        doReturn(claimed ? 1 : 0)
+            .when(claimStatement).executeUpdate();
+    }
+
+    @SneakyThrows
+    private void givenMessage() {
+        doReturn(USER)
+            .when(userManager).getUser(USER.getUsername());
+        doReturn(Optional.of(message))
+            .when(passwordResetMailer).createMessage(USER, "test-token");
+    }
+
+    @Test
+    @SneakyThrows
+    void willSendDueEmailsAndThenDeleteThem() {
+        givenDue(0);
+        givenClaimed(true);
+        givenMessage();
+
+        outbox.deliver();
+
+        verify(claimStatement).setInt(1, 1);
+        verify(claimStatement).setInt(4, 0);
+        verify(passwordResetMailer).sendMessages(Collections.singletonList(message));
+        verify(deleteStatement).setBytes(1, TOKEN_HASH);
+        verify(deleteStatement).executeBatch();
+        assertThat(outbox.getSentCount())
+            .isEqualTo(1L);
+        assertThat(outbox.getAverageSentLag())
+            .isNotNull();
+    }
+
+    @Test
+    @SneakyThrows
+    void willKeepEmailsThatCouldNotBeSent() {
+        givenDue(0);
+        givenClaimed(true);
+        givenMessage();
+        doThrow(new MessagingException("test"))
+            .when(passwordResetMailer).sendMessages(any());
+
+        outbox.deliver();
+
+        verify(deleteStatement, never()).executeBatch();
+        assertThat(outbox.getFailedCount())
+            .isEqualTo(1L);
+        assertThat(outbox.getSentCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willGiveUpOnTokensThatCannotBeDecrypted() {
+        final PasswordResetOutbox otherOutbox = new PasswordResetOutbox(
+            () -> connection, passwordResetMailer, userManager, () -> new byte[16], taskEngine);
+        givenDue(0, otherOutbox.seal("test-token"));
+        givenClaimed(true);
+
+        outbox.deliver();
+
+        verify(passwordResetMailer, never()).createMessage(any(), any());
+        verify(deleteStatement).executeBatch();
+        assertThat(outbox.getAbandonedCount())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotSendEmailsClaimedByAnotherNode() {
+        givenDue(0);
+        givenClaimed(false);
+
+        outbox.deliver();
+
+        verify(passwordResetMailer, never()).createMessage(any(), any());
+        verify(passwordResetMailer, never()).sendMessages(any());
+    }
+
+    @Test
+    @SneakyThrows
+    void willGiveUpAfterTheMaximumAttempts() {
+        PasswordResetPlugin.OUTBOX_MAX_ATTEMPTS.setValue(3);
+        givenDue(3);
+        doReturn(1)
+            .when(deleteStatement).executeUpdate();
+
+        outbox.deliver();
+
+        verify(claimStatement, never()).setInt(anyInt(), anyInt());
+        verify(passwordResetMailer, never()).createMessage(any(), any());
+        assertThat(outbox.getAbandonedCount())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willScheduleTheNextAttemptWhenClaimed() {
+        PasswordResetPlugin.OUTBOX_RETRY_DELAY.setValue(Duration.ofSeconds(10));
+        givenDue(2);
+        givenClaimed(false);
+        final long before = System.currentTimeMillis();
+
+        outbox.deliver();
+
+        final long after = System.currentTimeMillis();
+        verify(claimStatement).setLong(eq(2), longThat(nextAttempt ->
+            nextAttempt >= before + 40_000 && nextAttempt <= after + 40_000));
+    }
+
+    @Test
+    void willDoubleTheRetryDelayUpToTheMaximum() {
+        PasswordResetPlugin.OUTBOX_RETRY_DELAY.setValue(Duration.ofSeconds(30));
+        PasswordResetPlugin.OUTBOX_MAX_RETRY_DELAY.setValue(Duration.ofMinutes(10));
+
+        assertThat(PasswordResetOutbox.getRetryDelay(0))
+            .isEqualTo(Duration.ofSeconds(30));
+        assertThat(PasswordResetOutbox.getRetryDelay(1))
+            .isEqualTo(Duration.ofMinutes(1));
+        assertThat(PasswordResetOutbox.getRetryDelay(4))
+            .isEqualTo(Duration.ofMinutes(8));
+        assertThat(PasswordResetOutbox.getRetryDelay(5))
+            .isEqualTo(Duration.ofMinutes(10));
+        assertThat(PasswordResetOutbox.getRetryDelay(Integer.MAX_VALUE))
+            .isEqualTo(Duration.ofMinutes(10));
+    }
+
+    @Test
+    @SneakyThrows
+    void willMeasureTheBacklog() {
+        doReturn(true)
+            .when(backlogResultSet).next();
+        doReturn(2L)
+            .when(backlogResultSet).getLong(1);
+        doReturn(System.currentTimeMillis() - 60_000)
+            .when(backlogResultSet).getLong(2);
+
+        outbox.deliver();
+
+        assertThat(outbox.getBacklog())
+            .isEqualTo(2L);
+        assertThat(outbox.getDeliveryLag())
+            .isGreaterThanOrEqualTo(Duration.ofMinutes(1));
+    }
+
+    @Test
+    void willScheduleAtTheConfiguredInterval() {
+        PasswordResetPlugin.OUTBOX_POLL_INTERVAL.setValue(Duration.ofSeconds(42));
+
+        outbox.start();
+
+        verify(taskEngine).schedule(
+            any(TimerTask.class), eq(Duration.ofSeconds(42)), eq(Duration.ofSeconds(42)));
+        outbox.stop();
+    }
+
+    @Test
+    void willNotWakeOnceStopped() {
+        outbox.wake();
+
+        verify(taskEngine, never()).submit(any(Runnable.class));
+    }
+
+    @Test
+    void willSealTokensWithAKeyDerivedFromTheSigningKey() {
+        final String sealed = outbox.seal("test-token");
+
+        assertThat(sealed)
+            .doesNotContain("test-token")
+            .isNotEqualTo(outbox.seal("test-token"));
+        assertThat(outbox.unseal(sealed))
+            .isEqualTo("test-token");
+        assertThat(outbox.unseal(sealed.substring(1)))
+            .isNull();
+        assertThat(outbox.unseal("not-sealed"))
+            .isNull();
+    }
+
+    @Test
+    void willSealWithANewKeyOnceTheSigningKeyChanges() {
+        final byte[][] signingKey = {new byte[32]};
+        final PasswordResetOutbox rotatingOutbox = new PasswordResetOutbox(
+            () -> connection, passwordResetMailer, userManager, () -> signingKey[0], taskEngine);
+        final String sealed = rotatingOutbox.seal("test-token");
+
+        signingKey[0] = new byte[] {1};
+
+        assertThat(rotatingOutbox.unseal(sealed))
+            .isNull();
+        assertThat(rotatingOutbox.unseal(rotatingOutbox.seal("test-token")))
+            .isEqualTo("test-token");
+    }
+}
@@ -0,0 +1,85 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetRateLimiterTest {
+
+    private PasswordResetRateLimiter rateLimiter;
+    private int limit;
+    private Duration period;
+    private int maxEntries;
+
+    @BeforeEach
+    void setUp() {
+        limit = 3;
+        period = Duration.ofHours(1);
+        maxEntries = 1000;
+        rateLimiter = new PasswordResetRateLimiter(() -> limit, () -> period, () -> maxEntries);
+    }
+
+    @Test
+    void willAllowABurstUpToTheLimit() {
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isFalse();
+    }
+
+    @Test
+    void willLimitEachKeySeparately() {
+        limit = 1;
+
+        assertThat(rateLimiter.tryAcquire("key1"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key2"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key1"))
+            .isFalse();
+    }
+
+    @Test
+    void willRefillOverThePeriod() throws InterruptedException {
+        limit = 1;
+        period = Duration.ofMillis(50);
+
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isTrue();
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isFalse();
+        Thread.sleep(100);
+        assertThat(rateLimiter.tryAcquire("key"))
+            .isTrue();
+    }
+
+    @Test
+    void willNotLimitWhenDisabled() {
+        limit = 0;
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(rateLimiter.tryAcquire("key"))
+                .isTrue();
+        }
+        assertThat(rateLimiter.size())
+            .isEqualTo(0);
+    }
+
+    @Test
+    void willRememberNoMoreThanTheMaximumNumberOfKeys() {
+        maxEntries = 64;
+
+        for (int i = 0; i < 10_000; i++) {
+            rateLimiter.tryAcquire("address-" + i);
+        }
+
+        assertThat(rateLimiter.size())
+            .isLessThanOrEqualTo(64);
+    }
+}
@@ -0,0 +1,61 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetSigningKeyTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private PasswordResetSigningKey signingKey;
+
+    @BeforeEach
+    void setUp() {
+        loads.set(0);
+        signingKey = new PasswordResetSigningKey(() -> new byte[] {(byte) loads.incrementAndGet()});
+    }
+
+    @AfterEach
+    void tearDown() {
+        signingKey.stop();
+    }
+
+    @Test
+    void willNotSupplyAKeyUntilStarted() {
+        assertThatThrownBy(signingKey::get)
+            .isInstanceOf(IllegalStateException.class);
+        assertThat(loads.get())
+            .isZero();
+    }
+
+    @Test
+    void willLoadTheKeyOnlyOnce() {
+        signingKey.start();
+
+        final byte[] key = signingKey.get();
+
+        assertThat(signingKey.get())
+            .isSameAs(key);
+        assertThat(loads.get())
+            .isOne();
+    }
+
+    @Test
+    void willReloadTheKeyWhenItIsStoredElsewhere() {
+        signingKey.start();
+        final byte[] key = signingKey.get();
+
+        signingKey.propertySet("plugin.passwordreset.other", Collections.emptyMap());
+        assertThat(signingKey.get())
+            .isSameAs(key);
+
+        signingKey.propertySet(PasswordResetTokenSigner.KEY_PROPERTY, Collections.emptyMap());
+        assertThat(signingKey.get())
+            .containsExactly(2);
+    }
+}
@@ -0,0 +1,89 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetSingleFlightTest {
+
+    private PasswordResetSingleFlight<String> singleFlight;
+    private AtomicInteger calls;
+
+    @BeforeEach
+    void setUp() {
+        singleFlight = new PasswordResetSingleFlight<>();
+        calls = new AtomicInteger();
+    }
+
+    @Test
+    @SneakyThrows
+    void willShareTheResultOfACallInFlight() {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CompletableFuture<String> leader = CompletableFuture.supplyAsync(() -> {
+            try {
+                return singleFlight.execute("key", () -> {
+                    calls.incrementAndGet();
+                    started.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return "result";
+                });
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        started.await(10, TimeUnit.SECONDS);
+        final CompletableFuture<String> follower = CompletableFuture.supplyAsync(() -> {
+            try {
+                return singleFlight.execute("key", () -> {
+                    calls.incrementAndGet();
+                    return "another-result";
+                });
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (singleFlight.getCoalescedCount() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        assertThat(leader.get(10, TimeUnit.SECONDS))
+            .isEqualTo("result");
+        assertThat(follower.get(10, TimeUnit.SECONDS))
+            .isEqualTo("result");
+        assertThat(calls.get())
+            .isEqualTo(1);
+    }
+
+    @Test
+    @SneakyThrows
+    void willForgetTheKeyOnceComplete() {
+        singleFlight.execute("key", () -> "first");
+
+        assertThat(singleFlight.execute("key", () -> "second"))
+            .isEqualTo("second");
+        assertThat(singleFlight.size())
+            .isEqualTo(0);
+        assertThat(singleFlight.getCoalescedCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    void willForgetTheKeyOnceFailed() {
+        assertThatThrownBy(() -> singleFlight.execute("key", () -> {
+            throw new SQLException("test");
+        })).isInstanceOf(SQLException.class);
+
+        assertThat(singleFlight.size())
+            .isEqualTo(0);
+    }
+}
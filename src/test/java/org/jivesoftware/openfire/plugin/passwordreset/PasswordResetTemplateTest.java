@@ -0,0 +1,82 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Date;
+import org.jivesoftware.openfire.user.User;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTemplateTest {
+
+    private static final User USER =
+        new User("test-username", "Test User", "test@domain.com", new Date(), new Date());
+    private static final String URL = "https://localhost/change-password?token=test-token";
+
+    @Test
+    void willSubstitutePlaceholders() {
+        final PasswordResetTemplate template = PasswordResetTemplate.compile(
+            "Dear ${userName} (${userId}, ${userEmail}), go to ${url}");
+
+        assertThat(template.render(USER, URL))
+            .isEqualTo("Dear Test User (test-username, test@domain.com), go to " + URL);
+        assertThat(template.getUnknownPlaceholders())
+            .isEmpty();
+    }
+
+    @Test
+    void willSubstitutePlaceholdersMoreThanOnce() {
+        final PasswordResetTemplate template = PasswordResetTemplate.compile("${userId}${userId}");
+
+        assertThat(template.render(USER, URL))
+            .isEqualTo("test-usernametest-username");
+    }
+
+    @Test
+    void willRenderTemplatesWithoutPlaceholders() {
+        assertThat(PasswordResetTemplate.compile("Reset your password").render(USER, URL))
+            .isEqualTo("Reset your password");
+        assertThat(PasswordResetTemplate.compile("").render(USER, URL))
+            .isEmpty();
+    }
+
+    @Test
+    void willReportAndKeepUnknownPlaceholders() {
+        final PasswordResetTemplate template = PasswordResetTemplate.compile(
+            "Dear ${name}, go to ${url} ${link} ${name}");
+
+        assertThat(template.render(USER, URL))
+            .isEqualTo("Dear ${name}, go to " + URL + " ${link} ${name}");
+        assertThat(template.getUnknownPlaceholders())
+            .containsExactly("${name}", "${link}");
+    }
+
+    @Test
+    void willKeepUnterminatedPlaceholders() {
+        final PasswordResetTemplate template = PasswordResetTemplate.compile("${${userId} ${url");
+
+        assertThat(template.render(USER, URL))
+            .isEqualTo("${test-username ${url");
+        assertThat(template.getUnknownPlaceholders())
+            .isEmpty();
+    }
+
+    @Test
+    void willEscapeValuesInHtmlTemplates() {
+        final User user = new User(
+            "test-username", "<Test & \"User\">", "test@domain.com", new Date(), new Date());
+        final PasswordResetTemplate template =
+            PasswordResetTemplate.compileHtml("<p title=\"${userName}\">${userName}</p>");
+
+        assertThat(template.render(user, URL))
+            .isEqualTo("<p title=\"&lt;Test &amp; &quot;User&quot;&gt;\">"
+                + "&lt;Test &amp; &quot;User&quot;&gt;</p>");
+    }
+
+    @Test
+    void willNotSubstitutePlaceholdersInTheValues() {
+        final User user = new User("test-username", "${userId}", null, new Date(), new Date());
+
+        assertThat(PasswordResetTemplate.compile("${userName} ${userEmail}.").render(user, URL))
+            .isEqualTo("${userId} .");
+    }
+}
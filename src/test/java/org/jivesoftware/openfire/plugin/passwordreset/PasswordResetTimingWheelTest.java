@@ -0,0 +1,71 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTimingWheelTest {
+
+    private static final long START = 1_000_000L;
+    private final PasswordResetTimingWheel<String> timingWheel =
+        new PasswordResetTimingWheel<>(Duration.ofSeconds(1), START);
+    private final List<String> due = new ArrayList<>();
+
+    @Test
+    void willNotScheduleItemsAlreadyDue() {
+        assertThat(timingWheel.schedule("past", START - 1))
+            .isFalse();
+        assertThat(timingWheel.schedule("now", START))
+            .isFalse();
+        assertThat(timingWheel.size())
+            .isZero();
+    }
+
+    @Test
+    void willNotReleaseItemsEarly() {
+        timingWheel.schedule("item", START + 1500);
+
+        assertThat(timingWheel.advance(START + 1999, due::add))
+            .isZero();
+        assertThat(timingWheel.advance(START + 2000, due::add))
+            .isOne();
+        assertThat(due)
+            .containsExactly("item");
+        assertThat(timingWheel.size())
+            .isZero();
+    }
+
+    @Test
+    void willReleaseItemsOnEveryWheel() {
+        // One tick, then beyond the first, second and third wheels, and beyond all of them
+        final long[] delays = {1, 100, 10_000, 1_000_000, 100_000_000};
+        for (final long delay : delays) {
+            timingWheel.schedule("item-" + delay, START + delay * 1000);
+        }
+
+        for (final long delay : delays) {
+            timingWheel.advance(START + delay * 1000 - 1, due::add);
+            assertThat(due)
+                .doesNotContain("item-" + delay);
+            timingWheel.advance(START + delay * 1000, due::add);
+            assertThat(due)
+                .contains("item-" + delay);
+        }
+        assertThat(due)
+            .hasSize(delays.length);
+    }
+
+    @Test
+    void willReleaseItemsInOrderWhenAdvancingALongWay() {
+        timingWheel.schedule("later", START + 5_000_000);
+        timingWheel.schedule("sooner", START + 70_000);
+
+        assertThat(timingWheel.advance(START + 10_000_000, due::add))
+            .isEqualTo(2);
+        assertThat(due)
+            .containsExactly("sooner", "later");
+    }
+}
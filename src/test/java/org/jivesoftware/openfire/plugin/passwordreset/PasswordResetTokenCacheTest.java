@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTokenCacheTest {
+
+    private PasswordResetTokenCache tokenCache;
+    private int maxSize;
+
+    @BeforeEach
+    void setUp() {
+        maxSize = 2;
+        tokenCache = new PasswordResetTokenCache(() -> maxSize);
+    }
+
+    private static Instant inAnHour() {
+        return Instant.now().plus(Duration.ofHours(1));
+    }
+
+    @Test
+    void willReturnCachedUser() {
+        tokenCache.put("token", "user", inAnHour());
+
+        assertThat(tokenCache.get("token"))
+            .hasValue("user");
+        assertThat(tokenCache.getHits())
+            .isEqualTo(1L);
+        assertThat(tokenCache.getMisses())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    void willCountMisses() {
+        assertThat(tokenCache.get("token"))
+            .isEmpty();
+        assertThat(tokenCache.getMisses())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    void willNotReturnExpiredTokens() {
+        tokenCache.put("token", "user", Instant.now().minusSeconds(1));
+
+        assertThat(tokenCache.get("token"))
+            .isEmpty();
+        assertThat(tokenCache.size())
+            .isEqualTo(0);
+    }
+
+    @Test
+    void willEvictLeastRecentlyUsedToken() {
+        tokenCache.put("token1", "user1", inAnHour());
+        tokenCache.put("token2", "user2", inAnHour());
+        tokenCache.get("token1");
+        tokenCache.put("token3", "user3", inAnHour());
+
+        assertThat(tokenCache.get("token1"))
+            .hasValue("user1");
+        assertThat(tokenCache.get("token2"))
+            .isEmpty();
+        assertThat(tokenCache.get("token3"))
+            .hasValue("user3");
+    }
+
+    @Test
+    void willRemoveAllTokensForUser() {
+        tokenCache.put("token1", "user1", inAnHour());
+        tokenCache.put("token2", "user1", inAnHour());
+
+        tokenCache.removeUser("user1");
+
+        assertThat(tokenCache.size())
+            .isEqualTo(0);
+    }
+
+    @Test
+    void willCacheNothingWhenDisabled() {
+        maxSize = 0;
+        tokenCache.put("token", "user", inAnHour());
+
+        assertThat(tokenCache.get("token"))
+            .isEmpty();
+    }
+
+    @Test
+    void willForgetCachedTokensOnceDisabled() {
+        tokenCache.put("token", "user", inAnHour());
+        maxSize = 0;
+
+        assertThat(tokenCache.get("token"))
+            .isEmpty();
+        assertThat(tokenCache.size())
+            .isEqualTo(0);
+    }
+}
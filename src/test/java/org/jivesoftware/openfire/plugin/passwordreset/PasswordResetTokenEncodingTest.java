@@ -0,0 +1,63 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTokenEncodingTest {
+
+    @Test
+    void willHashTokensToAFixedLength() {
+        final byte[] hash1 = PasswordResetTokenEncoding.hash("token1");
+        final byte[] hash2 = PasswordResetTokenEncoding.hash("token2");
+
+        assertThat(hash1)
+            .hasSize(32)
+            .isEqualTo(PasswordResetTokenEncoding.hash("token1"))
+            .isNotEqualTo(hash2);
+    }
+
+    @Test
+    void willPackIpv4Addresses() {
+        final byte[] packedAddress = PasswordResetTokenEncoding.packAddress("192.0.2.1");
+
+        assertThat(packedAddress)
+            .containsExactly(192, 0, 2, 1);
+        assertThat(PasswordResetTokenEncoding.unpackAddress(packedAddress))
+            .isEqualTo("192.0.2.1");
+    }
+
+    @Test
+    void willPackIpv6Addresses() {
+        final byte[] packedAddress = PasswordResetTokenEncoding.packAddress("2001:db8::1");
+
+        assertThat(packedAddress)
+            .hasSize(16);
+        assertThat(PasswordResetTokenEncoding.unpackAddress(packedAddress))
+            .isEqualTo("2001:db8:0:0:0:0:0:1");
+    }
+
+    @Test
+    void willPackBracketedIpv6Addresses() {
+        assertThat(PasswordResetTokenEncoding.packAddress("[2001:db8::1]"))
+            .isEqualTo(PasswordResetTokenEncoding.packAddress("2001:db8::1"));
+    }
+
+    @Test
+    void willNotResolveHostNames() {
+        assertThat(PasswordResetTokenEncoding.packAddress("localhost"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.packAddress("999.0.2.1"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.packAddress("host:80"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.packAddress("g::1"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.packAddress(".::1"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.packAddress("abc:def"))
+            .isEmpty();
+        assertThat(PasswordResetTokenEncoding.unpackAddress(new byte[0]))
+            .isEqualTo("");
+    }
+}
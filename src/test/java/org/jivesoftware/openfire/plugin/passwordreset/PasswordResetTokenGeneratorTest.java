@@ -0,0 +1,57 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTokenGeneratorTest {
+
+    @Test
+    void willGenerateUrlSafeTokensOfTheRequestedLength() {
+        final PasswordResetTokenGenerator tokenGenerator = new PasswordResetTokenGenerator(32);
+
+        final String token = tokenGenerator.generate();
+
+        assertThat(token)
+            .hasSize(32)
+            .matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    void willNotRepeatTokensAcrossBufferRefills() {
+        final PasswordResetTokenGenerator tokenGenerator = new PasswordResetTokenGenerator(32, 1);
+        final Set<String> tokens = new HashSet<>();
+
+        // Enough to refill the buffer many times over
+        for (int i = 0; i < 10_000; i++) {
+            tokens.add(tokenGenerator.generate());
+        }
+
+        assertThat(tokens)
+            .hasSize(10_000);
+    }
+
+    @Test
+    void willUseEveryCharacter() {
+        final PasswordResetTokenGenerator tokenGenerator = new PasswordResetTokenGenerator(32, 1);
+        final Set<Character> characters = new HashSet<>();
+
+        for (int i = 0; i < 1_000; i++) {
+            for (final char character : tokenGenerator.generate().toCharArray()) {
+                characters.add(character);
+            }
+        }
+
+        assertThat(characters)
+            .hasSize(64);
+    }
+
+    @Test
+    void willRejectAnInvalidTokenLength() {
+        assertThatThrownBy(() -> new PasswordResetTokenGenerator(0))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -2,21 +2,40 @@ package org.jivesoftware.openfire.plugin.passwordreset;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import lombok.SneakyThrows;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -29,6 +48,8 @@ class PasswordResetTokenManagerTest {
     private Connection connection;
     @Mock
     private PreparedStatement preparedStatement;
+    @Mock
+    private UserManager userManager;
 
     @BeforeAll
     @SuppressWarnings("deprecation")
@@ -51,11 +72,15 @@ class PasswordResetTokenManagerTest {
 
         user = new User("test-username", "Test User", "test@example.com", new Date(), new Date());
 
-        doReturn(preparedStatement)
+        // Lenient, as signed tokens never touch the database
+        lenient().doReturn(preparedStatement)
             .when(connection)
             .prepareStatement(any());
 
-        resetTokenManager = new PasswordResetTokenManager(() -> connection, null);
+        final PasswordResetTokenSigner tokenSigner = new PasswordResetTokenSigner(
+            () -> new byte[32], username -> Optional.of("test-password-state"));
+        resetTokenManager = new PasswordResetTokenManager(
+            () -> connection, userManager, tokenSigner);
     }
 
     @Test
@@ -70,6 +95,420 @@ class PasswordResetTokenManagerTest {
         assertThat(token2)
             .hasSize(32)
             .isNotEqualTo(token1);
-        verify(preparedStatement, times(2)).execute();
+        verify(preparedStatement, times(2)).executeBatch();
+    }
+
+    @Test
+    @SneakyThrows
+    void willAddTheEmailToTheOutboxWithTheToken() {
+        final PasswordResetOutbox outbox = mock(PasswordResetOutbox.class);
+        doReturn(true).when(outbox).isEnabled();
+        doReturn("sealed-token").when(outbox).seal(anyString());
+
+        final PasswordResetTokenManager.IssuedToken issuedToken =
+            resetTokenManager.generateToken(user, "localhost", outbox);
+
+        assertThat(issuedToken.isQueued())
+            .isTrue();
+        verify(outbox).seal(issuedToken.getToken());
+        verify(preparedStatement).setString(3, "sealed-token");
+        verify(connection, times(1)).commit();
+        verify(outbox).wake();
+    }
+
+    @Test
+    @SneakyThrows
+    void willLeaveTheEmailToTheCallerWhenTheOutboxIsDisabled() {
+        final PasswordResetOutbox outbox = mock(PasswordResetOutbox.class);
+        doReturn(false).when(outbox).isEnabled();
+
+        final PasswordResetTokenManager.IssuedToken issuedToken =
+            resetTokenManager.generateToken(user, "localhost", outbox);
+
+        assertThat(issuedToken.isQueued())
+            .isFalse();
+        verify(outbox, never()).seal(anyString());
+    }
+
+    @Test
+    @SneakyThrows
+    void willLeaveTheEmailToTheCallerForSignedTokens() {
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.SIGNED);
+        final PasswordResetOutbox outbox = mock(PasswordResetOutbox.class);
+
+        final PasswordResetTokenManager.IssuedToken issuedToken =
+            resetTokenManager.generateToken(user, "localhost", outbox);
+
+        assertThat(issuedToken.isQueued())
+            .isFalse();
+        verify(outbox, never()).seal(anyString());
+        verify(connection, never()).prepareStatement(any());
+    }
+
+    @Test
+    @SneakyThrows
+    void willResolveNewTokenFromTheCache() {
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+        final String token = resetTokenManager.generateToken(user, "localhost");
+
+        assertThat(resetTokenManager.getUser(token))
+            .hasValue(user);
+        // Once to insert, but not to find the user
+        verify(connection, times(1)).prepareStatement(any());
+        assertThat(resetTokenManager.getCacheHits())
+            .isEqualTo(1L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotResolveTokensFromTheCacheWhenClustered() {
+        JiveGlobals.setXMLProperty("clustering.enabled", "true");
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        final String token = resetTokenManager.generateToken(user, "localhost");
+
+        // As if another node had consumed the token
+        assertThat(resetTokenManager.getUser(token))
+            .isEmpty();
+        verify(connection, times(2)).prepareStatement(any());
+        assertThat(resetTokenManager.getCacheHits())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willIssueSignedTokensWithoutTheDatabase() {
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.SIGNED);
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+
+        final String token = resetTokenManager.generateToken(user, "localhost");
+
+        assertThat(resetTokenManager.getUser(token))
+            .hasValue(user);
+        verify(connection, never()).prepareStatement(any());
+    }
+
+    @Test
+    @SneakyThrows
+    void willRejectSignedTokensInDatabaseMode() {
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.SIGNED);
+        final String token = resetTokenManager.generateToken(user, "localhost");
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.DATABASE);
+
+        assertThat(resetTokenManager.getUser(token))
+            .isEmpty();
+        verify(connection, never()).prepareStatement(any());
+    }
+
+    @Test
+    @SneakyThrows
+    void willConsumeASignedTokenOnlyOnce() {
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.SIGNED);
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+        final String token = resetTokenManager.generateToken(user, "localhost");
+
+        assertThat(resetTokenManager.consumeToken(token))
+            .hasValue(user);
+        assertThat(resetTokenManager.consumeToken(token))
+            .isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    void willConsumeASignedTokenUsedConcurrentlyOnlyOnce() {
+        PasswordResetPlugin.TOKEN_MODE.setValue(PasswordResetTokenManager.TokenMode.SIGNED);
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+        final String token = resetTokenManager.generateToken(user, "localhost");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<CompletableFuture<Optional<User>>> consumes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                consumes.add(CompletableFuture.supplyAsync(() -> consume(start, token), executor));
+            }
+            start.countDown();
+            CompletableFuture.allOf(consumes.toArray(new CompletableFuture[0])).get();
+
+            assertThat(consumes.stream().filter(consume -> consume.join().isPresent()))
+                .hasSize(1);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @SneakyThrows
+    private Optional<User> consume(final CountDownLatch start, final String token) {
+        start.await();
+        return resetTokenManager.consumeToken(token);
+    }
+
+    @Test
+    @SneakyThrows
+    void willConsumeATokenInOneTransaction() {
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn("HSQL Database Engine").when(metaData).getDatabaseProductName();
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(user.getUsername()).when(resultSet).getString("userId");
+        doReturn(1).when(preparedStatement).executeUpdate();
+        doReturn(user).when(userManager).getUser(user.getUsername());
+
+        assertThat(resetTokenManager.consumeToken("test-token"))
+            .hasValue(user);
+        verify(preparedStatement).setString(1, user.getUsername());
+        verify(connection).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotConsumeATokenAlreadyConsumed() {
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn("HSQL Database Engine").when(metaData).getDatabaseProductName();
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(user.getUsername()).when(resultSet).getString("userId");
+        // A concurrent request deleted the token first
+        doReturn(0).when(preparedStatement).executeUpdate();
+
+        assertThat(resetTokenManager.consumeToken("test-token"))
+            .isEmpty();
+        verify(connection).rollback();
+        verify(connection, never()).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    void willConsumeATokenInOneStatementOnPostgresql() {
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn("PostgreSQL").when(metaData).getDatabaseProductName();
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(PasswordResetTokenEncoding.hash("test-token"))
+            .when(resultSet).getBytes("tokenHash");
+        doReturn(user.getUsername()).when(resultSet).getString("userId");
+        doReturn(user).when(userManager).getUser(user.getUsername());
+
+        assertThat(resetTokenManager.consumeToken("test-token"))
+            .hasValue(user);
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        assertThat(sql.getValue())
+            .contains("RETURNING");
+        verify(connection, never()).setAutoCommit(false);
+    }
+
+    @Test
+    @SneakyThrows
+    void willUpsertTheOnlyTokenForAUser() {
+        PasswordResetPlugin.ONE_TOKEN_PER_USER.setValue(true);
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn("PostgreSQL").when(metaData).getDatabaseProductName();
+
+        resetTokenManager.generateToken(user, "localhost");
+
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        assertThat(sql.getValue())
+            .contains("ON CONFLICT (userId, userSlot) DO UPDATE");
+    }
+
+    @Test
+    @SneakyThrows
+    void willConsumeEveryTokenForAUserWithOneTokenPerUser() {
+        PasswordResetPlugin.ONE_TOKEN_PER_USER.setValue(true);
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn("MySQL").when(metaData).getDatabaseProductName();
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(user.getUsername()).when(resultSet).getString("userId");
+        doReturn(1).when(preparedStatement).executeUpdate();
+        doReturn(user).when(userManager).getUser(user.getUsername());
+
+        assertThat(resetTokenManager.consumeToken("test-token"))
+            .hasValue(user);
+        verify(preparedStatement).setString(1, user.getUsername());
+        verify(preparedStatement, times(2)).executeUpdate();
+        verify(connection).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotAcceptATokenIssuedBeforeOneTokenPerUserOnceAnotherIsConsumed() {
+        final Connection database = Fixtures.createDatabase();
+        try {
+            doReturn(user).when(userManager).getUser(user.getUsername());
+            final PasswordResetTokenManager tokenManager = new PasswordResetTokenManager(
+                Fixtures::connectDatabase, userManager, mock(PasswordResetTokenSigner.class));
+            final String earlierToken = tokenManager.generateToken(user, "localhost");
+            PasswordResetPlugin.ONE_TOKEN_PER_USER.setValue(true);
+            final String token = tokenManager.generateToken(user, "localhost");
+
+            assertThat(tokenManager.consumeToken(token))
+                .hasValue(user);
+            assertThat(tokenManager.getUser(earlierToken))
+                .isEmpty();
+        } finally {
+            Fixtures.shutdownDatabase(database);
+        }
+    }
+
+    @Test
+    @SneakyThrows
+    void willPurgeExpiredTokens() {
+        doReturn(42)
+            .when(preparedStatement)
+            .executeUpdate();
+
+        assertThat(resetTokenManager.purgeExpiredTokens())
+            .isEqualTo(42);
+    }
+
+    @Test
+    @SneakyThrows
+    void willStoreAHashOfTheToken() {
+        final String token = resetTokenManager.generateToken(user, "192.0.2.1");
+
+        verify(preparedStatement).setBytes(1, PasswordResetTokenEncoding.hash(token));
+        verify(preparedStatement).setBytes(3, new byte[] {(byte) 192, 0, 2, 1});
+    }
+
+    @Test
+    @SneakyThrows
+    void willReturnAPageOfResetRequestsWithACursor() {
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).when(resultSet).next();
+        doReturn(user.getUsername()).when(resultSet).getString("userId");
+        doReturn(System.currentTimeMillis() + 60_000).when(resultSet).getLong("expires");
+        doReturn(new byte[] {(byte) 192, 0, 2, 1}).when(resultSet).getBytes("sourceAddress");
+        doReturn(new byte[32]).when(resultSet).getBytes("tokenHash");
+        final PasswordResetTokenManager.ResetRequestFilter filter =
+            new PasswordResetTokenManager.ResetRequestFilter("test_", "", null, null);
+
+        final PasswordResetTokenManager.ResetRequestPage page =
+            resetTokenManager.getResetRequests(filter, "", 2);
+
+        assertThat(page.getResetRequests())
+            .hasSize(2);
+        assertThat(page.getResetRequests().get(0).getSourceAddress())
+            .isEqualTo("192.0.2.1");
+        assertThat(page.getNextCursor())
+            .isNotEmpty();
+        verify(preparedStatement).setObject(2, "test!_%");
+        verify(preparedStatement).setMaxRows(3);
+
+        resetTokenManager.getResetRequests(filter, page.getNextCursor(), 2);
+
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection, times(2)).prepareStatement(sql.capture());
+        assertThat(sql.getValue())
+            .contains("userId > ?");
+        verify(preparedStatement).setObject(3, user.getUsername());
+        verify(preparedStatement).setObject(4, user.getUsername());
+    }
+
+    @Test
+    @SneakyThrows
+    void willReturnTheLastPageWithoutACursor() {
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(false).when(resultSet).next();
+
+        final PasswordResetTokenManager.ResetRequestPage page = resetTokenManager.getResetRequests(
+            new PasswordResetTokenManager.ResetRequestFilter(null, null, null, null), "bad!", 2);
+
+        assertThat(page.getResetRequests())
+            .isEmpty();
+        assertThat(page.getNextCursor())
+            .isEmpty();
+        final ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        verify(connection).prepareStatement(sql.capture());
+        assertThat(sql.getValue())
+            .doesNotContain("userId > ?");
+    }
+
+    @Test
+    @SneakyThrows
+    void willSummariseAndCacheResetRequests() {
+        final ResultSet resultSet = mock(ResultSet.class);
+        doReturn(resultSet).when(preparedStatement).executeQuery();
+        doReturn(true).doReturn(true).doReturn(false).doReturn(true).doReturn(false)
+            .when(resultSet).next();
+        doReturn(3L).doReturn(2L).doReturn(2L).when(resultSet).getLong(anyInt());
+        doReturn(new byte[] {(byte) 192, 0, 2, 1}).when(resultSet).getBytes(1);
+        doReturn(user.getUsername()).when(resultSet).getString(1);
+
+        final PasswordResetTokenManager.ResetRequestSummary summary =
+            resetTokenManager.getResetRequestSummary().orElseThrow(IllegalStateException::new);
+
+        assertThat(summary.getOutstandingTokens())
+            .isEqualTo(3L);
+        assertThat(summary.getSourceAddressCounts())
+            .containsExactly(new PasswordResetTokenManager.ResetRequestCount("192.0.2.1", 2));
+        assertThat(summary.getUserCounts())
+            .containsExactly(
+                new PasswordResetTokenManager.ResetRequestCount(user.getUsername(), 2));
+        assertThat(resetTokenManager.getResetRequestSummary())
+            .hasValue(summary);
+        verify(connection, times(3)).prepareStatement(any());
+    }
+
+    @Test
+    @SneakyThrows
+    void willMigrateLegacyTokens() {
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet tables = mock(ResultSet.class);
+        final ResultSet legacyTokens = mock(ResultSet.class);
+        final Statement statement = mock(Statement.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn(tables).when(metaData)
+            .getTables(null, null, "ofPasswordResetTokenLegacy", null);
+        doReturn(true).when(tables).next();
+        doReturn(legacyTokens).when(preparedStatement).executeQuery();
+        doReturn(true).doReturn(false).when(legacyTokens).next();
+        doReturn("legacy-token").when(legacyTokens).getString("token");
+        doReturn(user.getUsername()).when(legacyTokens).getString("userId");
+        doReturn("192.0.2.1").when(legacyTokens).getString("sourceAddress");
+        doReturn(new Timestamp(System.currentTimeMillis() + 60_000))
+            .when(legacyTokens).getTimestamp("expires");
+        doReturn(statement).when(connection).createStatement();
+
+        resetTokenManager.migrateLegacyTokens();
+
+        verify(preparedStatement).setBytes(1, PasswordResetTokenEncoding.hash("legacy-token"));
+        verify(preparedStatement).executeBatch();
+        verify(statement).execute("DROP TABLE ofPasswordResetTokenLegacy");
+        verify(connection).commit();
+    }
+
+    @Test
+    @SneakyThrows
+    void willNotMigrateWithoutALegacyTable() {
+        final DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        final ResultSet tables = mock(ResultSet.class);
+        doReturn(metaData).when(connection).getMetaData();
+        doReturn(tables).when(metaData).getTables(any(), any(), anyString(), any());
+
+        resetTokenManager.migrateLegacyTokens();
+
+        verify(connection, never()).setAutoCommit(false);
     }
-}
\ No newline at end of file
+}
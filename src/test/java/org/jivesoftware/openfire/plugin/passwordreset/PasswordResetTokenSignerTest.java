@@ -0,0 +1,101 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class PasswordResetTokenSignerTest {
+
+    private static final byte[] KEY = "test-signing-key".getBytes(StandardCharsets.UTF_8);
+    private final Map<String, String> passwordStates = new HashMap<>();
+    private PasswordResetTokenSigner tokenSigner;
+
+    @BeforeEach
+    void setUp() {
+        passwordStates.clear();
+        passwordStates.put("test-username", "stored-key-1");
+        tokenSigner = new PasswordResetTokenSigner(
+            () -> KEY, username -> Optional.ofNullable(passwordStates.get(username)));
+    }
+
+    private String signToken() {
+        return tokenSigner.sign("test-username", Instant.now().plus(Duration.ofHours(1)))
+            .orElseThrow(IllegalStateException::new);
+    }
+
+    @Test
+    void willVerifyASignedToken() {
+        final String token = signToken();
+
+        assertThat(PasswordResetTokenSigner.isSigned(token))
+            .isTrue();
+        assertThat(tokenSigner.verify(token))
+            .hasValue("test-username");
+    }
+
+    @Test
+    void willNotVerifyATokenOnceThePasswordHasChanged() {
+        final String token = signToken();
+
+        passwordStates.put("test-username", "stored-key-2");
+
+        assertThat(tokenSigner.verify(token))
+            .isEmpty();
+    }
+
+    @Test
+    void willNotVerifyAnExpiredToken() {
+        final String token = tokenSigner
+            .sign("test-username", Instant.now().minus(Duration.ofSeconds(1)))
+            .orElseThrow(IllegalStateException::new);
+
+        assertThat(tokenSigner.verify(token))
+            .isEmpty();
+    }
+
+    @Test
+    void willReadTheExpiryOfASignedToken() {
+        final Instant expires = Instant.ofEpochMilli(System.currentTimeMillis() + 60_000);
+        final String token = tokenSigner.sign("test-username", expires)
+            .orElseThrow(IllegalStateException::new);
+
+        assertThat(PasswordResetTokenSigner.getExpires(token))
+            .hasValue(expires);
+        assertThat(PasswordResetTokenSigner.getExpires("not.a-token"))
+            .isEmpty();
+    }
+
+    @Test
+    void willNotVerifyATamperedToken() {
+        final String token = signToken();
+        final String otherUserToken = tokenSigner
+            .sign("other-username", Instant.now().plus(Duration.ofHours(1)))
+            .orElse("");
+        final String payload = token.substring(0, token.indexOf('.'));
+        final String signature = token.substring(token.indexOf('.') + 1);
+
+        assertThat(otherUserToken)
+            .isEmpty();
+        assertThat(tokenSigner.verify(payload + ".AAAA" + signature.substring(4)))
+            .isEmpty();
+        assertThat(tokenSigner.verify("not a token"))
+            .isEmpty();
+        assertThat(tokenSigner.verify("!!!.???"))
+            .isEmpty();
+    }
+
+    @Test
+    void willNotSignWithoutAPasswordState() {
+        passwordStates.clear();
+
+        assertThat(tokenSigner.sign("test-username", Instant.now().plus(Duration.ofHours(1))))
+            .isEmpty();
+    }
+}
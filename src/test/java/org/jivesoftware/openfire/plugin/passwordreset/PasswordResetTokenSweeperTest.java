@@ -0,0 +1,99 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.TimerTask;
+import lombok.SneakyThrows;
+import org.jivesoftware.util.TaskEngine;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetTokenSweeperTest {
+
+    private PasswordResetTokenSweeper tokenSweeper;
+    @Mock
+    private TaskEngine taskEngine;
+    @Mock
+    private PasswordResetTokenManager resetTokenManager;
+
+    @BeforeAll
+    static void beforeAll() {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @BeforeEach
+    void setUp() {
+        Fixtures.clearExistingProperties();
+        tokenSweeper = new PasswordResetTokenSweeper(taskEngine, resetTokenManager);
+    }
+
+    @Test
+    void willScheduleAtTheConfiguredInterval() {
+        PasswordResetPlugin.PURGE_INTERVAL.setValue(Duration.ofMinutes(42));
+
+        tokenSweeper.start();
+
+        verify(taskEngine).schedule(
+            any(TimerTask.class), eq(Duration.ofMinutes(42)), eq(Duration.ofMinutes(42)));
+        tokenSweeper.stop();
+    }
+
+    @Test
+    void willCancelTheTaskWhenStopped() {
+        tokenSweeper.start();
+        final ArgumentCaptor<TimerTask> argumentCaptor = ArgumentCaptor.forClass(TimerTask.class);
+        verify(taskEngine).schedule(argumentCaptor.capture(), any(Duration.class),
+            any(Duration.class));
+
+        tokenSweeper.stop();
+
+        verify(taskEngine).cancelScheduledTask(argumentCaptor.getValue());
+    }
+
+    @Test
+    @SneakyThrows
+    void willRecordThePurgeStatistics() {
+        doReturn(3)
+            .doReturn(4)
+            .when(resetTokenManager)
+            .purgeExpiredTokens();
+
+        tokenSweeper.sweep();
+        tokenSweeper.sweep();
+
+        assertThat(tokenSweeper.getLastRun())
+            .isNotNull();
+        assertThat(tokenSweeper.getLastPurgeCount())
+            .isEqualTo(4);
+        assertThat(tokenSweeper.getTotalPurgeCount())
+            .isEqualTo(7L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willSurviveDatabaseErrors() {
+        doThrow(new SQLException("test"))
+            .when(resetTokenManager)
+            .purgeExpiredTokens();
+
+        tokenSweeper.sweep();
+
+        assertThat(tokenSweeper.getLastRun())
+            .isNotNull();
+        assertThat(tokenSweeper.getTotalPurgeCount())
+            .isEqualTo(0L);
+    }
+}
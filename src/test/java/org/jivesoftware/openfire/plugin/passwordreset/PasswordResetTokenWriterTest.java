@@ -0,0 +1,138 @@
+package org.jivesoftware.openfire.plugin.passwordreset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class PasswordResetTokenWriterTest {
+
+    private static final String INSERT_SQL = "INSERT INTO test VALUES (?,?,?,?)";
+    private final Instant expires = Instant.now().plus(Duration.ofHours(1));
+    @Mock
+    private Connection connection;
+    @Mock
+    private PreparedStatement preparedStatement;
+
+    @BeforeEach
+    @SneakyThrows
+    void setUp() {
+        doReturn(preparedStatement)
+            .when(connection)
+            .prepareStatement(INSERT_SQL);
+    }
+
+    private PasswordResetTokenWriter newWriter(final int maxBatchSize, final Duration window) {
+        return new PasswordResetTokenWriter(
+            () -> connection, INSERT_SQL, () -> maxBatchSize, () -> window);
+    }
+
+    @Test
+    @SneakyThrows
+    void willWriteConcurrentTokensInOneBatch() {
+        // The batch can only be closed by filling it
+        final PasswordResetTokenWriter tokenWriter = newWriter(3, Duration.ofMinutes(1));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                final String token = "token-" + i;
+                writes.add(CompletableFuture.runAsync(() -> write(tokenWriter, token), executor));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(preparedStatement, times(3)).addBatch();
+        verify(preparedStatement).executeBatch();
+        verify(connection).commit();
+        assertThat(tokenWriter.getBatchCount())
+            .isEqualTo(1L);
+        assertThat(tokenWriter.getLargestBatchSize())
+            .isEqualTo(3);
+        assertThat(tokenWriter.getAverageBatchSize())
+            .isEqualTo(3.0);
+    }
+
+    @SneakyThrows
+    private void write(final PasswordResetTokenWriter tokenWriter, final String token) {
+        tokenWriter.write(token, "test-username", "192.0.2.1", expires);
+    }
+
+    @Test
+    @SneakyThrows
+    void willSeeTokensWaitingToBeWritten() {
+        final PasswordResetTokenWriter tokenWriter = newWriter(100, Duration.ZERO);
+        final AtomicReference<Optional<String>> pendingUserId = new AtomicReference<>();
+        doAnswer(invocation -> {
+            pendingUserId.set(tokenWriter.getPending("test-token"));
+            return new int[] {1};
+        }).when(preparedStatement).executeBatch();
+
+        tokenWriter.write("test-token", "test-username", "192.0.2.1", expires);
+
+        assertThat(pendingUserId.get())
+            .hasValue("test-username");
+        assertThat(tokenWriter.getPending("test-token"))
+            .isEmpty();
+    }
+
+    @Test
+    @SneakyThrows
+    void willRollBackAFailedBatch() {
+        final PasswordResetTokenWriter tokenWriter = newWriter(100, Duration.ZERO);
+        doThrow(new SQLException("test failure"))
+            .when(preparedStatement)
+            .executeBatch();
+
+        assertThatThrownBy(() -> tokenWriter.write("test-token", "test-username", null, expires))
+            .isInstanceOf(SQLException.class)
+            .hasMessage("test failure");
+        verify(connection).rollback();
+        assertThat(tokenWriter.getBatchCount())
+            .isEqualTo(0L);
+    }
+
+    @Test
+    @SneakyThrows
+    void willWriteTheEmailToTheOutboxInTheSameTransaction() {
+        final PasswordResetTokenWriter tokenWriter = newWriter(100, Duration.ZERO);
+        final PreparedStatement outboxStatement = mock(PreparedStatement.class);
+        doReturn(outboxStatement)
+            .when(connection)
+            .prepareStatement(PasswordResetOutbox.INSERT_SQL);
+
+        tokenWriter.write("test-token", "test-username", "192.0.2.1", expires, "sealed-token");
+
+        verify(outboxStatement).setString(2, "test-username");
+        verify(outboxStatement).setString(3, "sealed-token");
+        verify(outboxStatement).executeBatch();
+        verify(connection, times(1)).commit();
+    }
+}
@@ -2,14 +2,18 @@ package org.jivesoftware.openfire.plugin.passwordreset.servlet.admin;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.withSettings;
 
 import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -18,9 +22,15 @@ import lombok.SneakyThrows;
 import org.jivesoftware.admin.FlashMessageTag;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.plugin.passwordreset.Fixtures;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetBounceSuppressor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetDomainSuppressor;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailQueue;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailer;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetOutbox;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.ResetRequestFilter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenSweeper;
 import org.jivesoftware.openfire.plugin.passwordreset.servlet.admin.PasswordResetSettingsServlet.Dto;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserProvider;
@@ -50,10 +60,20 @@ class PasswordResetSettingsServletTest {
     @Mock
     private WebManager webManager;
     @Mock
+    private PasswordResetDomainSuppressor domainSuppressor;
+    @Mock
+    private PasswordResetBounceSuppressor bounceSuppressor;
+    @Mock
     private PasswordResetMailer passwordResetMailer;
     @Mock
+    private PasswordResetMailQueue mailQueue;
+    @Mock
+    private PasswordResetOutbox outbox;
+    @Mock
     private PasswordResetTokenManager tokenManager;
     @Mock
+    private PasswordResetTokenSweeper tokenSweeper;
+    @Mock
     private User user;
 
     @BeforeAll
@@ -69,7 +89,15 @@ class PasswordResetSettingsServletTest {
 
         servlet = new PasswordResetSettingsServlet();
         PasswordResetSettingsServlet.initStatic(
-            userProvider, () -> webManager, passwordResetMailer, tokenManager);
+            userProvider,
+            () -> webManager,
+            domainSuppressor,
+            bounceSuppressor,
+            passwordResetMailer,
+            mailQueue,
+            outbox,
+            tokenManager,
+            tokenSweeper);
     }
 
     @SneakyThrows
@@ -97,6 +125,38 @@ class PasswordResetSettingsServletTest {
             .isEqualTo(true);
     }
 
+    @SneakyThrows
+    @Test
+    void willListResetRequestsMatchingTheFilter() {
+        PasswordResetPlugin.ENABLED.setValue(true);
+        final HttpServletRequest request = blankRequest();
+        doReturn("test-user").when(request).getParameter("filter-user");
+        doReturn("2030-01-31").when(request).getParameter("filter-expires-to");
+
+        servlet.doGet(request, response);
+
+        final ArgumentCaptor<ResetRequestFilter> argumentCaptor =
+            ArgumentCaptor.forClass(ResetRequestFilter.class);
+        verify(tokenManager).getResetRequests(argumentCaptor.capture(), eq(""), anyInt());
+        assertThat(argumentCaptor.getValue().getUserIdPrefix())
+            .isEqualTo("test-user");
+        assertThat(argumentCaptor.getValue().getExpiresFrom())
+            .isNull();
+        assertThat(argumentCaptor.getValue().getExpiresTo())
+            .isEqualTo(LocalDate.of(2030, 2, 1).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    @SneakyThrows
+    @Test
+    void willNotListResetRequestsWhenSaving() {
+        final HttpServletRequest request = requestWithValidFormSubmitted();
+
+        servlet.doPost(request, response);
+
+        verify(tokenManager, never()).getResetRequests(any(), any(), anyInt());
+        verify(tokenManager, never()).getResetRequestSummary();
+    }
+
     private HttpServletRequest blankRequest() {
         final HttpServletRequest request = mock(
             HttpServletRequest.class,
@@ -140,6 +200,9 @@ class PasswordResetSettingsServletTest {
         doReturn("email body")
             .when(request)
             .getParameter("body");
+        doReturn("<p>email body</p>")
+            .when(request)
+            .getParameter("html-body");
         doReturn("42")
             .when(request)
             .getParameter("expiryCount");
@@ -152,6 +215,18 @@ class PasswordResetSettingsServletTest {
         doReturn("0")
             .when(request)
             .getParameter("maxLength");
+        doReturn("10")
+            .when(request)
+            .getParameter("addressRateLimit");
+        doReturn("15")
+            .when(request)
+            .getParameter("addressRatePeriod");
+        doReturn("3")
+            .when(request)
+            .getParameter("accountRateLimit");
+        doReturn("60")
+            .when(request)
+            .getParameter("accountRatePeriod");
         return request;
     }
 
@@ -329,6 +404,24 @@ class PasswordResetSettingsServletTest {
             .isEqualTo("???passwordreset.settings.subject-too-long???");
     }
 
+    @SneakyThrows
+    @Test
+    void willValidateThatTheSubjectHasNoUnknownPlaceholders() {
+
+        final HttpServletRequest request = requestWithValidFormSubmitted();
+        doReturn("Reset ${userId} ${name}")
+            .when(request)
+            .getParameter("subject");
+
+        servlet.doPost(request, response);
+
+        final Dto dto = getForwardedForm(request);
+        assertThat(dto.isValid())
+            .isEqualTo(false);
+        assertThat(dto.getSubjectError())
+            .isEqualTo("???passwordreset.settings.unknown-placeholders???");
+    }
+
     @SneakyThrows
     @Test
     void willValidateThatTheBodyIsPresent() {
@@ -363,6 +456,24 @@ class PasswordResetSettingsServletTest {
             .isEqualTo("???passwordreset.settings.body-too-long???");
     }
 
+    @SneakyThrows
+    @Test
+    void willValidateThatTheHtmlBodyIsNotTooLong() {
+
+        final HttpServletRequest request = requestWithValidFormSubmitted();
+        doReturn(new String(new char[4001]).replace('\0', 'X'))
+            .when(request)
+            .getParameter("html-body");
+
+        servlet.doPost(request, response);
+
+        final Dto dto = getForwardedForm(request);
+        assertThat(dto.isValid())
+            .isEqualTo(false);
+        assertThat(dto.getHtmlBodyError())
+            .isEqualTo("???passwordreset.settings.html-body-too-long???");
+    }
+
     @SneakyThrows
     @Test
     void willValidateThatExpiryCountIsPresent() {
@@ -490,6 +601,42 @@ class PasswordResetSettingsServletTest {
             .isEqualTo("???passwordreset.settings.max-length-integer???");
     }
 
+    @SneakyThrows
+    @Test
+    void willValidateThatTheRateLimitIsNotNegative() {
+
+        final HttpServletRequest request = requestWithValidFormSubmitted();
+        doReturn("-1")
+            .when(request)
+            .getParameter("addressRateLimit");
+
+        servlet.doPost(request, response);
+
+        final Dto dto = getForwardedForm(request);
+        assertThat(dto.isValid())
+            .isEqualTo(false);
+        assertThat(dto.getAddressRateError())
+            .isEqualTo("???passwordreset.settings.rate-limit-integer???");
+    }
+
+    @SneakyThrows
+    @Test
+    void willValidateThatTheRatePeriodIsPositive() {
+
+        final HttpServletRequest request = requestWithValidFormSubmitted();
+        doReturn("0")
+            .when(request)
+            .getParameter("accountRatePeriod");
+
+        servlet.doPost(request, response);
+
+        final Dto dto = getForwardedForm(request);
+        assertThat(dto.isValid())
+            .isEqualTo(false);
+        assertThat(dto.getAccountRateError())
+            .isEqualTo("???passwordreset.settings.rate-period-integer???");
+    }
+
     @SneakyThrows
     @Test
     void validateThatMaxLengthMustExceedMinLength() {
@@ -538,8 +685,14 @@ class PasswordResetSettingsServletTest {
             .isEqualTo("email subject");
         assertThat(PasswordResetPlugin.BODY.getValue())
             .isEqualTo("email body");
+        assertThat(PasswordResetPlugin.HTML_BODY.getValue())
+            .isEqualTo("<p>email body</p>");
         assertThat(PasswordResetPlugin.EXPIRY.getValue())
             .isEqualTo(Duration.ofMinutes(42));
+        assertThat(PasswordResetPlugin.ADDRESS_RATE_PERIOD.getValue())
+            .isEqualTo(Duration.ofMinutes(15));
+        assertThat(PasswordResetPlugin.ACCOUNT_RATE_LIMIT.getValue())
+            .isEqualTo(3);
     }
 
     @SneakyThrows
@@ -170,7 +170,7 @@ class PasswordResetChangePasswordServletTest {
 
         doReturn(Optional.of(user))
             .when(tokenManager)
-            .getUser(VALID_TOKEN);
+            .consumeToken(VALID_TOKEN);
 
         doReturn(USER_ID)
             .when(user)
@@ -179,7 +179,6 @@ class PasswordResetChangePasswordServletTest {
         servlet.doPost(request, response);
 
         verify(user).setPassword("new-password");
-        verify(tokenManager).deleteTokens(user);
         verify(session).setAttribute(eq(FlashMessageTag.SUCCESS_MESSAGE_KEY), anyString());
         verify(requestDispatcher).forward(request, response);
     }
@@ -227,7 +226,7 @@ class PasswordResetChangePasswordServletTest {
     @SneakyThrows
     Form verifyFormError() {
         verify(user, never()).setPassword(anyString());
-        verify(tokenManager, never()).deleteTokens(any());
+        verify(tokenManager, never()).consumeToken(any());
         final ArgumentCaptor<PasswordResetChangePasswordServlet.Form> argumentCaptor
             = ArgumentCaptor.forClass(PasswordResetChangePasswordServlet.Form.class);
         verify(request).setAttribute(eq("form"), argumentCaptor.capture());
@@ -277,7 +276,7 @@ class PasswordResetChangePasswordServletTest {
         givenValidFormSubmission();
         doReturn(Optional.empty())
             .when(tokenManager)
-            .getUser("bad token");
+            .consumeToken("bad token");
         doReturn(requestDispatcher)
             .when(request)
             .getRequestDispatcher("password-reset-bad-token.jsp");
@@ -299,7 +298,7 @@ class PasswordResetChangePasswordServletTest {
         givenValidFormSubmission();
         doReturn(Optional.of(user))
             .when(tokenManager)
-            .getUser(VALID_TOKEN);
+            .consumeToken(VALID_TOKEN);
         doReturn("not-" + USER_ID)
             .when(user)
             .getUsername();
@@ -309,6 +308,7 @@ class PasswordResetChangePasswordServletTest {
 
         servlet.doPost(request, response);
 
+        verify(user, never()).setPassword(anyString());
         verify(requestDispatcher).forward(request, response);
 
     }
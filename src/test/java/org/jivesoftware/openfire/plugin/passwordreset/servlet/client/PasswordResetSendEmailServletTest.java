@@ -6,19 +6,31 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Optional;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import lombok.SneakyThrows;
+import org.jivesoftware.admin.FlashMessageTag;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.plugin.passwordreset.Fixtures;
-import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailer;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetEmailIndex;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetEmailSearch;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetIdentifierCache;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetMailQueue;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetOutbox;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetPlugin;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetRateLimiter;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetSingleFlight;
 import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager;
+import org.jivesoftware.openfire.plugin.passwordreset.PasswordResetTokenManager.IssuedToken;
 import org.jivesoftware.openfire.plugin.passwordreset.servlet.client.PasswordResetSendEmailServlet.Form;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
@@ -46,13 +58,23 @@ class PasswordResetSendEmailServletTest {
     @Mock
     private PasswordResetTokenManager resetTokenManager;
     @Mock
-    private PasswordResetMailer passwordResetMailer;
+    private PasswordResetMailQueue mailQueue;
+    @Mock
+    private PasswordResetOutbox outbox;
+    @Mock
+    private PasswordResetEmailIndex emailIndex;
+    private PasswordResetIdentifierCache identifierCache;
+    private PasswordResetRateLimiter addressRateLimiter;
+    private PasswordResetRateLimiter accountRateLimiter;
+    private PasswordResetSingleFlight<String> resetSingleFlight;
     @Mock
     private HttpServletRequest request;
     @Mock
     private RequestDispatcher requestDispatcher;
     @Mock
     private HttpServletResponse response;
+    @Mock
+    private HttpSession session;
 
     @BeforeAll
     @SuppressWarnings("deprecation")
@@ -73,13 +95,30 @@ class PasswordResetSendEmailServletTest {
 
         user = new User("test-username", "Test User", "test@example.com", new Date(), new Date());
 
+        identifierCache = new PasswordResetIdentifierCache(
+            () -> 10, () -> Duration.ofMinutes(1), () -> Duration.ofMinutes(1));
+
+        addressRateLimiter = new PasswordResetRateLimiter(
+            () -> 3, () -> Duration.ofMinutes(1), () -> 100);
+        accountRateLimiter = new PasswordResetRateLimiter(
+            () -> 1, () -> Duration.ofMinutes(1), () -> 100);
+
+        resetSingleFlight = new PasswordResetSingleFlight<>();
+
         servlet = new PasswordResetSendEmailServlet();
         PasswordResetSendEmailServlet.initStatic(
             xmppServer,
             userProvider,
             userManager,
             resetTokenManager,
-            passwordResetMailer);
+            mailQueue,
+            outbox,
+            emailIndex,
+            new PasswordResetEmailSearch(() -> null, userProvider, userManager, Runnable::run),
+            identifierCache,
+            addressRateLimiter,
+            accountRateLimiter,
+            resetSingleFlight);
     }
 
     @SneakyThrows
@@ -150,16 +189,46 @@ class PasswordResetSendEmailServletTest {
             .when(userManager)
             .getUser(user.getUsername());
 
-        doReturn(TOKEN)
+        doReturn(new IssuedToken(TOKEN, false))
             .when(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
 
         servlet.doPost(request, response);
 
         verify(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
-        verify(passwordResetMailer)
-            .sendEmail(user, TOKEN);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+        verify(mailQueue)
+            .submit(user, TOKEN);
+        verify(requestDispatcher)
+            .forward(request, response);
+    }
+
+    @SneakyThrows
+    @Test
+    void postWillNotQueueEmailsAddedToTheOutbox() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn(user.getUsername())
+            .when(request)
+            .getParameter("user");
+
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+
+        doReturn(new IssuedToken(TOKEN, true))
+            .when(resetTokenManager)
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+
+        servlet.doPost(request, response);
+
+        verify(mailQueue, never())
+            .submit(any(), any());
         verify(requestDispatcher)
             .forward(request, response);
     }
@@ -182,16 +251,16 @@ class PasswordResetSendEmailServletTest {
             .when(userManager)
             .getUser(user.getUsername());
 
-        doReturn(TOKEN)
+        doReturn(new IssuedToken(TOKEN, false))
             .when(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
 
         servlet.doPost(request, response);
 
         verify(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
-        verify(passwordResetMailer)
-            .sendEmail(user, TOKEN);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+        verify(mailQueue)
+            .submit(user, TOKEN);
         verify(requestDispatcher)
             .forward(request, response);
     }
@@ -214,20 +283,98 @@ class PasswordResetSendEmailServletTest {
             .when(userManager)
             .getUsers(anyInt(), anyInt());
 
-        doReturn(TOKEN)
+        doReturn(new IssuedToken(TOKEN, false))
             .when(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
 
         servlet.doPost(request, response);
 
         verify(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
-        verify(passwordResetMailer)
-            .sendEmail(user, TOKEN);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+        verify(mailQueue)
+            .submit(user, TOKEN);
         verify(requestDispatcher)
             .forward(request, response);
     }
 
+    @SneakyThrows
+    @Test
+    void postWithValidEmailWillUseTheIndexOnceWarm() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn(user.getEmail())
+            .when(request)
+            .getParameter("user");
+
+        doReturn(true)
+            .when(emailIndex)
+            .isWarm();
+        doReturn(Optional.of(user.getUsername()))
+            .when(emailIndex)
+            .findUsername(user.getEmail());
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+
+        doReturn(new IssuedToken(TOKEN, false))
+            .when(resetTokenManager)
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+
+        servlet.doPost(request, response);
+
+        verify(userManager, never())
+            .getUsers(anyInt(), anyInt());
+        verify(mailQueue)
+            .submit(user, TOKEN);
+    }
+
+    @SneakyThrows
+    @Test
+    void postWithValidEmailWillSearchWhenTheIndexIsStale() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn(user.getEmail())
+            .when(request)
+            .getParameter("user");
+
+        // The address was changed on another node, or in the user provider itself
+        final User previousUser = new User(
+            "previous-username", "Previous User", "previous@example.com", new Date(), new Date());
+        doReturn(true)
+            .when(emailIndex)
+            .isWarm();
+        doReturn(Optional.of(previousUser.getUsername()))
+            .when(emailIndex)
+            .findUsername(user.getEmail());
+        doReturn(previousUser)
+            .when(userManager)
+            .getUser(previousUser.getUsername());
+        doReturn(Collections.singletonList(user))
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+
+        doReturn(new IssuedToken(TOKEN, false))
+            .when(resetTokenManager)
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+
+        servlet.doPost(request, response);
+
+        verify(resetTokenManager, never())
+            .generateToken(previousUser, REMOTE_ADDRESS, outbox);
+        verify(mailQueue)
+            .submit(user, TOKEN);
+    }
+
     @SneakyThrows
     @Test
     void willLookInTheSecondPageOfResults() {
@@ -247,16 +394,16 @@ class PasswordResetSendEmailServletTest {
             .when(userManager)
             .getUsers(anyInt(), anyInt());
 
-        doReturn(TOKEN)
+        doReturn(new IssuedToken(TOKEN, false))
             .when(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
 
         servlet.doPost(request, response);
 
         verify(resetTokenManager)
-            .generateToken(user, REMOTE_ADDRESS);
-        verify(passwordResetMailer)
-            .sendEmail(user, TOKEN);
+            .generateToken(user, REMOTE_ADDRESS, outbox);
+        verify(mailQueue)
+            .submit(user, TOKEN);
         verify(requestDispatcher)
             .forward(request, response);
     }
@@ -265,6 +412,9 @@ class PasswordResetSendEmailServletTest {
     @Test
     void willNotSendAnythingIfNoEmailMatches() {
 
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
         doReturn(requestDispatcher)
             .when(request)
             .getRequestDispatcher("password-reset-send-email.jsp");
@@ -281,10 +431,132 @@ class PasswordResetSendEmailServletTest {
         servlet.doPost(request, response);
 
         verify(resetTokenManager, never())
-            .generateToken(any(), any());
-        verify(passwordResetMailer, never())
-            .sendEmail(any(), any());
+            .generateToken(any(), any(), any());
+        verify(mailQueue, never())
+            .submit(any(), any());
+        verify(requestDispatcher)
+            .forward(request, response);
+    }
+
+    @SneakyThrows
+    @Test
+    void willNotLookUpImplausibleIdentifiers() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn("<script>@example.com")
+            .when(request)
+            .getParameter("user");
+
+        servlet.doPost(request, response);
+
+        verify(userManager, never())
+            .getUsers(anyInt(), anyInt());
+        verify(mailQueue, never())
+            .submit(any(), any());
         verify(requestDispatcher)
             .forward(request, response);
     }
-}
\ No newline at end of file
+
+    @SneakyThrows
+    @Test
+    void willRememberIdentifiersThatMatchNoUser() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn("not-" + user.getEmail())
+            .when(request)
+            .getParameter("user");
+
+        doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(userManager, times(1))
+            .getUsers(anyInt(), anyInt());
+        verify(mailQueue, never())
+            .submit(any(), any());
+    }
+
+    @SneakyThrows
+    @Test
+    void willLimitRequestsFromEachAddress() {
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn(session)
+            .when(request)
+            .getSession();
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn("not-" + user.getEmail())
+            .when(request)
+            .getParameter("user");
+
+        doReturn(Collections.emptyList())
+            .when(userManager)
+            .getUsers(anyInt(), anyInt());
+
+        for (int i = 0; i < 4; i++) {
+            servlet.doPost(request, response);
+        }
+
+        verify(response)
+            .setStatus(429);
+        verify(session)
+            .setAttribute(eq(FlashMessageTag.ERROR_MESSAGE_KEY), any());
+        verify(requestDispatcher, times(4))
+            .forward(request, response);
+    }
+
+    @SneakyThrows
+    @Test
+    void willLimitRequestsFromEachForwardedAddressWhenTrusted() {
+        PasswordResetPlugin.TRUST_FORWARDED_FOR.setValue(true);
+
+        doReturn(REMOTE_ADDRESS)
+            .when(request)
+            .getRemoteAddr();
+        doReturn("spoofed-address, first-client-address")
+            .doReturn("second-client-address")
+            .when(request)
+            .getHeader("X-Forwarded-For");
+        doReturn(requestDispatcher)
+            .when(request)
+            .getRequestDispatcher("password-reset-send-email.jsp");
+        doReturn(user.getUsername())
+            .when(request)
+            .getParameter("user");
+
+        doReturn(user)
+            .when(userManager)
+            .getUser(user.getUsername());
+        doReturn(new IssuedToken(TOKEN, false))
+            .when(resetTokenManager)
+            .generateToken(eq(user), any(), eq(outbox));
+
+        servlet.doPost(request, response);
+        servlet.doPost(request, response);
+
+        verify(resetTokenManager)
+            .generateToken(user, "first-client-address", outbox);
+        // The second is from another address, but for the same user
+        verify(resetTokenManager, times(1))
+            .generateToken(eq(user), any(), eq(outbox));
+        verify(mailQueue, times(1))
+            .submit(user, TOKEN);
+    }
+}